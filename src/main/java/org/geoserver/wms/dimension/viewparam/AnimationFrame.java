@@ -0,0 +1,62 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * The next frame expected in a time animation recognised by {@link AnimationSequenceDetector}: the layers and the bounding box of the
+ * animation, the predicted TIME value and the view parameters the transformer will inject for that frame.
+ */
+public class AnimationFrame {
+
+    private final List<LayerInfo> layers;
+
+    private final ReferencedEnvelope bbox;
+
+    private final Object time;
+
+    private final long strideMillis;
+
+    private final List<Map<String, String>> viewParams;
+
+    AnimationFrame(List<LayerInfo> layers, ReferencedEnvelope bbox, Object time,
+            long strideMillis, List<Map<String, String>> viewParams) {
+        this.layers = layers;
+        this.bbox = bbox;
+        this.time = time;
+        this.strideMillis = strideMillis;
+        this.viewParams = viewParams;
+    }
+
+    public List<LayerInfo> getLayers() {
+        return layers;
+    }
+
+    public ReferencedEnvelope getBbox() {
+        return bbox;
+    }
+
+    /**
+     * @return the expected TIME value, a {@link java.util.Date} or a {@link org.geotools.util.DateRange}
+     */
+    public Object getTime() {
+        return time;
+    }
+
+    /**
+     * @return the time step between the frames of the animation, negative for an animation running backwards
+     */
+    public long getStrideMillis() {
+        return strideMillis;
+    }
+
+    /**
+     * @return the expected view parameters of each layer, or null if the dimensions of the frame are not transformed
+     */
+    public List<Map<String, String>> getViewParams() {
+        return viewParams;
+    }
+}
@@ -0,0 +1,18 @@
+package org.geoserver.wms.dimension.viewparam;
+
+/**
+ * Extension point for warming caches ahead of the time animations recognised by {@link AnimationSequenceDetector}. The implementations are
+ * looked up from the application context, unless the listeners are given to the detector explicitly.
+ *
+ * The listeners are called from the bounded executor of the detector, never from the request threads, and the expected frames are dropped
+ * while the executor is busy. A listener should not block for long, as it delays the notification of the other animations.
+ */
+public interface AnimationFrameListener {
+
+    /**
+     * Called when the next frame of a time animation is expected.
+     * 
+     * @param frame
+     */
+    void frameExpected(AnimationFrame frame);
+}
@@ -0,0 +1,412 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.DateRange;
+
+/**
+ * Recognises time animations from the successive GetMap requests transformed by {@link DimensionSQLViewParamRequestTransformer}: requests
+ * for the same layers, bounding box and other dimension values, with a single TIME value moving by a fixed step. Once the same step has been
+ * seen for <code>minFrames</code> frames, the next expected frame is published to the {@link AnimationFrameListener}s.
+ *
+ * The request threads only update the state of the sequence. The view parameters of the expected frame are computed and the listeners are
+ * called by a bounded executor, and the expected frames are dropped if the queue of the executor is full. The number of tracked sequences is
+ * bounded as well. When the limit is reached, the new sequences are not tracked and the sequences idle for longer than <code>idleMillis</code>
+ * are evicted in the background, so the request threads never scan the sequences.
+ */
+public class AnimationSequenceDetector {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(AnimationSequenceDetector.class.getName());
+
+    private final ConcurrentMap<String, Sequence> sequences;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadPoolExecutor evictor;
+
+    private int minFrames;
+
+    private int maxSequences;
+
+    private long idleMillis;
+
+    private boolean perClient;
+
+    private volatile List<AnimationFrameListener> listeners;
+
+    public AnimationSequenceDetector() {
+        this(1, 100);
+    }
+
+    /**
+     * @param threads the maximum number of threads notifying the listeners
+     * @param queueSize the maximum number of expected frames waiting for notification
+     */
+    public AnimationSequenceDetector(int threads, int queueSize) {
+        this.sequences = new ConcurrentHashMap<String, Sequence>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "wmsdim-animation-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        // at most one eviction waiting, the later ones would find nothing more to evict:
+        this.evictor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "wmsdim-animation-evictor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.evictor.allowCoreThreadTimeOut(true);
+        this.minFrames = 3;
+        this.maxSequences = 10000;
+        this.idleMillis = 60000;
+        this.perClient = true;
+        this.listeners = null;
+    }
+
+    public int getMinFrames() {
+        return minFrames;
+    }
+
+    /**
+     * Set the number of successive frames with the same time step before the next frame is expected. Default is 3.
+     * 
+     * @param minFrames
+     */
+    public void setMinFrames(int minFrames) {
+        if (minFrames < 2) {
+            throw new IllegalArgumentException("At least two frames are needed for a time step");
+        }
+        this.minFrames = minFrames;
+    }
+
+    public int getMaxSequences() {
+        return maxSequences;
+    }
+
+    /**
+     * Set the maximum number of tracked sequences. Default is 10000.
+     * 
+     * @param maxSequences
+     */
+    public void setMaxSequences(int maxSequences) {
+        this.maxSequences = maxSequences;
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * Set the time after which an idle sequence can be evicted. Default is 60000 ms.
+     * 
+     * @param idleMillis
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    public boolean isPerClient() {
+        return perClient;
+    }
+
+    /**
+     * Enable or disable tracking the sequences separately for each client address. If disabled, the requests of all the clients for the same
+     * layers and bounding box form a single sequence. Enabled by default.
+     * 
+     * @param perClient
+     */
+    public void setPerClient(boolean perClient) {
+        this.perClient = perClient;
+    }
+
+    public List<AnimationFrameListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Set the listeners of the expected frames. If null (default), the {@link AnimationFrameListener} implementations in the application context
+     * are used.
+     * 
+     * @param listeners
+     */
+    public void setListeners(List<AnimationFrameListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * @return the number of tracked sequences
+     */
+    public int getSequenceCount() {
+        return this.sequences.size();
+    }
+
+    /**
+     * Records a request transformed by the given transformer, publishing the next expected frame if the request continues an animation.
+     * 
+     * @param request the request, with the view parameters given by the client
+     * @param transformer the transformer for computing the view parameters of the next frame
+     */
+    public void record(GetMapRequest request, DimensionSQLViewParamRequestTransformer transformer) {
+        List<Object> times = request.getTime();
+        if (times == null || times.size() != 1 || request.getLayers() == null
+                || request.getBbox() == null) {
+            return;
+        }
+        Object time = times.get(0);
+        long instant;
+        if (time instanceof Date) {
+            instant = ((Date) time).getTime();
+        } else if (time instanceof DateRange) {
+            instant = ((DateRange) time).getMinValue().getTime();
+        } else {
+            return;
+        }
+        String key = getSequenceKey(request);
+        long now = System.currentTimeMillis();
+        Sequence sequence = this.sequences.get(key);
+        if (sequence == null) {
+            if (this.sequences.size() >= this.maxSequences) {
+                scheduleEviction();
+                return;
+            }
+            sequence = new Sequence();
+            Sequence existing = this.sequences.putIfAbsent(key, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        long stride = sequence.next(instant, now, this.minFrames);
+        if (stride != 0) {
+            publish(request, time, stride, transformer);
+        }
+    }
+
+    private String getSequenceKey(GetMapRequest request) {
+        StringBuilder sb = new StringBuilder();
+        if (this.perClient) {
+            Request owsRequest = Dispatcher.REQUEST.get();
+            if (owsRequest != null && owsRequest.getHttpRequest() != null) {
+                sb.append(owsRequest.getHttpRequest().getRemoteAddr());
+            }
+        }
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        sb.append('|').append(workspace != null ? workspace.getName() : "");
+        for (MapLayerInfo layer : request.getLayers()) {
+            sb.append('|').append(layer.getName());
+        }
+        sb.append('|').append(request.getSRS()).append('|').append(request.getBbox());
+        if (request.getRawKvp() != null) {
+            Map<String, String> dimensions = new TreeMap<String, String>();
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                String name = e.getKey().toUpperCase();
+                if ("ELEVATION".equals(name) || name.startsWith("DIM_")) {
+                    dimensions.put(name, e.getValue());
+                }
+            }
+            sb.append('|').append(dimensions);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Removes the idle sequences in the background, unless an eviction is already waiting.
+     */
+    private void scheduleEviction() {
+        if (this.evictor.getQueue().isEmpty()) {
+            try {
+                this.evictor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        evictIdle(System.currentTimeMillis());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down
+            }
+        }
+    }
+
+    /**
+     * Removes the idle sequences.
+     * 
+     * @return true if any sequence was removed
+     */
+    private boolean evictIdle(long now) {
+        boolean retval = false;
+        for (Iterator<Sequence> i = this.sequences.values().iterator(); i.hasNext();) {
+            if (now - i.next().getLastSeen() > this.idleMillis) {
+                i.remove();
+                retval = true;
+            }
+        }
+        return retval;
+    }
+
+    private void publish(final GetMapRequest request, Object time, final long stride,
+            final DimensionSQLViewParamRequestTransformer transformer) {
+        final List<AnimationFrameListener> l = this.listeners != null ? this.listeners
+                : GeoServerExtensions.extensions(AnimationFrameListener.class);
+        if (l == null || l.isEmpty()) {
+            return;
+        }
+        final List<LayerInfo> layers = new ArrayList<LayerInfo>(request.getLayers().size());
+        for (MapLayerInfo layer : request.getLayers()) {
+            layers.add(layer.getLayerInfo());
+        }
+        final Object next;
+        if (time instanceof DateRange) {
+            DateRange range = (DateRange) time;
+            next = new DateRange(new Date(range.getMinValue().getTime() + stride), new Date(range
+                    .getMaxValue().getTime() + stride));
+        } else {
+            next = new Date(((Date) time).getTime() + stride);
+        }
+        final DimensionBatchRequest frame = new DimensionBatchRequest(layers);
+        frame.setTime(Collections.singletonList(next));
+        frame.setElevation(request.getElevation());
+        frame.setTimeZone(transformer.getRequestTimeZone(request));
+        frame.setViewParams(request.getViewParams());
+        if (request.getRawKvp() != null) {
+            for (String name : request.getRawKvp().keySet()) {
+                if (name.toUpperCase().startsWith("DIM_")) {
+                    frame.setCustomDimension(name.substring(4),
+                            request.getCustomDimension(name.substring(4)));
+                }
+            }
+        }
+        final ReferencedEnvelope bbox = new ReferencedEnvelope(request.getBbox(), request.getCrs());
+        final WorkspaceInfo workspace = LocalWorkspace.get();
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LocalWorkspace.set(workspace);
+                    try {
+                        List<Map<String, String>> viewParams = transformer
+                                .getTransformedViewParams(Collections.singletonList(frame)).get(0);
+                        AnimationFrame expected = new AnimationFrame(layers, bbox, next, stride,
+                                viewParams);
+                        for (AnimationFrameListener listener : l) {
+                            try {
+                                listener.frameExpected(expected);
+                            } catch (RuntimeException e) {
+                                log.log(Level.WARNING, "Animation frame listener failed", e);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.log(Level.FINE, "Could not compute the expected animation frame", e);
+                    } finally {
+                        LocalWorkspace.remove();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    /**
+     * Stops notifying the listeners.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+        this.evictor.shutdownNow();
+    }
+
+    /**
+     * Waits until the queued frames have been published, for testing.
+     */
+    boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.executor.getActiveCount() > 0 || !this.executor.getQueue().isEmpty()
+                || this.evictor.getActiveCount() > 0 || !this.evictor.getQueue().isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * State of a single sequence of requests.
+     */
+    private static final class Sequence {
+
+        private long lastInstant;
+
+        private long stride;
+
+        private int frames;
+
+        private volatile long lastSeen;
+
+        /**
+         * Records the next request of the sequence.
+         * 
+         * @return the time step if the next frame is expected, otherwise 0
+         */
+        synchronized long next(long instant, long now, int minFrames) {
+            this.lastSeen = now;
+            if (this.frames == 0) {
+                this.frames = 1;
+            } else {
+                long delta = instant - this.lastInstant;
+                if (delta == 0) {
+                    // another request for the same frame
+                    return 0;
+                }
+                if (delta == this.stride) {
+                    this.frames++;
+                } else {
+                    this.stride = delta;
+                    this.frames = 2;
+                }
+            }
+            this.lastInstant = instant;
+            return this.frames >= minFrames ? this.stride : 0;
+        }
+
+        long getLastSeen() {
+            return this.lastSeen;
+        }
+    }
+}
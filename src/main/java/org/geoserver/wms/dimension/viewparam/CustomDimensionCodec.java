@@ -0,0 +1,382 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.NumberRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Period;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.joda.time.format.ISOPeriodFormat;
+
+/**
+ * Parser and formatter of the values of a typed custom dimension, compiled from a {@link CustomDimensionDefinition} when the configuration is
+ * set. Instances are immutable and shared by the concurrent requests.
+ */
+abstract class CustomDimensionCodec {
+
+    private static final DateTimeFormatter DATE_TIME_PARSER = ISODateTimeFormat.dateTimeParser()
+            .withZoneUTC();
+
+    protected final String dimensionName;
+
+    protected final int maxValues;
+
+    CustomDimensionCodec(String dimensionName, CustomDimensionDefinition definition) {
+        this.dimensionName = dimensionName;
+        this.maxValues = definition.getMaxValues() != null && definition.getMaxValues() > 0
+                ? definition.getMaxValues() : CustomDimensionDefinition.DEFAULT_MAX_VALUES;
+    }
+
+    /**
+     * Compiles the codec for the given dimension definition.
+     *
+     * @param dimensionName the custom dimension name, without the DIM_ prefix
+     * @param definition
+     * @param timeFormatter the formatter of the DATETIME values
+     * @return the codec
+     * @throws IllegalArgumentException if the definition is not valid
+     */
+    static CustomDimensionCodec compile(String dimensionName, CustomDimensionDefinition definition,
+            DateTimeFormatter timeFormatter) throws IllegalArgumentException {
+        if (definition.getType() == null) {
+            throw new IllegalArgumentException("No type given for custom dimension "
+                    + dimensionName);
+        }
+        switch (definition.getType()) {
+        case INTEGER:
+            return new IntegerCodec(dimensionName, definition);
+        case DECIMAL:
+            return new DecimalCodec(dimensionName, definition);
+        case DATETIME:
+            return new DateTimeCodec(dimensionName, definition, timeFormatter);
+        case NUMERIC_RANGE:
+            return new NumericRangeCodec(dimensionName, definition);
+        case ENUMERATED:
+            return new EnumeratedCodec(dimensionName, definition);
+        default:
+            throw new IllegalArgumentException("Unsupported type " + definition.getType()
+                    + " for custom dimension " + dimensionName);
+        }
+    }
+
+    /**
+     * Parses the requested values and puts the normalised values into the given view parameters.
+     *
+     * @param paramName the view parameter name for the dimension
+     * @param values the requested values
+     * @param to the view parameters to add to
+     * @throws ServiceException if a value is not valid for the dimension
+     */
+    void encode(String paramName, List<String> values, LazyViewParameterMap to)
+            throws ServiceException {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : parse(values)) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(format(value));
+        }
+        to.put(paramName, sb.toString());
+    }
+
+    /**
+     * Parses and expands the requested values into values of the native type of the dimension.
+     *
+     * @param values the requested values
+     * @return the typed values
+     * @throws ServiceException if a value is not valid for the dimension
+     */
+    abstract List<Object> parse(List<String> values) throws ServiceException;
+
+    /**
+     * Formats a single typed value returned by {@link #parse(List)}.
+     */
+    protected abstract String format(Object value);
+
+    protected ServiceException invalidValue(String value) {
+        return new ServiceException("Invalid value '" + value + "' for dimension "
+                + this.dimensionName, "InvalidDimensionValue", "DIM_" + this.dimensionName);
+    }
+
+    protected ServiceException tooManyValues() {
+        return new ServiceException("More than " + this.maxValues + " values requested for dimension "
+                + this.dimensionName, "InvalidDimensionValue", "DIM_" + this.dimensionName);
+    }
+
+    protected static String[] split(String value) {
+        String[] parts = value.trim().split("/", -1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+        }
+        return parts;
+    }
+
+    protected void add(List<Object> to, Object value) throws ServiceException {
+        if (to.size() >= this.maxValues) {
+            throw tooManyValues();
+        }
+        to.add(value);
+    }
+
+    /**
+     * Formats a decimal value with the given printf-style pattern, or in plain notation without trailing zeros.
+     */
+    protected static String formatDecimal(BigDecimal value, String pattern) {
+        if (pattern != null) {
+            return String.format(Locale.ENGLISH, pattern, value);
+        }
+        if (value.signum() == 0) {
+            return "0";
+        }
+        return value.stripTrailingZeros().toPlainString();
+    }
+
+    protected static void validateDecimalPattern(String pattern) throws IllegalArgumentException {
+        if (pattern != null) {
+            // throws an IllegalFormatException, which is an IllegalArgumentException:
+            String.format(Locale.ENGLISH, pattern, BigDecimal.ONE);
+        }
+    }
+
+    private static class IntegerCodec extends CustomDimensionCodec {
+
+        IntegerCodec(String dimensionName, CustomDimensionDefinition definition) {
+            super(dimensionName, definition);
+        }
+
+        @Override
+        List<Object> parse(List<String> values) throws ServiceException {
+            List<Object> retval = new ArrayList<Object>();
+            for (String value : values) {
+                String[] parts = split(value);
+                try {
+                    if (parts.length == 1) {
+                        add(retval, Long.valueOf(parts[0]));
+                    } else if (parts.length <= 3) {
+                        long min = Long.parseLong(parts[0]);
+                        long max = Long.parseLong(parts[1]);
+                        long step = parts.length == 3 ? Long.parseLong(parts[2]) : 1L;
+                        if (step <= 0 || max < min) {
+                            throw invalidValue(value);
+                        }
+                        for (long v = min; v <= max && v >= min; v += step) {
+                            add(retval, Long.valueOf(v));
+                        }
+                    } else {
+                        throw invalidValue(value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw invalidValue(value);
+                }
+            }
+            return retval;
+        }
+
+        @Override
+        protected String format(Object value) {
+            return value.toString();
+        }
+    }
+
+    private static class DecimalCodec extends CustomDimensionCodec {
+
+        private final String pattern;
+
+        DecimalCodec(String dimensionName, CustomDimensionDefinition definition) {
+            super(dimensionName, definition);
+            validateDecimalPattern(definition.getFormatPattern());
+            this.pattern = definition.getFormatPattern();
+        }
+
+        @Override
+        List<Object> parse(List<String> values) throws ServiceException {
+            List<Object> retval = new ArrayList<Object>();
+            for (String value : values) {
+                String[] parts = split(value);
+                try {
+                    if (parts.length == 1) {
+                        add(retval, new BigDecimal(parts[0]));
+                    } else if (parts.length == 3) {
+                        BigDecimal min = new BigDecimal(parts[0]);
+                        BigDecimal max = new BigDecimal(parts[1]);
+                        BigDecimal step = new BigDecimal(parts[2]);
+                        if (step.signum() <= 0 || max.compareTo(min) < 0) {
+                            throw invalidValue(value);
+                        }
+                        for (BigDecimal v = min; v.compareTo(max) <= 0; v = v.add(step)) {
+                            add(retval, v);
+                        }
+                    } else {
+                        throw invalidValue(value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw invalidValue(value);
+                }
+            }
+            return retval;
+        }
+
+        @Override
+        protected String format(Object value) {
+            return formatDecimal((BigDecimal) value, this.pattern);
+        }
+    }
+
+    private static class DateTimeCodec extends CustomDimensionCodec {
+
+        private final DateTimeFormatter formatter;
+
+        DateTimeCodec(String dimensionName, CustomDimensionDefinition definition,
+                DateTimeFormatter formatter) {
+            super(dimensionName, definition);
+            this.formatter = formatter;
+        }
+
+        @Override
+        List<Object> parse(List<String> values) throws ServiceException {
+            List<Object> retval = new ArrayList<Object>();
+            for (String value : values) {
+                String[] parts = split(value);
+                try {
+                    if (parts.length == 1) {
+                        add(retval, DATE_TIME_PARSER.parseDateTime(parts[0]).toDate());
+                    } else if (parts.length == 3) {
+                        DateTime start = DATE_TIME_PARSER.parseDateTime(parts[0]);
+                        DateTime end = DATE_TIME_PARSER.parseDateTime(parts[1]);
+                        Period period = ISOPeriodFormat.standard().parsePeriod(
+                                parts[2].toUpperCase(Locale.ENGLISH));
+                        if (end.isBefore(start)) {
+                            throw invalidValue(value);
+                        }
+                        DateTime t = start;
+                        while (!t.isAfter(end)) {
+                            add(retval, t.toDate());
+                            DateTime next = t.plus(period);
+                            if (!next.isAfter(t)) {
+                                throw invalidValue(value);
+                            }
+                            t = next;
+                        }
+                    } else {
+                        throw invalidValue(value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw invalidValue(value);
+                }
+            }
+            return retval;
+        }
+
+        @Override
+        protected String format(Object value) {
+            return this.formatter.print(new DateTime(value, DateTimeZone.UTC));
+        }
+    }
+
+    private static class NumericRangeCodec extends CustomDimensionCodec {
+
+        private final String pattern;
+
+        NumericRangeCodec(String dimensionName, CustomDimensionDefinition definition) {
+            super(dimensionName, definition);
+            validateDecimalPattern(definition.getFormatPattern());
+            this.pattern = definition.getFormatPattern();
+        }
+
+        @Override
+        void encode(String paramName, List<String> values, LazyViewParameterMap to)
+                throws ServiceException {
+            BigDecimal min = null;
+            BigDecimal max = null;
+            for (Object value : parse(values)) {
+                NumberRange<?> range = (NumberRange<?>) value;
+                BigDecimal low = (BigDecimal) range.getMinValue();
+                BigDecimal high = (BigDecimal) range.getMaxValue();
+                min = min == null || low.compareTo(min) < 0 ? low : min;
+                max = max == null || high.compareTo(max) > 0 ? high : max;
+            }
+            if (min != null) {
+                to.put(paramName + "Start", formatDecimal(min, this.pattern));
+                to.put(paramName + "End", formatDecimal(max, this.pattern));
+            }
+        }
+
+        @Override
+        List<Object> parse(List<String> values) throws ServiceException {
+            List<Object> retval = new ArrayList<Object>(values.size());
+            for (String value : values) {
+                String[] parts = split(value);
+                BigDecimal low, high;
+                try {
+                    if (parts.length == 1) {
+                        low = high = new BigDecimal(parts[0]);
+                    } else if (parts.length == 2) {
+                        low = new BigDecimal(parts[0]);
+                        high = new BigDecimal(parts[1]);
+                    } else {
+                        throw invalidValue(value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw invalidValue(value);
+                }
+                if (high.compareTo(low) < 0) {
+                    throw invalidValue(value);
+                }
+                retval.add(new NumberRange<BigDecimal>(BigDecimal.class, low, high));
+            }
+            return retval;
+        }
+
+        @Override
+        protected String format(Object value) {
+            NumberRange<?> range = (NumberRange<?>) value;
+            return formatDecimal((BigDecimal) range.getMinValue(), this.pattern) + "/"
+                    + formatDecimal((BigDecimal) range.getMaxValue(), this.pattern);
+        }
+    }
+
+    private static class EnumeratedCodec extends CustomDimensionCodec {
+
+        private final Map<String, String> allowed;
+
+        EnumeratedCodec(String dimensionName, CustomDimensionDefinition definition) {
+            super(dimensionName, definition);
+            if (definition.getAllowedValues() == null || definition.getAllowedValues().isEmpty()) {
+                throw new IllegalArgumentException("No allowed values given for custom dimension "
+                        + dimensionName);
+            }
+            this.allowed = new HashMap<String, String>();
+            for (String value : definition.getAllowedValues()) {
+                this.allowed.put(value.toUpperCase(Locale.ENGLISH), value);
+            }
+        }
+
+        @Override
+        List<Object> parse(List<String> values) throws ServiceException {
+            List<Object> retval = new ArrayList<Object>(values.size());
+            for (String value : values) {
+                String v = this.allowed.get(value.trim().toUpperCase(Locale.ENGLISH));
+                if (v == null) {
+                    throw invalidValue(value);
+                }
+                if (!retval.contains(v)) {
+                    add(retval, v);
+                }
+            }
+            return retval;
+        }
+
+        @Override
+        protected String format(Object value) {
+            return (String) value;
+        }
+    }
+}
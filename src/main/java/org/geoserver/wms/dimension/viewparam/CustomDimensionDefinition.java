@@ -0,0 +1,94 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.List;
+
+/**
+ * Declares the type of a custom (DIM_) dimension. The values of a typed dimension are parsed, validated, expanded and normalised before they
+ * are passed as SQL View Parameters, so that the SQL view receives literals of the native type instead of arbitrary text:
+ * <ul>
+ * <li>{@link Type#INTEGER}: integers, with <code>min/max[/step]</code> ranges expanded into the individual values,</li>
+ * <li>{@link Type#DECIMAL}: decimal numbers, with <code>min/max/step</code> ranges expanded,</li>
+ * <li>{@link Type#DATETIME}: ISO 8601 date times, with <code>start/end/period</code> ranges expanded, formatted like the time view
+ * parameters,</li>
+ * <li>{@link Type#NUMERIC_RANGE}: numbers and <code>min/max</code> ranges, passed as the lowest and the highest value in the view parameters
+ * suffixed with "Start" and "End",</li>
+ * <li>{@link Type#ENUMERATED}: one of the allowed values, compared case insensitively and passed as declared.</li>
+ * </ul>
+ * A request with a value not matching the declaration is rejected with an InvalidDimensionValue exception.
+ */
+public class CustomDimensionDefinition {
+
+    public enum Type {
+        INTEGER, DECIMAL, DATETIME, NUMERIC_RANGE, ENUMERATED
+    }
+
+    static final int DEFAULT_MAX_VALUES = 1000;
+
+    private Type type;
+
+    private String formatPattern;
+
+    private List<String> allowedValues;
+
+    private Integer maxValues;
+
+    public CustomDimensionDefinition() {
+        this.type = null;
+        this.formatPattern = null;
+        this.allowedValues = null;
+        this.maxValues = null;
+    }
+
+    public CustomDimensionDefinition(Type type) {
+        this();
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getFormatPattern() {
+        return formatPattern;
+    }
+
+    /**
+     * Set the printf-style format (see {@link java.util.Formatter}) for the DECIMAL and NUMERIC_RANGE values. If null (default), the values
+     * are written in plain notation without trailing zeros.
+     *
+     * @param formatPattern
+     */
+    public void setFormatPattern(String formatPattern) {
+        this.formatPattern = formatPattern;
+    }
+
+    public List<String> getAllowedValues() {
+        return allowedValues;
+    }
+
+    /**
+     * Set the allowed values of an ENUMERATED dimension.
+     *
+     * @param allowedValues
+     */
+    public void setAllowedValues(List<String> allowedValues) {
+        this.allowedValues = allowedValues;
+    }
+
+    public Integer getMaxValues() {
+        return maxValues;
+    }
+
+    /**
+     * Set the maximum number of values a request may expand into. Default is 1000.
+     *
+     * @param maxValues
+     */
+    public void setMaxValues(Integer maxValues) {
+        this.maxValues = maxValues;
+    }
+}
@@ -0,0 +1,398 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.HttpErrorCodeException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+
+/**
+ * Admission control of the transformed GetMap requests by their estimated dimension cost, so that the requests for long time spans on heavy
+ * SQL views cannot take all the database connections from the interactive requests.
+ *
+ * The cost of a request for a layer is the weight of the layer multiplied by the number of requested times and elevations, with each range
+ * counting as one value plus one for each {@link #getTimeSpanUnitMillis()} or {@link #getElevationSpanUnit()} it covers. The requests with a
+ * cost up to {@link #getCheapCostLimit()} for all the layers are cheap, and are only limited by the optional cheap lane of
+ * {@link #getCheapPermits()} concurrent requests. The other requests are heavy, and take from the semaphore of each layer with a cost over
+ * the limit one permit for each cheap cost limit of their cost, up to all the {@link #getLayerPermits()} permits. A heavy request not
+ * admitted within {@link #getTimeoutMillis()} is answered with 503 Service Unavailable.
+ *
+ * The permits are taken in {@link DimensionSQLViewParamRequestTransformer#initRequest(GetMapRequest)}. The permits of a dispatched request are
+ * kept as an attribute of its servlet request, and released when the request fails or by {@link #finished(Request)} after the response has
+ * been written, as the streaming map outputs still read the SQL views while encoding, so this class must be declared as a bean of its own to
+ * be called by the dispatcher. The permits of a request transformed outside of the dispatcher are held by the transforming thread until
+ * {@link #release()}.
+ */
+public class DimensionAdmissionControl extends AbstractDispatcherCallback {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionAdmissionControl.class.getName());
+
+    private static final ThreadLocal<Admission> ADMISSION = new ThreadLocal<Admission>();
+
+    static final String ADMISSION_ATTRIBUTE = DimensionAdmissionControl.class.getName()
+            + ".admission";
+
+    private double cheapCostLimit;
+
+    private int cheapPermits;
+
+    private int layerPermits;
+
+    private long timeoutMillis;
+
+    private long timeSpanUnitMillis;
+
+    private double elevationSpanUnit;
+
+    private double defaultLayerWeight;
+
+    private Map<String, Double> layerWeights;
+
+    private volatile Semaphore cheapLane;
+
+    private final ConcurrentMap<String, Semaphore> layerLanes;
+
+    public DimensionAdmissionControl() {
+        this.cheapCostLimit = 10;
+        this.cheapPermits = 0;
+        this.layerPermits = 4;
+        this.timeoutMillis = 30000;
+        this.timeSpanUnitMillis = 24L * 60L * 60L * 1000L;
+        this.elevationSpanUnit = 0;
+        this.defaultLayerWeight = 1;
+        this.layerWeights = Collections.emptyMap();
+        this.cheapLane = null;
+        this.layerLanes = new ConcurrentHashMap<String, Semaphore>();
+    }
+
+    public double getCheapCostLimit() {
+        return cheapCostLimit;
+    }
+
+    /**
+     * Set the highest cost of the cheap requests. Default is 10.
+     *
+     * @param cheapCostLimit
+     */
+    public void setCheapCostLimit(double cheapCostLimit) {
+        if (cheapCostLimit <= 0) {
+            throw new IllegalArgumentException("The cheap cost limit must be positive");
+        }
+        this.cheapCostLimit = cheapCostLimit;
+    }
+
+    public int getCheapPermits() {
+        return cheapPermits;
+    }
+
+    /**
+     * Set the number of the concurrent cheap requests. If 0 (default), the number of the concurrent cheap requests is unlimited.
+     *
+     * @param cheapPermits
+     */
+    public synchronized void setCheapPermits(int cheapPermits) {
+        if (cheapPermits < 0) {
+            throw new IllegalArgumentException("The number of cheap permits must not be negative");
+        }
+        this.cheapPermits = cheapPermits;
+        this.cheapLane = cheapPermits > 0 ? new Semaphore(cheapPermits, true) : null;
+    }
+
+    public int getLayerPermits() {
+        return layerPermits;
+    }
+
+    /**
+     * Set the number of the permits of each layer for the heavy requests. Default is 4. The requests in progress release their permits to
+     * the previous semaphores.
+     *
+     * @param layerPermits
+     */
+    public synchronized void setLayerPermits(int layerPermits) {
+        if (layerPermits <= 0) {
+            throw new IllegalArgumentException("The number of layer permits must be positive");
+        }
+        this.layerPermits = layerPermits;
+        this.layerLanes.clear();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Set the longest time a request waits for admission. Default is 30 seconds.
+     *
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeSpanUnitMillis() {
+        return timeSpanUnitMillis;
+    }
+
+    /**
+     * Set the length of the time span counted as one additional time value. Default is one day, and 0 counts each time range as a single
+     * value.
+     *
+     * @param timeSpanUnitMillis
+     */
+    public void setTimeSpanUnitMillis(long timeSpanUnitMillis) {
+        this.timeSpanUnitMillis = timeSpanUnitMillis;
+    }
+
+    public double getElevationSpanUnit() {
+        return elevationSpanUnit;
+    }
+
+    /**
+     * Set the elevation span counted as one additional elevation value. If 0 (default), each elevation range counts as a single value.
+     *
+     * @param elevationSpanUnit
+     */
+    public void setElevationSpanUnit(double elevationSpanUnit) {
+        this.elevationSpanUnit = elevationSpanUnit;
+    }
+
+    public double getDefaultLayerWeight() {
+        return defaultLayerWeight;
+    }
+
+    /**
+     * Set the weight of the layers without a weight of their own. Default is 1, and 0 exempts the layers from admission control.
+     *
+     * @param defaultLayerWeight
+     */
+    public void setDefaultLayerWeight(double defaultLayerWeight) {
+        this.defaultLayerWeight = defaultLayerWeight;
+    }
+
+    public Map<String, Double> getLayerWeights() {
+        return layerWeights;
+    }
+
+    /**
+     * Set the cost weights of specific layers by prefixed layer name, such as 1 for a cheap view and 20 for a view over the archive.
+     *
+     * @param layerWeights
+     */
+    public void setLayerWeights(Map<String, Double> layerWeights) {
+        this.layerWeights = layerWeights != null ? new HashMap<String, Double>(layerWeights)
+                : Collections.<String, Double> emptyMap();
+    }
+
+    /**
+     * Returns the estimated dimension cost of the request, without the layer weights.
+     *
+     * @param request
+     * @return the number of the requested times multiplied by the number of the requested elevations, with the ranges counted by their span
+     */
+    double getDimensionCost(GetMapRequest request) {
+        double timeCost = 0;
+        if (request.getTime() != null) {
+            for (Object t : request.getTime()) {
+                timeCost += 1;
+                if (t instanceof DateRange && this.timeSpanUnitMillis > 0) {
+                    DateRange range = (DateRange) t;
+                    timeCost += (range.getMaxValue().getTime() - range.getMinValue().getTime())
+                            / (double) this.timeSpanUnitMillis;
+                }
+            }
+        }
+        double elevationCost = 0;
+        if (request.getElevation() != null) {
+            for (Object e : request.getElevation()) {
+                elevationCost += 1;
+                if (e instanceof NumberRange && this.elevationSpanUnit > 0) {
+                    NumberRange<?> range = (NumberRange<?>) e;
+                    elevationCost += (range.getMaximum() - range.getMinimum())
+                            / this.elevationSpanUnit;
+                }
+            }
+        }
+        return Math.max(timeCost, 1) * Math.max(elevationCost, 1);
+    }
+
+    /**
+     * Admits the request, waiting for the permits of a heavy request if needed. The permits are held by the current dispatched request until it
+     * finishes, or by the current thread until {@link #release()} outside of the dispatcher.
+     *
+     * @param request a transformed request
+     * @throws HttpErrorCodeException with code 503 if the request is not admitted within the timeout
+     */
+    public void admit(GetMapRequest request) throws HttpErrorCodeException {
+        // permits left behind by a request not finished through the callbacks:
+        release();
+        List<MapLayerInfo> layers = request.getLayers();
+        if (layers == null || layers.isEmpty()) {
+            return;
+        }
+        double dimensionCost = getDimensionCost(request);
+        Map<String, Integer> permits = new TreeMap<String, Integer>();
+        for (MapLayerInfo layer : layers) {
+            Double weight = this.layerWeights.get(layer.getName());
+            double cost = dimensionCost * (weight != null ? weight : this.defaultLayerWeight);
+            if (cost > this.cheapCostLimit) {
+                int n = (int) Math.min(Math.ceil(cost / this.cheapCostLimit), this.layerPermits);
+                Integer previous = permits.get(layer.getName());
+                permits.put(layer.getName(), previous != null ? Math.max(previous, n) : n);
+            }
+        }
+        Admission admission = new Admission();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+        try {
+            if (permits.isEmpty()) {
+                Semaphore lane = this.cheapLane;
+                if (lane != null) {
+                    acquire(admission, lane, 1, deadline, request);
+                }
+            } else {
+                // taken in the order of the layer names, so that the heavy requests cannot deadlock:
+                for (Map.Entry<String, Integer> e : permits.entrySet()) {
+                    acquire(admission, getLayerLane(e.getKey()), e.getValue(), deadline,
+                            request);
+                }
+            }
+        } catch (RuntimeException e) {
+            admission.release();
+            throw e;
+        }
+        if (!admission.semaphores.isEmpty()) {
+            HttpServletRequest httpRequest = getHttpRequest(Dispatcher.REQUEST.get());
+            if (httpRequest != null) {
+                httpRequest.setAttribute(ADMISSION_ATTRIBUTE, admission);
+            } else {
+                ADMISSION.set(admission);
+            }
+        }
+    }
+
+    private static HttpServletRequest getHttpRequest(Request owsRequest) {
+        return owsRequest != null ? owsRequest.getHttpRequest() : null;
+    }
+
+    private void acquire(Admission admission, Semaphore semaphore, int permits, long deadline,
+            GetMapRequest request) throws HttpErrorCodeException {
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(permits,
+                    Math.max(deadline - System.nanoTime(), 0L), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "GetMap request with dimension cost "
+                        + getDimensionCost(request) + " not admitted within " + this.timeoutMillis
+                        + " ms");
+            }
+            throw new HttpErrorCodeException(503,
+                    "Too many concurrent requests for the requested dimensions, try again later");
+        }
+        admission.add(semaphore, permits);
+    }
+
+    private Semaphore getLayerLane(String layerName) {
+        Semaphore retval = this.layerLanes.get(layerName);
+        if (retval == null) {
+            retval = new Semaphore(this.layerPermits, true);
+            Semaphore existing = this.layerLanes.putIfAbsent(layerName, retval);
+            if (existing != null) {
+                retval = existing;
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Releases the permits held by the current thread or the current dispatched request, if any.
+     */
+    public void release() {
+        Admission admission = ADMISSION.get();
+        if (admission != null) {
+            ADMISSION.remove();
+            admission.release();
+        }
+        release(Dispatcher.REQUEST.get());
+    }
+
+    /**
+     * Releases the permits held by the given dispatched request, if any.
+     *
+     * @param owsRequest
+     */
+    public void release(Request owsRequest) {
+        HttpServletRequest httpRequest = getHttpRequest(owsRequest);
+        if (httpRequest != null) {
+            Object admission = httpRequest.getAttribute(ADMISSION_ATTRIBUTE);
+            if (admission instanceof Admission) {
+                httpRequest.removeAttribute(ADMISSION_ATTRIBUTE);
+                ((Admission) admission).release();
+            }
+        }
+    }
+
+    /**
+     * Releases the permits of the request once its response has been written, or it failed.
+     */
+    @Override
+    public void finished(Request request) {
+        release(request);
+    }
+
+    /**
+     * Returns the number of available permits of the given layer for the heavy requests.
+     *
+     * @param layerName the prefixed layer name
+     * @return the available permits
+     */
+    public int getAvailableLayerPermits(String layerName) {
+        Semaphore lane = this.layerLanes.get(layerName);
+        return lane != null ? lane.availablePermits() : this.layerPermits;
+    }
+
+    /**
+     * The permits taken by a single request, released at most once.
+     */
+    private static final class Admission {
+
+        private final List<Semaphore> semaphores = new ArrayList<Semaphore>(2);
+
+        private final List<Integer> permits = new ArrayList<Integer>(2);
+
+        synchronized void add(Semaphore semaphore, int n) {
+            this.semaphores.add(semaphore);
+            this.permits.add(n);
+        }
+
+        synchronized void release() {
+            for (int i = this.semaphores.size() - 1; i >= 0; i--) {
+                this.semaphores.get(i).release(this.permits.get(i));
+            }
+            this.semaphores.clear();
+            this.permits.clear();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geoserver.catalog.LayerInfo;
+
+/**
+ * The layers and the dimension values of a single GetMap request prepared in a batch with
+ * {@link DimensionSQLViewParamRequestTransformer#getTransformedViewParams(List)}, such as a request of a tile seeding or pre-rendering job.
+ *
+ * The times are {@link java.util.Date} instants and {@link org.geotools.util.DateRange} ranges, and the elevations {@link Double} values and
+ * {@link org.geotools.util.NumberRange} ranges, like the parsed TIME and ELEVATION of a GetMapRequest. The custom dimension names are given
+ * without the DIM_ prefix and matched case insensitively.
+ */
+public class DimensionBatchRequest {
+
+    private final List<LayerInfo> layers;
+
+    private List<Object> time;
+
+    private String rawTime;
+
+    private List<Object> elevation;
+
+    private String rawElevation;
+
+    private String timeZone;
+
+    private final Map<String, List<String>> customDimensions;
+
+    private List<Map<String, String>> viewParams;
+
+    /**
+     * @param layers the request layers, requests with equal layer lists are matched only once per batch
+     */
+    public DimensionBatchRequest(List<LayerInfo> layers) {
+        if (layers == null) {
+            throw new IllegalArgumentException("No layers given");
+        }
+        this.layers = layers;
+        this.time = null;
+        this.rawTime = null;
+        this.elevation = null;
+        this.rawElevation = null;
+        this.timeZone = null;
+        this.customDimensions = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        this.viewParams = null;
+    }
+
+    public List<LayerInfo> getLayers() {
+        return layers;
+    }
+
+    public List<Object> getTime() {
+        return time;
+    }
+
+    public void setTime(List<Object> time) {
+        this.time = time;
+    }
+
+    public String getRawTime() {
+        return rawTime;
+    }
+
+    /**
+     * Set the TIME value as given in a request, used instead of the parsed times if it is a periodic interval and the periodic intervals are
+     * preserved.
+     * 
+     * @param rawTime
+     */
+    public void setRawTime(String rawTime) {
+        this.rawTime = rawTime;
+    }
+
+    public List<Object> getElevation() {
+        return elevation;
+    }
+
+    public void setElevation(List<Object> elevation) {
+        this.elevation = elevation;
+    }
+
+    public String getRawElevation() {
+        return rawElevation;
+    }
+
+    /**
+     * Set the ELEVATION value as given in a request, used instead of the parsed elevations if it is a periodic interval and the periodic
+     * intervals are preserved.
+     * 
+     * @param rawElevation
+     */
+    public void setRawElevation(String rawElevation) {
+        this.rawElevation = rawElevation;
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    /**
+     * Set the time zone for encoding the time values of the request, like the time zone request parameter of a GetMap request.
+     * 
+     * @param timeZone a time zone id or offset, or null for the configured time zones
+     */
+    public void setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * @return the custom dimension values by dimension name
+     */
+    public Map<String, List<String>> getCustomDimensions() {
+        return Collections.unmodifiableMap(customDimensions);
+    }
+
+    public List<String> getCustomDimension(String dimensionName) {
+        return customDimensions.get(dimensionName);
+    }
+
+    /**
+     * Set the values of a custom dimension, or remove the dimension if the values are null.
+     * 
+     * @param dimensionName the dimension name without the DIM_ prefix
+     * @param values
+     */
+    public void setCustomDimension(String dimensionName, List<String> values) {
+        if (values == null) {
+            this.customDimensions.remove(dimensionName);
+        } else {
+            this.customDimensions.put(dimensionName, values);
+        }
+    }
+
+    public List<Map<String, String>> getViewParams() {
+        return viewParams;
+    }
+
+    /**
+     * Set the existing view parameters of the request layers, one map for each layer.
+     * 
+     * @param viewParams
+     */
+    public void setViewParams(List<Map<String, String>> viewParams) {
+        this.viewParams = viewParams;
+    }
+
+    /**
+     * Returns a key equal for the requests with equal dimension values, for formatting the values only once per batch.
+     */
+    Object getDimensionKey() {
+        // a copy keeping the case insensitive order of the names, not to be changed by later setters:
+        Map<String, List<String>> customDimensions = new TreeMap<String, List<String>>(
+                String.CASE_INSENSITIVE_ORDER);
+        customDimensions.putAll(this.customDimensions);
+        return Arrays.asList(this.time, this.rawTime, this.elevation, this.rawElevation,
+                this.timeZone, customDimensions);
+    }
+}
@@ -0,0 +1,179 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Response;
+import org.geoserver.platform.HttpErrorCodeException;
+import org.geoserver.platform.Operation;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.styling.Style;
+
+/**
+ * Sets the ETag computed by {@link DimensionSQLViewParamRequestTransformer} from the transformed view parameters, the layer and style identities
+ * and the catalog modification state for the GetMap responses.
+ *
+ * The ETag is computed and compared with the If-None-Match request header when the GetMap request is initialized, so that conditional requests
+ * with a matching ETag are answered with 304 Not Modified before rendering. The computed ETag is passed to this dispatcher callback as a servlet
+ * request attribute, and set as a response header when the response is dispatched.
+ *
+ * The ETag is a weak validator: it changes when the request, the styles or the catalog change, but not when the data read by the SQL views
+ * change, so it should only be enabled for views whose output for the given parameter values does not change.
+ */
+public class DimensionETagCallback extends AbstractDispatcherCallback {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionETagCallback.class.getName());
+
+    static final String ETAG_ATTRIBUTE = DimensionETagCallback.class.getName() + ".etag";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        HttpServletRequest httpRequest = request.getHttpRequest();
+        HttpServletResponse httpResponse = request.getHttpResponse();
+        if (httpRequest != null && httpResponse != null) {
+            Object etag = httpRequest.getAttribute(ETAG_ATTRIBUTE);
+            if (etag != null) {
+                httpResponse.setHeader("ETag", etag.toString());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Computes the ETag for the given request with the transformed view parameters, and stores it for the response. If the request has a matching
+     * If-None-Match header, the request is answered with 304 Not Modified.
+     *
+     * @param request
+     * @param catalogState the catalog modification count
+     * @throws HttpErrorCodeException with code 304 if the If-None-Match header matches the computed ETag
+     */
+    static void checkNotModified(GetMapRequest request, long catalogState)
+            throws HttpErrorCodeException {
+        Request owsRequest = Dispatcher.REQUEST.get();
+        if (owsRequest == null || owsRequest.getHttpRequest() == null) {
+            return;
+        }
+        String etag = computeETag(request.getLayers(), request.getStyles(),
+                request.getViewParams(), catalogState);
+        HttpServletRequest httpRequest = owsRequest.getHttpRequest();
+        httpRequest.setAttribute(ETAG_ATTRIBUTE, etag);
+        if (matches(httpRequest.getHeader("If-None-Match"), etag)) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "If-None-Match matches ETag " + etag + ", not modified");
+            }
+            if (owsRequest.getHttpResponse() != null) {
+                owsRequest.getHttpResponse().setHeader("ETag", etag);
+            }
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * Computes a weak ETag from the catalog modification count, and the identities, the styles and the view parameters of each layer. The styles
+     * are hashed by name and content, so editing a style or requesting a different one changes the ETag. The view parameters are hashed in name
+     * order, so the result does not depend on the map iteration order. The lazy dimension values are hashed by their typed input values and
+     * format instead of the formatted values, so computing the ETag does not format them.
+     *
+     * @param layers
+     * @param styles the styles of the layers, or null
+     * @param viewParams
+     * @param catalogState the catalog modification count
+     * @return the weak ETag
+     */
+    static String computeETag(List<MapLayerInfo> layers, List<Style> styles,
+            List<Map<String, String>> viewParams, long catalogState) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(catalogState).append('\n');
+        digest.update(sb.toString().getBytes(UTF8));
+        for (int i = 0; i < layers.size(); i++) {
+            sb.setLength(0);
+            LayerInfo layer = layers.get(i).getLayerInfo();
+            if (layer != null) {
+                sb.append(layer.getId()).append('|');
+                if (layer.getResource() != null) {
+                    sb.append(layer.getResource().getQualifiedName());
+                }
+            } else {
+                sb.append(layers.get(i).getName());
+            }
+            sb.append('\n');
+            Style style = styles != null && i < styles.size() ? styles.get(i) : null;
+            if (style != null) {
+                sb.append(style.getName()).append('|').append(style.hashCode());
+            }
+            sb.append('\n');
+            if (viewParams != null && i < viewParams.size() && viewParams.get(i) != null) {
+                Map<String, String> params = viewParams.get(i);
+                if (params instanceof LazyViewParameterMap) {
+                    ((LazyViewParameterMap) params).appendInputs(sb);
+                } else {
+                    for (Map.Entry<String, String> e : new TreeMap<String, String>(params)
+                            .entrySet()) {
+                        sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+                    }
+                }
+            }
+            sb.append('\u0000');
+            digest.update(sb.toString().getBytes(UTF8));
+        }
+        byte[] hash = digest.digest();
+        char[] chars = new char[hash.length * 2 + 4];
+        chars[0] = 'W';
+        chars[1] = '/';
+        chars[2] = '"';
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2 + 3] = HEX[(hash[i] >> 4) & 0x0f];
+            chars[i * 2 + 4] = HEX[hash[i] & 0x0f];
+        }
+        chars[chars.length - 1] = '"';
+        return new String(chars);
+    }
+
+    /**
+     * Does the If-None-Match header value match the given ETag? Weak comparison is used, as required for If-None-Match.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        if (etag.startsWith("W/")) {
+            etag = etag.substring(2);
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
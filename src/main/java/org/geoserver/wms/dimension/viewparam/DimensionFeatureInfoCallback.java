@@ -0,0 +1,55 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetFeatureInfoRequest;
+import org.geoserver.wms.GetMapRequest;
+
+/**
+ * Injects the dimension view parameters into the GetFeatureInfo requests, the same way as {@link DimensionSQLViewParamRequestTransformer}
+ * injects them into the GetMap requests. The GetFeatureInfo requests carry the parameters of the map they are made for, so they are transformed
+ * through the GetMap part of the request with the same compiled configuration, and share the results of the GetMap requests through the
+ * transformation memo of the transformer, if one is set.
+ *
+ * GetLegendGraphic requests are not transformed, as the legends are not queried with view parameters.
+ */
+public class DimensionFeatureInfoCallback extends AbstractDispatcherCallback {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionFeatureInfoCallback.class.getName());
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    public DimensionFeatureInfoCallback(DimensionSQLViewParamRequestTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation)
+            throws ServiceException {
+        Object[] parameters = operation.getParameters();
+        if ("GetFeatureInfo".equalsIgnoreCase(operation.getId()) && parameters != null
+                && parameters.length > 0 && parameters[0] instanceof GetFeatureInfoRequest) {
+            GetMapRequest getMap = ((GetFeatureInfoRequest) parameters[0]).getGetMapRequest();
+            if (getMap != null) {
+                List<Map<String, String>> viewParams = this.transformer
+                        .getTransformedViewParams(getMap);
+                if (viewParams != null) {
+                    getMap.setViewParams(viewParams);
+                    if (log.isLoggable(Level.FINE)) {
+                        log.log(Level.FINE, "Injected dimension view parameters " + viewParams
+                                + " into GetFeatureInfo request");
+                    }
+                }
+            }
+        }
+        return operation;
+    }
+}
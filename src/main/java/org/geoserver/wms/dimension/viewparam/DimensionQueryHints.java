@@ -0,0 +1,32 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.factory.Hints;
+
+/**
+ * Query hint keys for the typed dimension values of a transformed GetMap request, set on the queries of the feature layers by
+ * {@link DimensionSQLViewParamRequestTransformer} if enabled. Data stores able to use the values natively can read them from the
+ * {@link org.geotools.data.Query} hints instead of parsing the formatted SQL view parameters back:
+ * <ul>
+ * <li>{@link #TIME}: the requested times as a list of {@link java.util.Date} and {@link org.geotools.util.DateRange} values,</li>
+ * <li>{@link #ELEVATION}: the requested elevations as a list of {@link Number} and {@link org.geotools.util.NumberRange} values, converted
+ * for the layer if an elevation conversion is configured,</li>
+ * <li>{@link #CUSTOM_DIMENSIONS}: the requested custom dimension values by upper case dimension name without the DIM_ prefix. The values
+ * of the typed dimensions are expanded into {@link Long}, {@link java.math.BigDecimal}, {@link java.util.Date},
+ * {@link org.geotools.util.NumberRange} or {@link String} values, and the values of the other dimensions are passed as strings.</li>
+ * </ul>
+ * The lists and maps are unmodifiable.
+ */
+public final class DimensionQueryHints {
+
+    public static final Hints.Key TIME = new Hints.Key(List.class);
+
+    public static final Hints.Key ELEVATION = new Hints.Key(List.class);
+
+    public static final Hints.Key CUSTOM_DIMENSIONS = new Hints.Key(Map.class);
+
+    private DimensionQueryHints() {
+    }
+}
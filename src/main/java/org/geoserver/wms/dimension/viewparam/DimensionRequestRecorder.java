@@ -0,0 +1,318 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.wms.GetMapRequest;
+
+/**
+ * Appends the transformed GetMap requests to a binary log for replaying them later with {@link DimensionRequestReplay}.
+ *
+ * The log consists of fixed size, memory-mapped segment files named <code>dimrec-NNNNNN.bin</code> in the log directory. Each segment starts with
+ * a magic number and a format version, followed by records each prefixed with the record length. A zero length marks the end of the records in a
+ * segment. The length is written after the record itself, so a record cut short by a crash is never read. When a segment is full, a new one is
+ * started and the oldest segments exceeding {@link #getMaxSegments()} are deleted.
+ *
+ * The requests are encoded and written by a single background thread, so the request threads neither format the view parameter values nor wait
+ * for each other. If more than {@link #QUEUE_SIZE} requests are waiting to be written, the new requests are not recorded.
+ */
+public class DimensionRequestRecorder {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionRequestRecorder.class.getName());
+
+    static final int MAGIC = 0x44565052;
+
+    static final int VERSION = 2;
+
+    static final int QUEUE_SIZE = 1024;
+
+    static final int HEADER_SIZE = 8;
+
+    private static final String PREFIX = "dimrec-";
+
+    private static final String SUFFIX = ".bin";
+
+    private File directory;
+
+    private int segmentSize;
+
+    private int maxSegments;
+
+    private int sequence;
+
+    private RandomAccessFile file;
+
+    private MappedByteBuffer buffer;
+
+    private boolean closed;
+
+    private final ThreadPoolExecutor writer;
+
+    public DimensionRequestRecorder() {
+        this.directory = null;
+        this.segmentSize = 64 * 1024 * 1024;
+        this.maxSegments = 10;
+        this.sequence = -1;
+        this.closed = false;
+        this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "wmsdim-request-recorder");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the directory to write the log segments into. Created if it does not exist.
+     *
+     * @param directory
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Set the size of a log segment file in bytes. Default is 64 MB.
+     *
+     * @param segmentSize
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Set the maximum number of the segment files to keep. Default is 10.
+     *
+     * @param maxSegments
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Records the given transformed request, before its view parameters are replaced with the transformed ones. The record is encoded and written
+     * in the background. Errors are logged, but never thrown to the caller.
+     *
+     * @param request
+     * @param viewParams the view parameters after the transformation
+     * @param durationNanos the time spent in the transformation
+     */
+    public void record(GetMapRequest request, List<Map<String, String>> viewParams,
+            long durationNanos) {
+        final RecordedRequest record;
+        try {
+            record = RecordedRequest.of(request, viewParams, durationNanos);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Could not record the GetMap request", e);
+            return;
+        }
+        this.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    append(record.encode());
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Could not record the GetMap request", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the requests recorded before have been written.
+     *
+     * @param timeoutMillis
+     * @return true if written within the timeout
+     */
+    boolean flush(long timeoutMillis) {
+        Future<?> marker = this.writer.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                // the records queued before are written
+            }
+        });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    synchronized void append(byte[] record) throws IOException {
+        if (this.closed) {
+            return;
+        }
+        if (record.length + 4 > this.segmentSize - HEADER_SIZE - 4) {
+            log.warning("Record of " + record.length + " bytes exceeds the segment size, skipped");
+            return;
+        }
+        if (this.buffer == null || this.buffer.remaining() < record.length + 8) {
+            rotate();
+        }
+        // the length is written last, so the readers stop at a partially written record:
+        int position = this.buffer.position();
+        this.buffer.position(position + 4);
+        this.buffer.put(record);
+        this.buffer.putInt(position, record.length);
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        if (!this.directory.exists() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create directory " + this.directory);
+        }
+        File[] segments = listSegments(this.directory);
+        if (this.sequence < 0) {
+            this.sequence = segments.length > 0 ? sequenceOf(segments[segments.length - 1]) : 0;
+        }
+        this.sequence++;
+        for (int i = 0; i <= segments.length - this.maxSegments; i++) {
+            if (!segments[i].delete()) {
+                log.warning("Could not delete old request log segment " + segments[i]);
+            }
+        }
+        File segment = new File(this.directory, String.format("%s%06d%s", PREFIX, this.sequence,
+                SUFFIX));
+        this.file = new RandomAccessFile(segment, "rw");
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                this.segmentSize);
+        this.buffer.putInt(MAGIC);
+        this.buffer.putInt(VERSION);
+        log.log(Level.FINE, "Started request log segment " + segment);
+    }
+
+    private void closeSegment() throws IOException {
+        if (this.buffer != null) {
+            this.buffer.force();
+            this.buffer = null;
+        }
+        if (this.file != null) {
+            this.file.close();
+            this.file = null;
+        }
+    }
+
+    /**
+     * Writes the pending records, then flushes and closes the current segment. Nothing is recorded after closing.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.writer.shutdown();
+        try {
+            if (!this.writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warning("Timed out writing the pending GetMap request records");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            this.closed = true;
+            closeSegment();
+        }
+    }
+
+    /**
+     * Returns the log segment files in the given directory, oldest first.
+     *
+     * @param directory
+     * @return the segment files
+     */
+    static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(PREFIX)
+                        && f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int sequenceOf(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Reads all the records in the log segments of the given directory, oldest first.
+     *
+     * @param directory
+     * @return the records
+     * @throws IOException
+     */
+    public static List<RecordedRequest> read(File directory) throws IOException {
+        List<RecordedRequest> retval = new ArrayList<RecordedRequest>();
+        for (File segment : listSegments(directory)) {
+            RandomAccessFile f = new RandomAccessFile(segment, "r");
+            try {
+                MappedByteBuffer buffer = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        f.length());
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                    log.warning("Not a request log segment: " + segment);
+                    continue;
+                }
+                int version = buffer.getInt();
+                if (version < 1 || version > VERSION) {
+                    log.warning("Unsupported request log version " + version + " in " + segment);
+                    continue;
+                }
+                while (buffer.remaining() >= 4) {
+                    int length = buffer.getInt();
+                    if (length <= 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    buffer.get(record);
+                    retval.add(RecordedRequest.decode(new DataInputStream(
+                            new ByteArrayInputStream(record)), version));
+                }
+            } finally {
+                f.close();
+            }
+        }
+        return retval;
+    }
+}
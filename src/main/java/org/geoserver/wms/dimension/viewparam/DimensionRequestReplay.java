@@ -0,0 +1,256 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+
+/**
+ * Offline tool for replaying the GetMap requests recorded by {@link DimensionRequestRecorder} through
+ * {@link DimensionSQLViewParamRequestTransformer#initRequest(GetMapRequest)}, reporting the throughput and the requests whose view parameters
+ * differ from the recorded ones.
+ *
+ * The recorded layers are replayed as plain feature type layers of an in-memory catalog, so SQL view definitions of the original layers are not
+ * available during the replay. The requests are replayed with the view parameters given by the client, through a transformer configured with
+ * the configuration persisted in the given GeoServer data directory.
+ *
+ * Usage: <code>DimensionRequestReplay &lt;log directory&gt; &lt;data directory&gt; [concurrency] [iterations]</code>
+ */
+public class DimensionRequestReplay {
+
+    /**
+     * Outcome of a replay run.
+     */
+    public static class Result {
+
+        private final long requests;
+
+        private final long mismatches;
+
+        private final long errors;
+
+        private final long elapsedNanos;
+
+        Result(long requests, long mismatches, long errors, long elapsedNanos) {
+            this.requests = requests;
+            this.mismatches = mismatches;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return the number of requests with view parameters differing from the recorded ones
+         */
+        public long getMismatches() {
+            return mismatches;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the replayed requests per second
+         */
+        public double getThroughput() {
+            return this.elapsedNanos > 0 ? this.requests * 1e9 / this.elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %.1f ms (%.0f requests/s), %d mismatches, %d errors",
+                    this.requests, this.elapsedNanos / 1e6, getThroughput(), this.mismatches,
+                    this.errors);
+        }
+    }
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    private final Catalog catalog;
+
+    private final ConcurrentMap<String, MapLayerInfo> layers;
+
+    public DimensionRequestReplay(DimensionSQLViewParamRequestTransformer transformer) {
+        this.transformer = transformer;
+        this.catalog = new CatalogImpl();
+        this.layers = new ConcurrentHashMap<String, MapLayerInfo>();
+    }
+
+    /**
+     * Replays the given records.
+     *
+     * @param records
+     * @param concurrency number of replaying threads
+     * @param iterations number of times to replay the records
+     * @return the result
+     * @throws InterruptedException
+     */
+    public Result replay(final List<RecordedRequest> records, int concurrency, int iterations)
+            throws InterruptedException {
+        final int total = records.size() * iterations;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong mismatches = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        // build the layers up front, not to measure it
+        for (RecordedRequest r : records) {
+            getLayers(r);
+        }
+        long start = System.nanoTime();
+        for (int t = 0; t < concurrency; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < total) {
+                            RecordedRequest r = records.get(i % records.size());
+                            try {
+                                GetMapRequest request = toRequest(r);
+                                transformer.initRequest(request);
+                                if (!sameViewParams(r.getViewParams(), request.getViewParams())) {
+                                    mismatches.incrementAndGet();
+                                }
+                            } catch (RuntimeException e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "dimension-replay-" + t);
+            thread.start();
+        }
+        done.await();
+        return new Result(total, mismatches.get(), errors.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Creates a new GetMap request with the recorded layers and dimension values.
+     *
+     * @param r
+     * @return the request
+     */
+    GetMapRequest toRequest(RecordedRequest r) {
+        GetMapRequest request = new GetMapRequest();
+        request.setLayers(getLayers(r));
+        request.setTime(new ArrayList<Object>(r.getTimes()));
+        request.setElevation(new ArrayList<Object>(r.getElevations()));
+        // the raw KVP of a real request is case insensitive:
+        Map<String, String> kvp = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        kvp.putAll(r.getDimensionKvp());
+        request.setRawKvp(kvp);
+        if (r.getInputViewParams() != null) {
+            List<Map<String, String>> viewParams = new ArrayList<Map<String, String>>();
+            for (Map<String, String> params : r.getInputViewParams()) {
+                viewParams.add(params != null ? new HashMap<String, String>(params) : null);
+            }
+            request.setViewParams(viewParams);
+        }
+        return request;
+    }
+
+    private List<MapLayerInfo> getLayers(RecordedRequest r) {
+        List<MapLayerInfo> retval = new ArrayList<MapLayerInfo>(r.getLayers().size());
+        for (RecordedRequest.RecordedLayer l : r.getLayers()) {
+            String key = l.getNamespaceURI() + "|" + l.getLocalName();
+            MapLayerInfo layer = this.layers.get(key);
+            if (layer == null) {
+                layer = createLayer(l);
+                MapLayerInfo existing = this.layers.putIfAbsent(key, layer);
+                if (existing != null) {
+                    layer = existing;
+                }
+            }
+            retval.add(layer);
+        }
+        return retval;
+    }
+
+    private MapLayerInfo createLayer(RecordedRequest.RecordedLayer l) {
+        CatalogFactory factory = this.catalog.getFactory();
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix(l.getNamespacePrefix() != null ? l.getNamespacePrefix() : "replay");
+        ns.setURI(l.getNamespaceURI() != null ? l.getNamespaceURI() : "http://replay");
+        FeatureTypeInfo ft = factory.createFeatureType();
+        ft.setName(l.getLocalName());
+        ft.setNativeName(l.getLocalName());
+        ft.setNamespace(ns);
+        LayerInfo layer = factory.createLayer();
+        layer.setResource(ft);
+        return new MapLayerInfo(layer);
+    }
+
+    /**
+     * Compares the recorded view parameters with the replayed ones.
+     */
+    static boolean sameViewParams(List<Map<String, String>> expected,
+            List<Map<String, String>> actual) {
+        if (expected == null || actual == null) {
+            return expected == actual;
+        }
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            Map<String, String> e = expected.get(i);
+            Map<String, String> a = actual.get(i);
+            if (e == null || a == null) {
+                if (e != a) {
+                    return false;
+                }
+            } else if (!e.equals(new HashMap<String, String>(a))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: DimensionRequestReplay <log directory> <data directory> [concurrency] [iterations]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        File dataDirectory = new File(args[1]);
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        List<RecordedRequest> records = DimensionRequestRecorder.read(directory);
+        System.out.println("Read " + records.size() + " recorded requests from " + directory);
+        if (records.isEmpty()) {
+            return;
+        }
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        new DimensionTransformerConfigStore(new GeoServerResourceLoader(dataDirectory),
+                transformer).load();
+        DimensionRequestReplay replay = new DimensionRequestReplay(transformer);
+        System.out.println(replay.replay(records, concurrency, iterations));
+    }
+}
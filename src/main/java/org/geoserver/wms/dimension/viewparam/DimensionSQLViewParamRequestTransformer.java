@@ -1,29 +1,29 @@
 package org.geoserver.wms.dimension.viewparam;
 
-import java.io.CharArrayWriter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
-import java.util.Formatter;
 import java.util.HashMap;
-import java.util.IllegalFormatException;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang.StringUtils;
 import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.LocalWorkspace;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.GetMapCallbackAdapter;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapLayerInfo;
-import org.geotools.util.DateRange;
-import org.geotools.util.NumberRange;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geotools.data.Query;
+import org.geotools.factory.Hints;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.Layer;
 import org.joda.time.DateTimeZone;
-import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.opengis.feature.type.Name;
 
 public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapter {
@@ -36,57 +36,126 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
     }
 
     public enum RangeLimitType {
-        START, END
+        START, END, STEP
     }
 
-    private Map<DimensionName, Map<RangeLimitType, String>> viewParameterNames;
+    private VirtualTableParameterIndex parameterIndex;
 
-    private Map<String, String> customDimensionParameterNames;
+    private LayerGroupMembershipIndex layerGroupIndex;
 
-    private List<Name> resourceNamesToMatch;
+    private TimeCachePolicy timeCachePolicy;
 
-    private List<String> customDimensionsToTransform;
+    private DimensionRequestRecorder requestRecorder;
 
-    private boolean transformTime;
+    private DimensionTraceBuffer traceBuffer;
 
-    private boolean transformElevation;
+    private AnimationSequenceDetector animationDetector;
 
-    private String timeFormatPattern;
+    private DimensionValueSketch valueSketch;
 
-    private DateTimeFormatter timeFormatter;
+    private DimensionAdmissionControl admissionControl;
 
-    private String elevationFormatPattern;
+    private DimensionTransformationMemo transformationMemo;
 
-    private CharArrayWriter elevationFormatterBuffer;
+    private ParallelListFormatter parallelFormatter;
 
-    private Formatter elevationFormatter;
+    private SharedTransformationCache sharedCache;
 
-    private DateTimeZone timeZone;
+    /**
+     * The compiled global configuration, also holding the configuration it was compiled from, so the configuration is read and replaced
+     * atomically.
+     */
+    private volatile TransformationPlan plan;
+
+    private Map<String, DimensionTransformerConfig> workspaceConfigs;
 
-    private boolean overrideExistingViewParams;
+    private volatile Map<String, TransformationPlan> workspacePlans;
+
+    /**
+     * The request transformed last by the current thread, for setting the Cache-Control header of its response.
+     */
+    private static final ThreadLocal<GetMapRequest> TRANSFORMED = new ThreadLocal<GetMapRequest>();
+
+    static final String DEFAULT_TIME_FORMAT_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZZ";
+
+    static final String DEFAULT_ELEVATION_FORMAT_PATTERN = "%.3f";
 
     public DimensionSQLViewParamRequestTransformer() {
-        this.viewParameterNames = new HashMap<DimensionName, Map<RangeLimitType, String>>(2);
-        this.customDimensionParameterNames = new HashMap<String, String>();
-        Map<RangeLimitType, String> forDim = new HashMap<RangeLimitType, String>(2);
-        forDim.put(RangeLimitType.START, "timeStart");
-        forDim.put(RangeLimitType.END, "timeEnd");
-        this.viewParameterNames.put(DimensionName.TIME, forDim);
-        forDim = new HashMap<RangeLimitType, String>(2);
-        forDim.put(RangeLimitType.START, "elevationStart");
-        forDim.put(RangeLimitType.END, "elevationEnd");
-        this.viewParameterNames.put(DimensionName.ELEVATION, forDim);
-        this.resourceNamesToMatch = null;
-        this.customDimensionsToTransform = null;
-        this.transformTime = true;
-        this.transformElevation = true;
-        this.timeFormatPattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZZ";
-        this.timeFormatter = ISODateTimeFormat.dateTime();
-        this.elevationFormatPattern = "%.3f";
-        this.elevationFormatterBuffer = new CharArrayWriter();
-        this.elevationFormatter = new Formatter(elevationFormatterBuffer);
-        this.timeZone = DateTimeZone.UTC;
-        this.overrideExistingViewParams = false;
+        this.parameterIndex = null;
+        this.layerGroupIndex = null;
+        this.timeCachePolicy = null;
+        this.requestRecorder = null;
+        this.traceBuffer = null;
+        this.animationDetector = null;
+        this.valueSketch = null;
+        this.admissionControl = null;
+        this.transformationMemo = null;
+        this.parallelFormatter = null;
+        this.sharedCache = null;
+        this.workspaceConfigs = new HashMap<String, DimensionTransformerConfig>();
+        this.workspacePlans = Collections.emptyMap();
+        this.plan = compile(withDefaults(new DimensionTransformerConfig()));
+    }
+
+    /**
+     * Compiles a plan for the given configuration, sharing the indexes, the time cache policy, the shared cache and the parallel formatter of
+     * this transformer.
+     * 
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    private TransformationPlan compile(DimensionTransformerConfig config)
+            throws IllegalArgumentException {
+        return new TransformationPlan(config, this.timeCachePolicy, this.parameterIndex,
+                this.layerGroupIndex, this.parallelFormatter, this.sharedCache);
+    }
+
+    /**
+     * Compiles the plans of the given workspace specific configurations, with the defaults in place of their null values.
+     */
+    private Map<String, TransformationPlan> compile(Map<String, DimensionTransformerConfig> configs)
+            throws IllegalArgumentException {
+        Map<String, TransformationPlan> retval = new HashMap<String, TransformationPlan>(
+                configs.size() * 2);
+        for (Map.Entry<String, DimensionTransformerConfig> e : configs.entrySet()) {
+            retval.put(e.getKey(), compile(withDefaults(e.getValue())));
+        }
+        return retval;
+    }
+
+    /**
+     * Replaces the global plan with one compiled from the given configuration. The workspace plans do not depend on the global configuration
+     * and are kept. Must be called while holding the lock of this transformer.
+     */
+    private void update(DimensionTransformerConfig config) throws IllegalArgumentException {
+        this.plan = compile(config);
+    }
+
+    /**
+     * Recompiles the global and the workspace plans after a change of the components they share. Must be called while holding the lock of this
+     * transformer.
+     */
+    private void recompile() {
+        TransformationPlan global = compile(this.plan.getConfig());
+        this.workspacePlans = compile(this.workspaceConfigs);
+        this.plan = global;
+    }
+
+    /**
+     * Returns the plan for the current request: the plan of the workspace of a virtual service request if the workspace has its own
+     * configuration, otherwise the global plan.
+     */
+    private TransformationPlan getPlan() {
+        Map<String, TransformationPlan> plans = this.workspacePlans;
+        if (!plans.isEmpty()) {
+            WorkspaceInfo workspace = LocalWorkspace.get();
+            if (workspace != null) {
+                TransformationPlan retval = plans.get(workspace.getName());
+                if (retval != null) {
+                    return retval;
+                }
+            }
+        }
+        return this.plan;
     }
 
     /**
@@ -98,7 +167,8 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return list of layer names to include, or null if any layer is matched.
      */
     public List<Name> getResourceNamesToMatch() {
-        return resourceNamesToMatch;
+        List<String> names = this.plan.getConfig().getResourceNamesToMatch();
+        return names != null ? TransformationPlan.toNames(names) : null;
     }
 
     /**
@@ -110,8 +180,56 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param layersToMatch
      */
-    public void setResourceNamesToMatch(List<Name> names) {
-        this.resourceNamesToMatch = names;
+    public synchronized void setResourceNamesToMatch(List<Name> names) {
+        List<String> retval = null;
+        if (names != null) {
+            retval = new ArrayList<String>(names.size());
+            for (Name name : names) {
+                retval.add(name.getNamespaceURI() != null ? name.getNamespaceURI() + ":"
+                        + name.getLocalPart() : name.getLocalPart());
+            }
+        }
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setResourceNamesToMatch(retval);
+        update(config);
+    }
+
+    /**
+     * Get the prefixed names of the layer groups whose member layers trigger dimension parameters to be copied as SQL View Parameters.
+     * 
+     * @return list of layer group names, or null if the layer groups are not matched.
+     */
+    public List<String> getLayerGroupNamesToMatch() {
+        return this.plan.getConfig().getLayerGroupNamesToMatch();
+    }
+
+    /**
+     * Set the prefixed names (workspace:group, or group for global groups) of the layer groups triggering dimension parameters to be copied as
+     * SQL View Parameters. A request triggers the transformation if any of the requested layers belongs to one of the groups, directly or
+     * through nested groups. Requires the layer group index to be set. If both this and the resource names to match are null (default), any
+     * GetMap request is transformed.
+     * 
+     * @param layerGroupNamesToMatch
+     */
+    public synchronized void setLayerGroupNamesToMatch(List<String> layerGroupNamesToMatch) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setLayerGroupNamesToMatch(layerGroupNamesToMatch != null ? new ArrayList<String>(
+                layerGroupNamesToMatch) : null);
+        update(config);
+    }
+
+    public LayerGroupMembershipIndex getLayerGroupIndex() {
+        return layerGroupIndex;
+    }
+
+    /**
+     * Set the index used for looking up the layer groups of the requested layers.
+     * 
+     * @param layerGroupIndex
+     */
+    public synchronized void setLayerGroupIndex(LayerGroupMembershipIndex layerGroupIndex) {
+        this.layerGroupIndex = layerGroupIndex;
+        recompile();
     }
 
     /**
@@ -120,7 +238,7 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return list of custom dimension names to include, or null any custom dimension (DIM_ prefix) is transformed.
      */
     public List<String> getCustomDimensionsToTransform() {
-        return customDimensionsToTransform;
+        return this.plan.getConfig().getCustomDimensionsToTransform();
     }
 
     /**
@@ -129,8 +247,11 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param customDimensionsToTransform
      */
-    public void setCustomDimensionsToTransform(List<String> customDimensionsToTransform) {
-        this.customDimensionsToTransform = customDimensionsToTransform;
+    public synchronized void setCustomDimensionsToTransform(List<String> customDimensionsToTransform) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setCustomDimensionsToTransform(customDimensionsToTransform != null
+                ? new ArrayList<String>(customDimensionsToTransform) : null);
+        update(config);
     }
 
     /**
@@ -139,7 +260,7 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return true if enabled
      */
     public boolean isTransformTimeEnabled() {
-        return transformTime;
+        return Boolean.TRUE.equals(this.plan.getConfig().getTransformTimeEnabled());
     }
 
     /**
@@ -147,8 +268,10 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param transformTime set true to enable
      */
-    public void setTransformTimeEnabled(boolean transformTime) {
-        this.transformTime = transformTime;
+    public synchronized void setTransformTimeEnabled(boolean transformTime) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTransformTimeEnabled(transformTime);
+        update(config);
     }
 
     /**
@@ -157,7 +280,7 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return true if enabled
      */
     public boolean isTransformElevationEnabled() {
-        return transformElevation;
+        return Boolean.TRUE.equals(this.plan.getConfig().getTransformElevationEnabled());
     }
 
     /**
@@ -165,8 +288,10 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param transformElevation set true to enable
      */
-    public void setTransformElevationEnabled(boolean transformElevation) {
-        this.transformElevation = transformElevation;
+    public synchronized void setTransformElevationEnabled(boolean transformElevation) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTransformElevationEnabled(transformElevation);
+        update(config);
     }
 
     /**
@@ -175,7 +300,7 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return
      */
     public DateTimeZone getTimeZone() {
-        return timeZone;
+        return this.plan.getTimeFormatter().getZone();
     }
 
     /**
@@ -183,8 +308,8 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param timeZone
      */
-    public void setTimeZone(DateTimeZone timeZone) {
-        this.timeZone = timeZone;
+    public synchronized void setTimeZone(DateTimeZone timeZone) {
+        setTimeZoneById(timeZone.getID());
     }
 
     /**
@@ -192,8 +317,8 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param millisOffset
      */
-    public void setTimeZoneByOffsetMillis(int millisOffset) {
-        this.timeZone = DateTimeZone.forOffsetMillis(millisOffset);
+    public synchronized void setTimeZoneByOffsetMillis(int millisOffset) {
+        setTimeZoneById(DateTimeZone.forOffsetMillis(millisOffset).getID());
     }
 
     /**
@@ -202,8 +327,19 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * 
      * @param millisOffset
      */
-    public void setTimeZoneById(String longTimeZoneId) {
-        this.timeZone = DateTimeZone.forID(longTimeZoneId);
+    public synchronized void setTimeZoneById(String longTimeZoneId) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTimeZoneId(longTimeZoneId);
+        update(config);
+    }
+
+    /**
+     * Returns the formatter for time valued SQL View Parameters.
+     * 
+     * @return the formatter
+     */
+    DateTimeFormatter getTimeFormatter() {
+        return this.plan.getTimeFormatter();
     }
 
     /**
@@ -213,7 +349,7 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @see org.joda.time.format.DateTimeFormat
      */
     public String getTimeFormatPattern() {
-        return timeFormatPattern;
+        return this.plan.getConfig().getTimeFormatPattern();
     }
 
     /**
@@ -223,9 +359,72 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @param pattern
      * @throws IllegalArgumentException
      */
-    public void setTimeFormatPattern(final String pattern) throws IllegalArgumentException {
-        this.timeFormatter = DateTimeFormat.forPattern(pattern).withZone(this.timeZone);
-        this.timeFormatPattern = pattern;
+    public synchronized void setTimeFormatPattern(final String pattern) throws IllegalArgumentException {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTimeFormatPattern(pattern);
+        update(config);
+    }
+
+    public String getTimeZoneParameter() {
+        return this.plan.getConfig().getTimeZoneParameter();
+    }
+
+    /**
+     * Set the name of the GetMap request parameter selecting the time zone for encoding the time dimension values of the request, overriding
+     * the configured time zone and the layer time zones. The value is a time zone id or offset, as accepted by {@link DateTimeZone#forID(String)},
+     * and an unknown time zone is rejected with an InvalidParameterValue exception. If null (default), the time zone cannot be selected in the
+     * request.
+     * 
+     * @param timeZoneParameter the parameter name, e.g. "TIMEZONE"
+     */
+    public synchronized void setTimeZoneParameter(String timeZoneParameter) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTimeZoneParameter(timeZoneParameter);
+        update(config);
+    }
+
+    public Map<String, String> getLayerTimeZones() {
+        Map<String, String> retval = this.plan.getConfig().getLayerTimeZones();
+        return retval != null ? retval : new HashMap<String, String>();
+    }
+
+    /**
+     * Set the time zones for encoding the time dimension values of specific layers, overriding the configured time zone. The layers are given by
+     * their prefixed names, and the time zones by their ids, as accepted by {@link DateTimeZone#forID(String)}.
+     * 
+     * @param layerTimeZones the time zone ids by layer name, or null for none
+     * @throws IllegalArgumentException if any of the time zones is not known
+     */
+    public synchronized void setLayerTimeZones(Map<String, String> layerTimeZones)
+            throws IllegalArgumentException {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setLayerTimeZones(layerTimeZones != null && !layerTimeZones.isEmpty()
+                ? new HashMap<String, String>(layerTimeZones) : null);
+        update(config);
+    }
+
+    public Map<String, ElevationConversion> getLayerElevationConversions() {
+        Map<String, ElevationConversion> retval = this.plan.getConfig()
+                .getLayerElevationConversions();
+        return retval != null ? retval : new HashMap<String, ElevationConversion>();
+    }
+
+    /**
+     * Set the conversions of the requested elevations into the units of the stored elevations of specific layers, e.g. from feet or pressure
+     * levels into metres. The layers are given by their prefixed names. The conversions are compiled when set, and applied before the
+     * elevations are formatted.
+     * 
+     * @param layerElevationConversions the conversions by layer name, or null for none
+     * @throws IllegalArgumentException if any of the conversions is not valid
+     */
+    public synchronized void setLayerElevationConversions(
+            Map<String, ElevationConversion> layerElevationConversions)
+            throws IllegalArgumentException {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setLayerElevationConversions(layerElevationConversions != null
+                && !layerElevationConversions.isEmpty() ? new HashMap<String, ElevationConversion>(
+                layerElevationConversions) : null);
+        update(config);
     }
 
     /**
@@ -234,326 +433,704 @@ public class DimensionSQLViewParamRequestTransformer extends GetMapCallbackAdapt
      * @return
      */
     public String getElevationFormatPattern() {
-        return elevationFormatPattern;
+        return this.plan.getConfig().getElevationFormatPattern();
     }
 
     /**
      * Define formatter for elevation view parameters using printf-style format (see {@link java.util.Formatter}). The default format is "%.3f".
      * 
      * @param pattern
+     * @throws IllegalArgumentException if the pattern is not valid
      */
-    public void setElevationFormatPattern(final String pattern) {
-        this.elevationFormatPattern = pattern;
-
+    public synchronized void setElevationFormatPattern(final String pattern)
+            throws IllegalArgumentException {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setElevationFormatPattern(pattern);
+        update(config);
     }
+
     public Map<DimensionName, Map<RangeLimitType, String>> getViewParameterNames() {
-        return viewParameterNames;
+        Map<DimensionName, Map<RangeLimitType, String>> retval = new HashMap<DimensionName, Map<RangeLimitType, String>>(
+                2);
+        for (DimensionName dimension : DimensionName.values()) {
+            Map<RangeLimitType, String> forDim = new HashMap<RangeLimitType, String>(3);
+            for (RangeLimitType type : RangeLimitType.values()) {
+                String name = getViewParameterName(dimension, type);
+                if (name != null) {
+                    forDim.put(type, name);
+                }
+            }
+            retval.put(dimension, forDim);
+        }
+        return retval;
     }
 
-    public void setViewParameterNames(
+    public synchronized void setViewParameterNames(
             Map<DimensionName, Map<RangeLimitType, String>> viewParameterNames) {
-        this.viewParameterNames = viewParameterNames;
+        DimensionTransformerConfig config = this.plan.getConfig();
+        for (DimensionName dimension : DimensionName.values()) {
+            Map<RangeLimitType, String> forDim = viewParameterNames != null ? viewParameterNames
+                    .get(dimension) : null;
+            for (RangeLimitType type : RangeLimitType.values()) {
+                setViewParameterName(config, dimension, type, forDim != null ? forDim.get(type)
+                        : null);
+            }
+        }
+        update(config);
     }
     
-    public void setViewParameterName(DimensionName dimension, RangeLimitType type,
+    public synchronized void setViewParameterName(DimensionName dimension, RangeLimitType type,
             String paramName) {
-        if (!this.viewParameterNames.containsKey(dimension)) {
-            this.viewParameterNames.put(dimension, new HashMap<RangeLimitType, String>());
-        }
-        this.viewParameterNames.get(dimension).put(type, paramName);
+        DimensionTransformerConfig config = this.plan.getConfig();
+        setViewParameterName(config, dimension, type, paramName);
+        update(config);
     }
 
-    public String getViewParameterName(DimensionName dimension, RangeLimitType type) {
-        if (this.viewParameterNames.containsKey(dimension)) {
-            return this.viewParameterNames.get(dimension).get(type);
+    private static void setViewParameterName(DimensionTransformerConfig config,
+            DimensionName dimension, RangeLimitType type, String paramName) {
+        if (dimension == DimensionName.TIME) {
+            if (type == RangeLimitType.START) {
+                config.setTimeStartParameter(paramName);
+            } else if (type == RangeLimitType.END) {
+                config.setTimeEndParameter(paramName);
+            } else {
+                config.setTimeStepParameter(paramName);
+            }
         } else {
-            return null;
+            if (type == RangeLimitType.START) {
+                config.setElevationStartParameter(paramName);
+            } else if (type == RangeLimitType.END) {
+                config.setElevationEndParameter(paramName);
+            } else {
+                config.setElevationStepParameter(paramName);
+            }
         }
     }
 
+    public String getViewParameterName(DimensionName dimension, RangeLimitType type) {
+        return this.plan.getViewParameterName(dimension, type);
+    }
+
     public Map<String, String> getCustomDimensionParameterNames() {
-        return customDimensionParameterNames;
+        Map<String, String> retval = this.plan.getConfig().getCustomDimensionParameterNames();
+        return retval != null ? retval : new HashMap<String, String>();
     }
 
-    public void setCustomDimensionParameterNames(Map<String, String> customDimensionParameterNames) {
-        this.customDimensionParameterNames = customDimensionParameterNames;
+    public synchronized void setCustomDimensionParameterNames(Map<String, String> customDimensionParameterNames) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setCustomDimensionParameterNames(customDimensionParameterNames != null
+                ? new HashMap<String, String>(customDimensionParameterNames) : null);
+        update(config);
     }
     
-    public void setCustomDimensionViewParameterName(String customDimensionName,
+    public synchronized void setCustomDimensionViewParameterName(String customDimensionName,
             String viewParameterName) {
-        this.customDimensionParameterNames.put(customDimensionName, viewParameterName);
+        DimensionTransformerConfig config = this.plan.getConfig();
+        Map<String, String> names = config.getCustomDimensionParameterNames() != null ? config
+                .getCustomDimensionParameterNames() : new HashMap<String, String>();
+        names.put(customDimensionName, viewParameterName);
+        config.setCustomDimensionParameterNames(names);
+        update(config);
     }
 
     public String getCustomDimensionViewParameterName(String dimensionName) {
-        if (this.customDimensionParameterNames.containsKey(dimensionName)) {
-            return this.customDimensionParameterNames.get(dimensionName);
-        } else {
-            return dimensionName;
-        }
+        return this.plan.getCustomDimensionViewParameterName(dimensionName);
+    }
+
+    public Map<String, CustomDimensionDefinition> getCustomDimensionTypes() {
+        Map<String, CustomDimensionDefinition> retval = this.plan.getConfig()
+                .getCustomDimensionTypes();
+        return retval != null ? retval : new HashMap<String, CustomDimensionDefinition>();
+    }
+
+    /**
+     * Set the type declarations of the custom dimensions by dimension name (without the DIM_ prefix). The values of the custom dimensions
+     * without a declaration are passed as text. The declarations are validated and compiled before they are taken into use.
+     * 
+     * @param customDimensionTypes
+     * @throws IllegalArgumentException if any of the declarations is not valid
+     */
+    public synchronized void setCustomDimensionTypes(
+            Map<String, CustomDimensionDefinition> customDimensionTypes)
+            throws IllegalArgumentException {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setCustomDimensionTypes(customDimensionTypes != null
+                && !customDimensionTypes.isEmpty() ? new HashMap<String, CustomDimensionDefinition>(
+                customDimensionTypes) : null);
+        update(config);
     }
 
     public boolean isOverrideExistingViewParams() {
-        return overrideExistingViewParams;
+        return Boolean.TRUE.equals(this.plan.getConfig().getOverrideExistingViewParams());
+    }
+
+    public synchronized void setOverrideExistingViewParams(boolean overrideExistingViewParams) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setOverrideExistingViewParams(overrideExistingViewParams);
+        update(config);
+    }
+
+    /**
+     * Are the dimension parameters injected only into the layers whose SQL view declares them?
+     * 
+     * @return true if enabled
+     */
+    public boolean isInjectDeclaredParametersOnly() {
+        return Boolean.TRUE.equals(this.plan.getConfig().getInjectDeclaredParametersOnly());
+    }
+
+    /**
+     * Enable or disable injecting the dimension parameters only into the layers with an SQL view declaring a parameter with the same name. If
+     * enabled, layers without an SQL view definition receive no dimension parameters. Disabled by default.
+     * 
+     * @param injectDeclaredParametersOnly set true to enable
+     */
+    public synchronized void setInjectDeclaredParametersOnly(boolean injectDeclaredParametersOnly) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setInjectDeclaredParametersOnly(injectDeclaredParametersOnly);
+        update(config);
+    }
+
+    public VirtualTableParameterIndex getParameterIndex() {
+        return parameterIndex;
+    }
+
+    /**
+     * Set the index used for looking up the parameter names declared by the SQL views of the layers.
+     * 
+     * @param parameterIndex
+     */
+    public synchronized void setParameterIndex(VirtualTableParameterIndex parameterIndex) {
+        this.parameterIndex = parameterIndex;
+        recompile();
+    }
+
+    /**
+     * Is the ETag computed from the transformed view parameters set for the GetMap responses?
+     * 
+     * @return true if enabled
+     */
+    public boolean isEtagEnabled() {
+        return this.plan.isEtagEnabled();
+    }
+
+    /**
+     * Enable or disable setting a weak ETag computed from the transformed view parameters, the layer and style identities and the catalog
+     * modification count for the GetMap responses. If enabled, conditional requests with a matching If-None-Match header are answered with 304
+     * Not Modified before rendering. The ETag does not change when the data read by the SQL views change, so it should only be enabled for
+     * views whose output for given parameter values does not change. Disabled by default.
+     * 
+     * @param etagEnabled set true to enable
+     */
+    public synchronized void setEtagEnabled(boolean etagEnabled) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setEtagEnabled(etagEnabled);
+        update(config);
+    }
+
+    /**
+     * Are the typed dimension values set as query hints for the feature layers of the transformed requests?
+     * 
+     * @return true if enabled
+     */
+    public boolean isTypedQueryHintsEnabled() {
+        return this.plan.isTypedQueryHintsEnabled();
+    }
+
+    /**
+     * Enable or disable setting the typed dimension values of the transformed requests as {@link DimensionQueryHints} on the queries of the
+     * feature layers, for data stores able to use them without parsing the view parameters. Disabled by default.
+     * 
+     * @param typedQueryHintsEnabled set true to enable
+     */
+    public synchronized void setTypedQueryHintsEnabled(boolean typedQueryHintsEnabled) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setTypedQueryHintsEnabled(typedQueryHintsEnabled);
+        update(config);
+    }
+
+    public TimeCachePolicy getTimeCachePolicy() {
+        return timeCachePolicy;
+    }
+
+    /**
+     * Set the policy for the Cache-Control header of the transformed GetMap responses based on the requested TIME values. The policy is shared by
+     * the workspace specific configurations. If null (default), the header is not changed.
+     * 
+     * @param timeCachePolicy
+     */
+    public synchronized void setTimeCachePolicy(TimeCachePolicy timeCachePolicy) {
+        this.timeCachePolicy = timeCachePolicy;
+        recompile();
+    }
+
+    /**
+     * Are single periodic TIME and ELEVATION intervals passed as start, end and step parameters instead of the expanded values?
+     * 
+     * @return true if enabled
+     */
+    public boolean isPreservePeriodicIntervals() {
+        return Boolean.TRUE.equals(this.plan.getConfig().getPreservePeriodicIntervals());
+    }
+
+    /**
+     * Enable or disable passing single periodic intervals (such as TIME=2016-01-01/2016-12-31/PT1H or ELEVATION=0/1000/100) as start, end and
+     * step view parameters instead of formatting every value of the interval. The step view parameter names are set with
+     * {@link RangeLimitType#STEP}, and default to "timeStep" and "elevationStep". Time steps are encoded as ISO 8601 periods. Disabled by
+     * default.
+     * 
+     * @param preservePeriodicIntervals set true to enable
+     */
+    public synchronized void setPreservePeriodicIntervals(boolean preservePeriodicIntervals) {
+        DimensionTransformerConfig config = this.plan.getConfig();
+        config.setPreservePeriodicIntervals(preservePeriodicIntervals);
+        update(config);
+    }
+
+    public DimensionRequestRecorder getRequestRecorder() {
+        return requestRecorder;
+    }
+
+    /**
+     * Set the recorder for logging the transformed requests for later replay. If null (default), the requests are not recorded. The recorded
+     * view parameter values are formatted by the background thread of the recorder.
+     * 
+     * @param requestRecorder
+     */
+    public void setRequestRecorder(DimensionRequestRecorder requestRecorder) {
+        this.requestRecorder = requestRecorder;
+    }
+
+    public DimensionTraceBuffer getTraceBuffer() {
+        return traceBuffer;
+    }
+
+    /**
+     * Set the buffer for keeping the traces of a sample of the requests. If null (default), the requests are not traced.
+     * 
+     * @param traceBuffer
+     */
+    public void setTraceBuffer(DimensionTraceBuffer traceBuffer) {
+        this.traceBuffer = traceBuffer;
+    }
+
+    public AnimationSequenceDetector getAnimationDetector() {
+        return animationDetector;
+    }
+
+    /**
+     * Set the detector of the time animations, for warming the caches ahead of the next frame. If null (default), the animations are not
+     * detected.
+     * 
+     * @param animationDetector
+     */
+    public void setAnimationDetector(AnimationSequenceDetector animationDetector) {
+        this.animationDetector = animationDetector;
+    }
+
+    public DimensionValueSketch getValueSketch() {
+        return valueSketch;
     }
 
-    public void setOverrideExistingViewParams(boolean overrideExistingViewParams) {
-        this.overrideExistingViewParams = overrideExistingViewParams;
+    /**
+     * Set the sketch for counting the most frequent dimension values and layer combinations of the transformed requests. If null (default),
+     * the values are not counted.
+     * 
+     * @param valueSketch
+     */
+    public void setValueSketch(DimensionValueSketch valueSketch) {
+        this.valueSketch = valueSketch;
     }
 
-   
+    public DimensionAdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    /**
+     * Set the admission control of the transformed requests by their dimension cost. If null (default), all the requests are admitted
+     * immediately.
+     * 
+     * @param admissionControl
+     */
+    public void setAdmissionControl(DimensionAdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public DimensionTransformationMemo getTransformationMemo() {
+        return transformationMemo;
+    }
+
+    /**
+     * Set the memo of the recent transformation results, shared by the GetMap and GetFeatureInfo requests with the same layers and dimension
+     * values. If null (default), every request is transformed.
+     * 
+     * @param transformationMemo
+     */
+    public void setTransformationMemo(DimensionTransformationMemo transformationMemo) {
+        this.transformationMemo = transformationMemo;
+    }
+
+    public ParallelListFormatter getParallelFormatter() {
+        return parallelFormatter;
+    }
 
-  
+    /**
+     * Set the formatter for the very large time and elevation lists, formatting the lists and the distinct values of the layers in parallel
+     * above its threshold. If null (default), all the values are formatted sequentially in the request thread.
+     * 
+     * @param parallelFormatter
+     */
+    public synchronized void setParallelFormatter(ParallelListFormatter parallelFormatter) {
+        this.parallelFormatter = parallelFormatter;
+        recompile();
+    }
+
+    public SharedTransformationCache getSharedCache() {
+        return sharedCache;
+    }
+
+    /**
+     * Set the cache of the transformation results in a memory-mapped file shared by the GeoServer instances of the host. The shared cache is
+     * consulted after the memo, and its results are formatted when cached. If null (default), the results are only kept in the memo.
+     * 
+     * @param sharedCache
+     */
+    public synchronized void setSharedCache(SharedTransformationCache sharedCache) {
+        this.sharedCache = sharedCache;
+        recompile();
+    }
+
+    /**
+     * Returns the current configuration.
+     * 
+     * @return a new configuration object, not affecting the transformer when changed
+     */
+    public DimensionTransformerConfig getConfig() {
+        return this.plan.getConfig();
+    }
+
+    /**
+     * Replaces the whole configuration. The configuration is validated before anything is changed, and the requests in progress keep using the
+     * previous configuration, so the new configuration takes effect atomically. Null values in the configuration are replaced by the defaults.
+     * 
+     * @param config
+     * @throws IllegalArgumentException if the time zone or the format patterns are not valid
+     */
+    public synchronized void applyConfig(DimensionTransformerConfig config)
+            throws IllegalArgumentException {
+        update(withDefaults(config));
+    }
+
+    /**
+     * Returns a copy of the given configuration with the null values replaced by the defaults. This is the only place defining the defaults,
+     * so a configuration read from the transformer and applied again produces the same output.
+     */
+    static DimensionTransformerConfig withDefaults(DimensionTransformerConfig config) {
+        DimensionTransformerConfig retval = new DimensionTransformerConfig(config);
+        retval.setTransformTimeEnabled(valueOf(config.getTransformTimeEnabled(), true));
+        retval.setTransformElevationEnabled(valueOf(config.getTransformElevationEnabled(), true));
+        retval.setOverrideExistingViewParams(valueOf(config.getOverrideExistingViewParams(),
+                false));
+        retval.setInjectDeclaredParametersOnly(valueOf(config.getInjectDeclaredParametersOnly(),
+                false));
+        retval.setPreservePeriodicIntervals(valueOf(config.getPreservePeriodicIntervals(), false));
+        retval.setEtagEnabled(valueOf(config.getEtagEnabled(), false));
+        retval.setTypedQueryHintsEnabled(valueOf(config.getTypedQueryHintsEnabled(), false));
+        retval.setTimeZoneId(valueOf(config.getTimeZoneId(), DateTimeZone.UTC.getID()));
+        retval.setTimeFormatPattern(valueOf(config.getTimeFormatPattern(),
+                DEFAULT_TIME_FORMAT_PATTERN));
+        retval.setElevationFormatPattern(valueOf(config.getElevationFormatPattern(),
+                DEFAULT_ELEVATION_FORMAT_PATTERN));
+        retval.setTimeStartParameter(valueOf(config.getTimeStartParameter(), "timeStart"));
+        retval.setTimeEndParameter(valueOf(config.getTimeEndParameter(), "timeEnd"));
+        retval.setTimeStepParameter(valueOf(config.getTimeStepParameter(), "timeStep"));
+        retval.setElevationStartParameter(valueOf(config.getElevationStartParameter(),
+                "elevationStart"));
+        retval.setElevationEndParameter(valueOf(config.getElevationEndParameter(), "elevationEnd"));
+        retval.setElevationStepParameter(valueOf(config.getElevationStepParameter(),
+                "elevationStep"));
+        return retval;
+    }
+
+    /**
+     * Returns the workspace specific configurations.
+     * 
+     * @return a new map of the configurations by workspace name
+     */
+    public synchronized Map<String, DimensionTransformerConfig> getWorkspaceConfigs() {
+        return new HashMap<String, DimensionTransformerConfig>(this.workspaceConfigs);
+    }
+
+    /**
+     * Set the workspace specific configurations by workspace name. The configuration of a workspace is used instead of the global configuration
+     * for the requests to the virtual services of the workspace (such as /geoserver/&lt;workspace&gt;/wms). Null values in a workspace
+     * configuration are replaced by the defaults, not by the global configuration.
+     * 
+     * @param workspaceConfigs
+     * @throws IllegalArgumentException if any of the configurations is not valid
+     */
+    public synchronized void setWorkspaceConfigs(
+            Map<String, DimensionTransformerConfig> workspaceConfigs)
+            throws IllegalArgumentException {
+        Map<String, DimensionTransformerConfig> configs = workspaceConfigs != null
+                ? new HashMap<String, DimensionTransformerConfig>(workspaceConfigs)
+                : new HashMap<String, DimensionTransformerConfig>();
+        this.workspacePlans = compile(configs);
+        this.workspaceConfigs = configs;
+    }
+
+    /**
+     * Returns the configuration specific to the given workspace.
+     * 
+     * @param workspace the workspace name
+     * @return the configuration, or null if the workspace uses the global configuration
+     */
+    public synchronized DimensionTransformerConfig getWorkspaceConfig(String workspace) {
+        return this.workspaceConfigs.get(workspace);
+    }
+
+    /**
+     * Replaces the configuration specific to the given workspace. The configuration is validated before anything is changed.
+     * 
+     * @param workspace the workspace name
+     * @param config the configuration, or null to use the global configuration for the workspace
+     * @throws IllegalArgumentException if the configuration is not valid
+     */
+    public synchronized void applyWorkspaceConfig(String workspace,
+            DimensionTransformerConfig config) throws IllegalArgumentException {
+        Map<String, DimensionTransformerConfig> configs = new HashMap<String, DimensionTransformerConfig>(
+                this.workspaceConfigs);
+        if (config != null) {
+            configs.put(workspace, config);
+        } else {
+            configs.remove(workspace);
+        }
+        setWorkspaceConfigs(configs);
+    }
+
+    private static <T> T valueOf(T value, T defaultValue) {
+        return value != null ? value : defaultValue;
+    }
 
     @Override
     public GetMapRequest initRequest(GetMapRequest request) {
-
-        List<MapLayerInfo> l = request.getLayers();
-        if (l != null && !l.isEmpty()) {
-            List<LayerInfo> layers = new ArrayList<LayerInfo>(l.size());
-            for (MapLayerInfo i : l) {
-                layers.add(i.getLayerInfo());
-            }
-            List<Map<String, String>> viewParams = request.getViewParams();
-            Map<String, String> dimViewParams = new HashMap<String, String>();
-            boolean shouldTransform = false;
-            int layerCount = layers.size();
-            // Logic: if resourceNameToMatch is null (default), always transform.
-            if (this.resourceNamesToMatch == null) {
-                shouldTransform = true;
-                log.log(Level.FINE, "Null layers to match, transform dims for any GetMap request");
-                // Else if it's not empty, only transform if the request contains one of these layers.
-            } else if (this.resourceNamesToMatch.size() > 0) {
-                for (int i = 0; i < layerCount; i++) {
-                    final LayerInfo layer = layers.get(i);
-                    if (this.resourceNamesToMatch
-                            .contains(layer.getResource().getQualifiedName())) {
-                        shouldTransform = true;
-                        log.log(Level.FINE, "Found triggering layer '" + layer.getName()
-                                + "' in GetMap request, enabling dim transformation");
-                        break;
-                    }
-                }
-            }
-            if (shouldTransform) {
-                if (this.transformTime) {
-                    log.log(Level.FINEST, "Time dimension transformation enabled");
-                    addToViewParams(this.getTimesAsViewParams(request.getTime()), dimViewParams);
-                }
-                if (this.transformElevation) {
-                    log.log(Level.FINEST, "Elevation dimension transformation enabled");
-                    addToViewParams(this.getElevationsAsViewParams(request.getElevation()),
-                            dimViewParams);
+        final DimensionRequestRecorder recorder = this.requestRecorder;
+        final DimensionTraceBuffer traceBuffer = this.traceBuffer;
+        final boolean trace = traceBuffer != null && traceBuffer.sample();
+        final boolean timed = recorder != null || trace;
+        long start = timed ? System.nanoTime() : 0L;
+        final TransformationPlan plan = getPlan();
+        List<Map<String, String>> viewParams = getTransformedViewParams(plan, request);
+        long transformNanos = timed ? System.nanoTime() - start : 0L;
+        if (viewParams != null && plan.getTimeCachePolicy() != null) {
+            TRANSFORMED.set(request);
+        } else {
+            TRANSFORMED.remove();
+        }
+        if (recorder != null && viewParams != null) {
+            // recorded before the view parameters of the request are replaced:
+            recorder.record(request, viewParams, transformNanos);
+        }
+        final AnimationSequenceDetector detector = this.animationDetector;
+        if (detector != null && viewParams != null) {
+            detector.record(request, this);
+        }
+        final DimensionValueSketch sketch = this.valueSketch;
+        if (sketch != null && viewParams != null) {
+            sketch.record(request);
+        }
+        long etagNanos = 0L;
+        try {
+            if (viewParams != null) {
+                request.setViewParams(viewParams);
+                if (log.isLoggable(Level.FINE)) {
+                    logViewParams(request, viewParams);
                 }
-                // Logic: if customDimensionsToTransform is null (default), include all custom dims.
-                if (this.customDimensionsToTransform == null) {
-                    log.log(Level.FINEST,
-                            "Null custom dims to match given, transforming any custom dimension");
-                    for (String dimensionName : getAllCustomDimensionNames(request)) {
-                        addToViewParams(this.getCustomDimensionAsViewParams(dimensionName,
-                                request.getCustomDimension(dimensionName)), dimViewParams);
-                    }
-                    // Else if it's not empty, only include the matching custom dims
-                } else if (this.customDimensionsToTransform.size() > 0) {
-                    for (String dimensionName : this.customDimensionsToTransform) {
-                        if (hasCustomDimensionSet(request, dimensionName)) {
-                            log.log(Level.FINE, "Found matching custom dimension '" + dimensionName
-                                    + "', transforming");
-                            addToViewParams(
-                                    this.getCustomDimensionAsViewParams(dimensionName,
-                                            request.getCustomDimension(dimensionName)),
-                                    dimViewParams);
-                        } else {
-                            log.log(Level.FINEST, "Skipping transformation for custom dimension '"
-                                    + dimensionName + "'");
+                if (plan.isEtagEnabled()) {
+                    long etagStart = trace ? System.nanoTime() : 0L;
+                    try {
+                        DimensionETagCallback.checkNotModified(request,
+                                plan.getCatalogModificationCount());
+                    } finally {
+                        if (trace) {
+                            etagNanos = System.nanoTime() - etagStart;
                         }
                     }
                 }
-                if (!dimViewParams.isEmpty()) {
-                    if (viewParams == null) {
-                        viewParams = new ArrayList<Map<String, String>>(layerCount);
-                        for (int i = 0; i < layerCount; i++) {
-                            viewParams.add(dimViewParams);
-                        }
-                    } else if (viewParams.size() == layerCount) {
-                        Map<String, String> layerParams;
-                        for (int i = 0; i < layerCount; i++) {
-                            layerParams = viewParams.get(i);
-                            addToViewParams(dimViewParams, layerParams);
-                            viewParams.set(i, layerParams);
-                        }
-                    } else {
-                        // The lengths should match at this point, throw error if not:
-                        String msg = layerCount + " layers in request, but " + viewParams.size()
-                                + " view params set. Cannot correctly append dimension view parameters .";
-                        throw new ServiceException(msg, getClass().getName());
-                    }
-                    request.setViewParams(viewParams);
-                    if (log.isLoggable(Level.FINE)) {
-                        logViewParams(request, viewParams);
-                    }
-
+                final DimensionAdmissionControl admission = this.admissionControl;
+                if (admission != null) {
+                    admission.admit(request);
                 }
-            } else {
-                log.log(Level.FINEST, "Not transforming dimension parameters");
+            }
+        } finally {
+            if (trace) {
+                traceBuffer.add(request, viewParams, transformNanos, etagNanos,
+                        System.nanoTime() - start);
             }
         }
         return super.initRequest(request);
 
     }
 
-    private void addToViewParams(Map<String, String> from, Map<String, String> to) {
-        if (from != null && to != null && !from.isEmpty()) {
-            if (this.overrideExistingViewParams) {
-                to.putAll(from);
-            } else {
-                for (String name : from.keySet()) {
-                    if (!to.containsKey(name)) {
-                        to.put(name, from.get(name));
-                    }
+    /**
+     * Returns the view parameters of the request layers with the dimension parameters injected. The request itself is not modified.
+     * 
+     * @param request
+     * @return the new view parameters for each request layer, or null if the request dimensions are not transformed
+     * @throws ServiceException if the number of the existing view parameters does not match the number of layers
+     */
+    public List<Map<String, String>> getTransformedViewParams(GetMapRequest request)
+            throws ServiceException {
+        return getTransformedViewParams(getPlan(), request);
+    }
+
+    private List<Map<String, String>> getTransformedViewParams(TransformationPlan plan,
+            GetMapRequest request) throws ServiceException {
+        DimensionTransformationMemo memo = this.transformationMemo;
+        SharedTransformationCache sharedCache = plan.getFingerprint() != null ? this.sharedCache
+                : null;
+        if ((memo == null && sharedCache == null) || request.getLayers() == null
+                || request.getLayers().isEmpty()) {
+            return plan.getTransformedViewParams(request);
+        }
+        Object key = null;
+        List<Map<String, String>> retval = null;
+        if (memo != null) {
+            key = DimensionTransformationMemo.getKey(plan, request);
+            retval = memo.get(key);
+        }
+        if (retval == null) {
+            byte[] sharedKey = null;
+            if (sharedCache != null) {
+                sharedKey = SharedTransformationCache.getKey(plan, request);
+                retval = sharedCache.get(sharedKey);
+            }
+            if (retval == null) {
+                retval = plan.getTransformedViewParams(request);
+                if (retval == null) {
+                    retval = Collections.<Map<String, String>> emptyList();
+                }
+                if (sharedCache != null) {
+                    sharedCache.put(sharedKey, retval);
                 }
             }
+            if (memo != null) {
+                memo.put(key, retval);
+            }
         }
+        return retval.isEmpty() ? null : retval;
     }
 
-    private String getFormattedElevationValue(Double elevation) throws IllegalFormatException {
-        String retval = null;
-        if (this.elevationFormatPattern != null) {
-            this.elevationFormatterBuffer.reset();
-            this.elevationFormatter.format(this.elevationFormatPattern, elevation);
-            retval = elevationFormatterBuffer.toString();
-        }
-        return retval;
+    /**
+     * Returns the view parameters of the request layers with the dimension parameters injected, always transforming the request without the
+     * memo.
+     */
+    List<Map<String, String>> transformViewParams(GetMapRequest request) throws ServiceException {
+        return getPlan().getTransformedViewParams(request);
     }
 
-    private String getFormattedTimeValue(Date dateTime) throws IllegalFormatException {
-        return this.timeFormatter.print(dateTime.getTime());
+    /**
+     * Returns the time zone selected in the given request with the configured time zone parameter, or null if none is selected.
+     */
+    String getRequestTimeZone(GetMapRequest request) {
+        return getPlan().getRequestTimeZone(request);
     }
 
-    private Map<String, String> getTimesAsViewParams(List<Object> requestedTimes) {
-        Map<String, String> retval = null;
-        List<String> startTimes;
-        List<String> endTimes;
-        if (requestedTimes != null) {
-            if (requestedTimes.isEmpty()) {
-                return Collections.emptyMap();
-            }
-            retval = new HashMap<String, String>(2);
-            startTimes = new ArrayList<String>();
-            endTimes = new ArrayList<String>();
-            String startStr;
-            Date start, end;
-            for (Object time : requestedTimes) {
-                if (time instanceof Date) {
-                    startStr = getFormattedTimeValue((Date) time);
-                    startTimes.add(startStr);
-                    endTimes.add(startStr);
-                } else if (time instanceof DateRange) {
-                    start = ((DateRange) time).getMinValue();
-                    end = ((DateRange) time).getMaxValue();
-                    startTimes.add(getFormattedTimeValue(start));
-                    endTimes.add(getFormattedTimeValue(end));
-                }
-            }
-
-            if (this.viewParameterNames.containsKey(DimensionName.TIME)) {
-                String startParam = this.getViewParameterName(DimensionName.TIME,
-                        RangeLimitType.START);
-                String endParam = this.getViewParameterName(DimensionName.TIME, RangeLimitType.END);
-
-                // In Java 8 this can be done using String.join(delimiter,collection):
-                if (startParam != null) {
-                    retval.put(startParam, StringUtils.join(startTimes, ','));
-                }
-                if (endParam != null) {
-                    retval.put(endParam, StringUtils.join(endTimes, ','));
-                }
-            }
-        }
-        return retval;
+    /**
+     * Returns the view parameters of the layers of each of the given requests with the dimension parameters injected, for preparing a large
+     * number of requests at once, e.g. when seeding tiles for many time steps. All the requests are transformed with the same configuration,
+     * the layers are matched once for each distinct layer list, and the dimension values are formatted once for each distinct set of values.
+     * The view parameter maps of requests with equal dimension values share the formatted values.
+     * 
+     * @param requests
+     * @return the new view parameters for the layers of each request, in the order of the requests, with null for each request whose dimensions
+     *         are not transformed
+     * @throws ServiceException if the number of the existing view parameters of a request does not match the number of its layers, or a
+     *         dimension value is not valid
+     */
+    public List<List<Map<String, String>>> getTransformedViewParams(
+            List<DimensionBatchRequest> requests) throws ServiceException {
+        return getPlan().getTransformedViewParams(requests);
     }
 
-    private Map<String, String> getElevationsAsViewParams(List<Object> requestedElevations) {
-        Map<String, String> retval = null;
-        List<String> startElevations;
-        List<String> endElevations;
-        if (requestedElevations != null) {
-            if (requestedElevations.isEmpty()) {
-                return Collections.emptyMap();
-            }
-            retval = new HashMap<String, String>(2);
-            startElevations = new ArrayList<String>();
-            endElevations = new ArrayList<String>();
-            String startStr;
-            Double start, end;
-            for (Object elev : requestedElevations) {
-                if (elev instanceof Double) {
-                    startStr = getFormattedElevationValue((Double) elev);
-                    startElevations.add(startStr);
-                    endElevations.add(startStr);
-                } else if (elev instanceof NumberRange) {
-                    start = new Double(((NumberRange<?>) elev).getMinimum());
-                    end = new Double(((NumberRange<?>) elev).getMaximum());
-                    startElevations.add(getFormattedElevationValue(start));
-                    endElevations.add(getFormattedElevationValue(end));
-                }
-            }
-            if (this.viewParameterNames.containsKey(DimensionName.ELEVATION)) {
-                String startParam = this.getViewParameterName(DimensionName.ELEVATION,
-                        RangeLimitType.START);
-                String endParam = this.getViewParameterName(DimensionName.ELEVATION,
-                        RangeLimitType.END);
-
-                // In Java 8 this can be done using String.join(delimiter,collection):
-                if (startParam != null) {
-                    retval.put(startParam, StringUtils.join(startElevations, ','));
+    /**
+     * Sets the typed dimension values as query hints of the feature layers of the transformed requests, if enabled.
+     */
+    @Override
+    public Layer beforeLayer(WMSMapContent mapContent, Layer layer) {
+        final TransformationPlan plan = getPlan();
+        if (plan.isTypedQueryHintsEnabled() && layer instanceof FeatureLayer
+                && mapContent.getRequest() != null) {
+            GetMapRequest request = mapContent.getRequest();
+            List<MapLayerInfo> requestLayers = request.getLayers();
+            if (requestLayers != null && !requestLayers.isEmpty()) {
+                FeatureLayer featureLayer = (FeatureLayer) layer;
+                Name name = featureLayer.getFeatureSource().getName();
+                List<LayerInfo> layers = new ArrayList<LayerInfo>(requestLayers.size());
+                LayerInfo matching = null;
+                for (MapLayerInfo i : requestLayers) {
+                    layers.add(i.getLayerInfo());
+                    if (matching == null && i.getLayerInfo() != null
+                            && i.getResource().getQualifiedName().equals(name)) {
+                        matching = i.getLayerInfo();
+                    }
                 }
-                if (endParam != null) {
-                    retval.put(endParam, StringUtils.join(endElevations, ','));
+                if (plan.isTransformationTriggered(layers)) {
+                    Hints hints = plan.getTypedDimensionHints(request, matching);
+                    if (!hints.isEmpty()) {
+                        // the query of the layer may be shared, so it is copied:
+                        Query query = new Query(featureLayer.getQuery());
+                        Hints merged = query.getHints() != null ? new Hints(query.getHints())
+                                : new Hints();
+                        merged.putAll(hints);
+                        query.setHints(merged);
+                        featureLayer.setQuery(query);
+                    }
                 }
             }
         }
-        return retval;
+        return super.beforeLayer(mapContent, layer);
     }
 
-    private Map<String, String> getCustomDimensionAsViewParams(String dimensionName,
-            List<String> requestedValues) {
-        Map<String, String> retval = null;
-        if (requestedValues != null) {
-            if (requestedValues.isEmpty()) {
-                return Collections.emptyMap();
+    /**
+     * Sets the Cache-Control header of the transformed GetMap responses according to the time cache policy, if one is set. The request is
+     * known to be transformed from {@link #initRequest(GetMapRequest)}, so the layers are not matched again.
+     *
+     * The admission permits of a dispatched request are kept until its response is written, as the map may still be streamed from the SQL
+     * views, and released by {@link DimensionAdmissionControl#finished(org.geoserver.ows.Request)}.
+     */
+    @Override
+    public WebMap finished(WebMap map) {
+        if (Dispatcher.REQUEST.get() == null) {
+            releaseAdmission();
+        }
+        GetMapRequest transformed = TRANSFORMED.get();
+        TRANSFORMED.remove();
+        final TimeCachePolicy policy = getPlan().getTimeCachePolicy();
+        if (policy != null && transformed != null && map != null && map.getMapContent() != null
+                && map.getMapContent().getRequest() == transformed) {
+            String cacheControl = policy.getCacheControl(transformed.getTime(),
+                    TransformationPlan.getRawKvpValue(transformed, "TIME"),
+                    System.currentTimeMillis());
+            if (cacheControl != null) {
+                map.setResponseHeader("Cache-Control", cacheControl);
             }
-            retval = new HashMap<String, String>(1);
-            String viewParamName = this.getCustomDimensionViewParameterName(dimensionName);
-            // In Java 8 this can be done using String.join(delimiter,collection):
-            retval.put("DIM_" + viewParamName, StringUtils.join(requestedValues, ','));
         }
-        return retval;
+        return super.finished(map);
     }
 
-    private static boolean hasCustomDimensionSet(GetMapRequest request, String dimensionName) {
-        boolean retval = false;
-        if (request.getRawKvp() != null) {
-            String key = "DIM_" + dimensionName;
-            String value = request.getRawKvp().get(key);
-            if (value != null) {
-                retval = true;
-            }
-        }
-        return retval;
+    @Override
+    public void failed(Throwable t) {
+        releaseAdmission();
+        TRANSFORMED.remove();
+        super.failed(t);
     }
 
-    private static List<String> getAllCustomDimensionNames(GetMapRequest request) {
-        List<String> retval = null;
-        Map<String, String> kvp = request.getRawKvp();
-        if (kvp != null) {
-            retval = new ArrayList<String>();
-            for (String name : kvp.keySet()) {
-                if (name.startsWith("DIM_")) {
-                    retval.add(name.substring(4));
-                }
-            }
+    private void releaseAdmission() {
+        final DimensionAdmissionControl admission = this.admissionControl;
+        if (admission != null) {
+            admission.release();
         }
-        return retval;
     }
 
     private static void logViewParams(GetMapRequest req, List<Map<String, String>> params) {
@@ -0,0 +1,23 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.restlet.Finder;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Resource;
+
+/**
+ * Finder for {@link DimensionSharedCacheResource}, mapped to <code>/rest/wmsdim-viewparam/sharedcache</code>.
+ */
+public class DimensionSharedCacheFinder extends Finder {
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    public DimensionSharedCacheFinder(DimensionSQLViewParamRequestTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public Resource findTarget(Request request, Response response) {
+        return new DimensionSharedCacheResource(getContext(), request, response, this.transformer);
+    }
+}
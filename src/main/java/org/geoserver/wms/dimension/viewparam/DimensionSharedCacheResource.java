@@ -0,0 +1,55 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.RestletException;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * REST resource for reading (GET) the statistics of the {@link SharedTransformationCache} of the transformer as XML or JSON, and for removing
+ * the cached results of all the instances sharing the cache file (DELETE), e.g. after changing an SQL view outside the catalog. Responds with
+ * 404 Not Found if the transformer has no shared cache.
+ */
+public class DimensionSharedCacheResource extends ReflectiveResource {
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    public DimensionSharedCacheResource(Context context, Request request, Response response,
+            DimensionSQLViewParamRequestTransformer transformer) {
+        super(context, request, response);
+        this.transformer = transformer;
+    }
+
+    private SharedTransformationCache getSharedCache() {
+        SharedTransformationCache retval = this.transformer.getSharedCache();
+        if (retval == null) {
+            throw new RestletException("No shared cache configured",
+                    Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        return retval;
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        return getSharedCache().getStatistics();
+    }
+
+    @Override
+    public boolean allowDelete() {
+        return true;
+    }
+
+    @Override
+    public void handleDelete() {
+        getSharedCache().clear();
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("sharedCache", SharedTransformationCache.Statistics.class);
+    }
+}
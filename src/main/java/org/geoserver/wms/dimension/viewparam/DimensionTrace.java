@@ -0,0 +1,123 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trace record of a single GetMap request seen by the transformer, kept by {@link DimensionTraceBuffer}: the requested layers and dimension
+ * values, whether the request was transformed, the resulting view parameters and the time spent in the transformation phases.
+ */
+public class DimensionTrace {
+
+    private long sequence;
+
+    private long timestamp;
+
+    private String workspace;
+
+    private List<String> layers;
+
+    private Map<String, String> dimensions;
+
+    private boolean transformed;
+
+    private List<Map<String, String>> viewParams;
+
+    private long transformNanos;
+
+    private long etagNanos;
+
+    private long totalNanos;
+
+    DimensionTrace() {
+    }
+
+    DimensionTrace(long sequence, long timestamp, String workspace, List<String> layers,
+            Map<String, String> dimensions, boolean transformed,
+            List<Map<String, String>> viewParams, long transformNanos, long etagNanos,
+            long totalNanos) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.workspace = workspace;
+        this.layers = layers;
+        this.dimensions = dimensions;
+        this.transformed = transformed;
+        this.viewParams = viewParams;
+        this.transformNanos = transformNanos;
+        this.etagNanos = etagNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Returns a copy of this trace with the view parameters formatted into plain maps, for serialising the trace.
+     *
+     * @return the copy
+     */
+    DimensionTrace materialize() {
+        List<Map<String, String>> params = null;
+        if (this.viewParams != null) {
+            params = new ArrayList<Map<String, String>>(this.viewParams.size());
+            for (Map<String, String> p : this.viewParams) {
+                params.add(p != null ? new LinkedHashMap<String, String>(p) : null);
+            }
+        }
+        return new DimensionTrace(this.sequence, this.timestamp, this.workspace, this.layers,
+                this.dimensions, this.transformed, params, this.transformNanos, this.etagNanos,
+                this.totalNanos);
+    }
+
+    /**
+     * @return the sequence number of the trace in the buffer
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the local workspace of the request, or null for the global services
+     */
+    public String getWorkspace() {
+        return workspace;
+    }
+
+    public List<String> getLayers() {
+        return layers != null ? layers : Collections.<String> emptyList();
+    }
+
+    /**
+     * @return the raw TIME, ELEVATION and DIM_ request parameters
+     */
+    public Map<String, String> getDimensions() {
+        return dimensions != null ? dimensions : Collections.<String, String> emptyMap();
+    }
+
+    public boolean isTransformed() {
+        return transformed;
+    }
+
+    /**
+     * @return the view parameters for each layer after the transformation, or null if the request was not transformed
+     */
+    public List<Map<String, String>> getViewParams() {
+        return viewParams;
+    }
+
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    public long getEtagNanos() {
+        return etagNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+}
@@ -0,0 +1,149 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+
+/**
+ * Fixed size ring buffer of {@link DimensionTrace} records of a sample of the requests, for inspecting live transformations without enabling
+ * FINE logging. Adding a trace is lock-free: the newest traces overwrite the oldest ones. The sampling decision is made with a thread local
+ * random number, so requests not sampled cost a single random number.
+ *
+ * The view parameters of the traced requests are kept as they are, and only formatted when the traces are read.
+ */
+public class DimensionTraceBuffer implements DimensionTraceBufferMBean {
+
+    private final AtomicReferenceArray<DimensionTrace> traces;
+
+    private final AtomicLong sequence;
+
+    private volatile double sampleRate;
+
+    public DimensionTraceBuffer() {
+        this(256);
+    }
+
+    /**
+     * @param capacity the number of traces kept
+     */
+    public DimensionTraceBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Trace buffer capacity must be positive");
+        }
+        this.traces = new AtomicReferenceArray<DimensionTrace>(capacity);
+        this.sequence = new AtomicLong();
+        this.sampleRate = 0.01;
+    }
+
+    @Override
+    public int getCapacity() {
+        return this.traces.length();
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the fraction of the requests to trace, between 0 (none) and 1 (all). Default is 0.01.
+     *
+     * @param sampleRate
+     */
+    @Override
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Decides whether the current request is traced.
+     *
+     * @return true if the request should be traced
+     */
+    public boolean sample() {
+        double rate = this.sampleRate;
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * Adds a trace of the given request.
+     *
+     * @param request
+     * @param viewParams the view parameters after the transformation, or null if not transformed
+     * @param transformNanos the time spent computing the view parameters
+     * @param etagNanos the time spent computing the ETag
+     * @param totalNanos the total time spent in the transformer
+     */
+    public void add(GetMapRequest request, List<Map<String, String>> viewParams,
+            long transformNanos, long etagNanos, long totalNanos) {
+        List<String> layers = new ArrayList<String>();
+        if (request.getLayers() != null) {
+            for (MapLayerInfo layer : request.getLayers()) {
+                layers.add(layer.getName());
+            }
+        }
+        Map<String, String> dimensions = new LinkedHashMap<String, String>();
+        if (request.getRawKvp() != null) {
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                String key = e.getKey().toUpperCase();
+                if ("TIME".equals(key) || "ELEVATION".equals(key) || key.startsWith("DIM_")) {
+                    dimensions.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        long seq = this.sequence.getAndIncrement();
+        this.traces.set((int) (seq % this.traces.length()), new DimensionTrace(seq,
+                System.currentTimeMillis(), workspace != null ? workspace.getName() : null,
+                layers, dimensions, viewParams != null, viewParams, transformNanos, etagNanos,
+                totalNanos));
+    }
+
+    /**
+     * Returns the newest traces, newest first, with the view parameters formatted.
+     *
+     * @param limit the maximum number of traces to return
+     * @return the traces
+     */
+    public List<DimensionTrace> getTraces(int limit) {
+        int capacity = this.traces.length();
+        long last = this.sequence.get() - 1;
+        int count = (int) Math.min(Math.min(limit, capacity), last + 1);
+        List<DimensionTrace> retval = new ArrayList<DimensionTrace>(Math.max(count, 0));
+        for (long seq = last; seq > last - count; seq--) {
+            DimensionTrace trace = this.traces.get((int) (seq % capacity));
+            // skip the slots not yet written, or already overwritten by newer traces:
+            if (trace != null && trace.getSequence() == seq) {
+                retval.add(trace.materialize());
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public long getTraceCount() {
+        return this.sequence.get();
+    }
+
+    /**
+     * Removes all the traces.
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < this.traces.length(); i++) {
+            this.traces.set(i, null);
+        }
+    }
+}
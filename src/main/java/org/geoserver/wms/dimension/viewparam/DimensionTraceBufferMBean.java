@@ -0,0 +1,21 @@
+package org.geoserver.wms.dimension.viewparam;
+
+/**
+ * JMX management interface of {@link DimensionTraceBuffer}, for changing the sample rate at runtime. The traces themselves are read through
+ * the REST API.
+ */
+public interface DimensionTraceBufferMBean {
+
+    double getSampleRate();
+
+    void setSampleRate(double sampleRate);
+
+    int getCapacity();
+
+    /**
+     * @return the number of traces added since startup
+     */
+    long getTraceCount();
+
+    void clear();
+}
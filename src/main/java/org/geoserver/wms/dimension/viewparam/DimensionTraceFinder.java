@@ -0,0 +1,23 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.restlet.Finder;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Resource;
+
+/**
+ * Finder for {@link DimensionTraceResource}, mapped to <code>/rest/wmsdim-viewparam/traces</code>.
+ */
+public class DimensionTraceFinder extends Finder {
+
+    private final DimensionTraceBuffer traceBuffer;
+
+    public DimensionTraceFinder(DimensionTraceBuffer traceBuffer) {
+        this.traceBuffer = traceBuffer;
+    }
+
+    @Override
+    public Resource findTarget(Request request, Response response) {
+        return new DimensionTraceResource(getContext(), request, response, this.traceBuffer);
+    }
+}
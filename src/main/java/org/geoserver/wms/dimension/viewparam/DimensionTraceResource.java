@@ -0,0 +1,62 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.RestletException;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * REST resource for reading (GET) the traces kept by {@link DimensionTraceBuffer} as XML or JSON, newest first, and for removing them
+ * (DELETE). The number of traces returned can be limited with the <code>limit</code> query parameter.
+ */
+public class DimensionTraceResource extends ReflectiveResource {
+
+    private final DimensionTraceBuffer traceBuffer;
+
+    public DimensionTraceResource(Context context, Request request, Response response,
+            DimensionTraceBuffer traceBuffer) {
+        super(context, request, response);
+        this.traceBuffer = traceBuffer;
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        int limit = this.traceBuffer.getCapacity();
+        String value = getRequest().getResourceRef().getQueryAsForm().getFirstValue("limit");
+        if (value != null) {
+            try {
+                limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new RestletException("Invalid limit: " + value,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+            if (limit < 0) {
+                throw new RestletException("Invalid limit: " + value,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+        }
+        return this.traceBuffer.getTraces(limit);
+    }
+
+    @Override
+    public boolean allowDelete() {
+        return true;
+    }
+
+    @Override
+    public void handleDelete() {
+        this.traceBuffer.clear();
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("traces", ArrayList.class);
+        xstream.alias("trace", DimensionTrace.class);
+    }
+}
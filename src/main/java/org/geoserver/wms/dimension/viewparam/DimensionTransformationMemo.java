@@ -0,0 +1,181 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+
+/**
+ * Memo of the recent transformation results of {@link DimensionSQLViewParamRequestTransformer}, shared by the GetMap requests and the
+ * GetFeatureInfo requests made for the displayed maps. The results are keyed by the compiled configuration, the request layers, the existing
+ * view parameters and the requested dimension values, so a configuration change never returns a stale result.
+ *
+ * The keys also hold the generations of the catalog indexes of the plan, so the results computed before a change of the catalog resources
+ * or layer groups, such as the declared SQL view parameters or the group memberships, are not returned.
+ *
+ * The memo is split into segments, each a small LRU map of its own, so the concurrent requests rarely wait for each other. Each request gets
+ * copies of the memoised view parameter maps sharing their lazy values, so the values are formatted at most once, and changing the view
+ * parameters of one request does not change the result memoised for the others. The requests not transformed are memoised as empty lists.
+ *
+ * The keys refer to the plans by their sequence numbers, so the plans replaced by a configuration change are not kept alive by the memo.
+ */
+public class DimensionTransformationMemo {
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The request parameters not affecting the view parameters, left out of the keys so that the GetFeatureInfo requests share the results
+     * of the GetMap requests.
+     */
+    static final Set<String> IGNORED_PARAMETERS = new HashSet<String>(Arrays.asList(
+            "SERVICE", "VERSION", "REQUEST", "LAYERS", "QUERY_LAYERS", "STYLES", "SRS", "CRS",
+            "BBOX", "WIDTH", "HEIGHT", "FORMAT", "INFO_FORMAT", "TRANSPARENT", "BGCOLOR",
+            "EXCEPTIONS", "X", "Y", "I", "J", "FEATURE_COUNT", "BUFFER", "TILED", "TILESORIGIN",
+            "FORMAT_OPTIONS", "VIEWPARAMS", "_"));
+
+    private final Segment[] segments;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    public DimensionTransformationMemo() {
+        this(1024);
+    }
+
+    /**
+     * @param maxEntries the maximum number of results kept
+     */
+    public DimensionTransformationMemo(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of entries must be positive");
+        }
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(Math.max(maxEntries / SEGMENTS, 1));
+        }
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Returns the key of the transformation of the given request with the given plan.
+     */
+    static Object getKey(TransformationPlan plan, GetMapRequest request) {
+        List<String> layers = new ArrayList<String>(request.getLayers().size());
+        for (MapLayerInfo layer : request.getLayers()) {
+            layers.add(layer.getName());
+        }
+        Map<String, String> dimensions = new TreeMap<String, String>();
+        if (request.getRawKvp() != null) {
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                String name = e.getKey().toUpperCase(Locale.ENGLISH);
+                // the time zone parameter may have any name, so all the other parameters are included:
+                if (!IGNORED_PARAMETERS.contains(name)) {
+                    dimensions.put(name, e.getValue());
+                }
+            }
+        }
+        return Arrays.<Object> asList(plan.getSequence(), plan.getCatalogGeneration(), layers,
+                request.getViewParams(), request.getTime(), request.getElevation(), dimensions);
+    }
+
+    /**
+     * Returns the memoised result for the given key.
+     *
+     * @param key
+     * @return a copy of the view parameters, or null if not memoised
+     */
+    List<Map<String, String>> get(Object key) {
+        List<Map<String, String>> retval = segmentFor(key).get(key);
+        if (retval == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return copy(retval);
+    }
+
+    /**
+     * Memoises a copy of the given view parameters.
+     *
+     * @param key
+     * @param viewParams
+     */
+    void put(Object key, List<Map<String, String>> viewParams) {
+        segmentFor(key).put(key, copy(viewParams));
+    }
+
+    /**
+     * Copies the view parameter maps, sharing their lazy values.
+     */
+    private static List<Map<String, String>> copy(List<Map<String, String>> viewParams) {
+        List<Map<String, String>> retval = new ArrayList<Map<String, String>>(viewParams.size());
+        for (Map<String, String> params : viewParams) {
+            retval.add(params != null ? new LazyViewParameterMap(params) : null);
+        }
+        return retval;
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.segments[h & (SEGMENTS - 1)];
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Removes all the memoised results.
+     */
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    private static final class Segment {
+
+        private final LinkedHashMap<Object, List<Map<String, String>>> entries;
+
+        Segment(final int maxEntries) {
+            this.entries = new LinkedHashMap<Object, List<Map<String, String>>>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Object, List<Map<String, String>>> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        synchronized List<Map<String, String>> get(Object key) {
+            return this.entries.get(key);
+        }
+
+        synchronized void put(Object key, List<Map<String, String>> value) {
+            this.entries.put(key, value);
+        }
+
+        synchronized void clear() {
+            this.entries.clear();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runtime configuration of {@link DimensionSQLViewParamRequestTransformer}, read and written through the REST API and persisted in the data
+ * directory by {@link DimensionTransformerConfigStore}.
+ *
+ * A null value stands for the default of the setting. The resource names to match are given as <code>namespaceURI:localName</code>.
+ */
+public class DimensionTransformerConfig {
+
+    private Boolean transformTimeEnabled;
+
+    private Boolean transformElevationEnabled;
+
+    private Boolean overrideExistingViewParams;
+
+    private Boolean injectDeclaredParametersOnly;
+
+    private Boolean preservePeriodicIntervals;
+
+    private Boolean etagEnabled;
+
+    private Boolean typedQueryHintsEnabled;
+
+    private String timeZoneId;
+
+    private String timeFormatPattern;
+
+    private String elevationFormatPattern;
+
+    private String timeZoneParameter;
+
+    private Map<String, String> layerTimeZones;
+
+    private Map<String, ElevationConversion> layerElevationConversions;
+
+    private List<String> resourceNamesToMatch;
+
+    private List<String> layerGroupNamesToMatch;
+
+    private List<String> customDimensionsToTransform;
+
+    private String timeStartParameter;
+
+    private String timeEndParameter;
+
+    private String timeStepParameter;
+
+    private String elevationStartParameter;
+
+    private String elevationEndParameter;
+
+    private String elevationStepParameter;
+
+    private Map<String, String> customDimensionParameterNames;
+
+    private Map<String, CustomDimensionDefinition> customDimensionTypes;
+
+    public DimensionTransformerConfig() {
+    }
+
+    /**
+     * Creates a copy of the given configuration. The lists and maps are copied, their elements are shared.
+     * 
+     * @param other
+     */
+    public DimensionTransformerConfig(DimensionTransformerConfig other) {
+        this.transformTimeEnabled = other.transformTimeEnabled;
+        this.transformElevationEnabled = other.transformElevationEnabled;
+        this.overrideExistingViewParams = other.overrideExistingViewParams;
+        this.injectDeclaredParametersOnly = other.injectDeclaredParametersOnly;
+        this.preservePeriodicIntervals = other.preservePeriodicIntervals;
+        this.etagEnabled = other.etagEnabled;
+        this.typedQueryHintsEnabled = other.typedQueryHintsEnabled;
+        this.timeZoneId = other.timeZoneId;
+        this.timeFormatPattern = other.timeFormatPattern;
+        this.elevationFormatPattern = other.elevationFormatPattern;
+        this.timeZoneParameter = other.timeZoneParameter;
+        this.layerTimeZones = other.layerTimeZones != null ? new HashMap<String, String>(
+                other.layerTimeZones) : null;
+        this.layerElevationConversions = other.layerElevationConversions != null
+                ? new HashMap<String, ElevationConversion>(other.layerElevationConversions)
+                : null;
+        this.resourceNamesToMatch = other.resourceNamesToMatch != null ? new ArrayList<String>(
+                other.resourceNamesToMatch) : null;
+        this.layerGroupNamesToMatch = other.layerGroupNamesToMatch != null
+                ? new ArrayList<String>(other.layerGroupNamesToMatch) : null;
+        this.customDimensionsToTransform = other.customDimensionsToTransform != null
+                ? new ArrayList<String>(other.customDimensionsToTransform) : null;
+        this.timeStartParameter = other.timeStartParameter;
+        this.timeEndParameter = other.timeEndParameter;
+        this.timeStepParameter = other.timeStepParameter;
+        this.elevationStartParameter = other.elevationStartParameter;
+        this.elevationEndParameter = other.elevationEndParameter;
+        this.elevationStepParameter = other.elevationStepParameter;
+        this.customDimensionParameterNames = other.customDimensionParameterNames != null
+                ? new HashMap<String, String>(other.customDimensionParameterNames) : null;
+        this.customDimensionTypes = other.customDimensionTypes != null
+                ? new HashMap<String, CustomDimensionDefinition>(other.customDimensionTypes)
+                : null;
+    }
+
+    public Boolean getTransformTimeEnabled() {
+        return transformTimeEnabled;
+    }
+
+    public void setTransformTimeEnabled(Boolean transformTimeEnabled) {
+        this.transformTimeEnabled = transformTimeEnabled;
+    }
+
+    public Boolean getTransformElevationEnabled() {
+        return transformElevationEnabled;
+    }
+
+    public void setTransformElevationEnabled(Boolean transformElevationEnabled) {
+        this.transformElevationEnabled = transformElevationEnabled;
+    }
+
+    public Boolean getOverrideExistingViewParams() {
+        return overrideExistingViewParams;
+    }
+
+    public void setOverrideExistingViewParams(Boolean overrideExistingViewParams) {
+        this.overrideExistingViewParams = overrideExistingViewParams;
+    }
+
+    public Boolean getInjectDeclaredParametersOnly() {
+        return injectDeclaredParametersOnly;
+    }
+
+    public void setInjectDeclaredParametersOnly(Boolean injectDeclaredParametersOnly) {
+        this.injectDeclaredParametersOnly = injectDeclaredParametersOnly;
+    }
+
+    public Boolean getPreservePeriodicIntervals() {
+        return preservePeriodicIntervals;
+    }
+
+    public void setPreservePeriodicIntervals(Boolean preservePeriodicIntervals) {
+        this.preservePeriodicIntervals = preservePeriodicIntervals;
+    }
+
+    public Boolean getEtagEnabled() {
+        return etagEnabled;
+    }
+
+    public void setEtagEnabled(Boolean etagEnabled) {
+        this.etagEnabled = etagEnabled;
+    }
+
+    public Boolean getTypedQueryHintsEnabled() {
+        return typedQueryHintsEnabled;
+    }
+
+    public void setTypedQueryHintsEnabled(Boolean typedQueryHintsEnabled) {
+        this.typedQueryHintsEnabled = typedQueryHintsEnabled;
+    }
+
+    /**
+     * Returns the long format time zone id, as accepted by {@link org.joda.time.DateTimeZone#forID(String)}.
+     *
+     * @return the time zone id
+     */
+    public String getTimeZoneId() {
+        return timeZoneId;
+    }
+
+    public void setTimeZoneId(String timeZoneId) {
+        this.timeZoneId = timeZoneId;
+    }
+
+    public String getTimeFormatPattern() {
+        return timeFormatPattern;
+    }
+
+    public void setTimeFormatPattern(String timeFormatPattern) {
+        this.timeFormatPattern = timeFormatPattern;
+    }
+
+    public String getElevationFormatPattern() {
+        return elevationFormatPattern;
+    }
+
+    public void setElevationFormatPattern(String elevationFormatPattern) {
+        this.elevationFormatPattern = elevationFormatPattern;
+    }
+
+    public String getTimeZoneParameter() {
+        return timeZoneParameter;
+    }
+
+    public void setTimeZoneParameter(String timeZoneParameter) {
+        this.timeZoneParameter = timeZoneParameter;
+    }
+
+    /**
+     * Returns the time zone ids for encoding the time values of specific layers.
+     *
+     * @return the time zone ids by prefixed layer name, or null if all the layers use the configured time zone
+     */
+    public Map<String, String> getLayerTimeZones() {
+        return layerTimeZones;
+    }
+
+    public void setLayerTimeZones(Map<String, String> layerTimeZones) {
+        this.layerTimeZones = layerTimeZones;
+    }
+
+    /**
+     * Returns the conversions of the requested elevations of specific layers.
+     *
+     * @return the conversions by prefixed layer name, or null if no elevations are converted
+     */
+    public Map<String, ElevationConversion> getLayerElevationConversions() {
+        return layerElevationConversions;
+    }
+
+    public void setLayerElevationConversions(
+            Map<String, ElevationConversion> layerElevationConversions) {
+        this.layerElevationConversions = layerElevationConversions;
+    }
+
+    /**
+     * Returns the qualified names of the layer resources triggering the transformation as <code>namespaceURI:localName</code>.
+     *
+     * @return the names, or null if any layer is matched
+     */
+    public List<String> getResourceNamesToMatch() {
+        return resourceNamesToMatch;
+    }
+
+    public void setResourceNamesToMatch(List<String> resourceNamesToMatch) {
+        this.resourceNamesToMatch = resourceNamesToMatch;
+    }
+
+    /**
+     * Returns the prefixed names of the layer groups whose member layers trigger the transformation.
+     *
+     * @return the names, or null if the layer groups are not matched
+     */
+    public List<String> getLayerGroupNamesToMatch() {
+        return layerGroupNamesToMatch;
+    }
+
+    public void setLayerGroupNamesToMatch(List<String> layerGroupNamesToMatch) {
+        this.layerGroupNamesToMatch = layerGroupNamesToMatch;
+    }
+
+    public List<String> getCustomDimensionsToTransform() {
+        return customDimensionsToTransform;
+    }
+
+    public void setCustomDimensionsToTransform(List<String> customDimensionsToTransform) {
+        this.customDimensionsToTransform = customDimensionsToTransform;
+    }
+
+    public String getTimeStartParameter() {
+        return timeStartParameter;
+    }
+
+    public void setTimeStartParameter(String timeStartParameter) {
+        this.timeStartParameter = timeStartParameter;
+    }
+
+    public String getTimeEndParameter() {
+        return timeEndParameter;
+    }
+
+    public void setTimeEndParameter(String timeEndParameter) {
+        this.timeEndParameter = timeEndParameter;
+    }
+
+    public String getTimeStepParameter() {
+        return timeStepParameter;
+    }
+
+    public void setTimeStepParameter(String timeStepParameter) {
+        this.timeStepParameter = timeStepParameter;
+    }
+
+    public String getElevationStartParameter() {
+        return elevationStartParameter;
+    }
+
+    public void setElevationStartParameter(String elevationStartParameter) {
+        this.elevationStartParameter = elevationStartParameter;
+    }
+
+    public String getElevationEndParameter() {
+        return elevationEndParameter;
+    }
+
+    public void setElevationEndParameter(String elevationEndParameter) {
+        this.elevationEndParameter = elevationEndParameter;
+    }
+
+    public String getElevationStepParameter() {
+        return elevationStepParameter;
+    }
+
+    public void setElevationStepParameter(String elevationStepParameter) {
+        this.elevationStepParameter = elevationStepParameter;
+    }
+
+    public Map<String, String> getCustomDimensionParameterNames() {
+        return customDimensionParameterNames;
+    }
+
+    public void setCustomDimensionParameterNames(Map<String, String> customDimensionParameterNames) {
+        this.customDimensionParameterNames = customDimensionParameterNames;
+    }
+
+    /**
+     * Returns the type declarations of the custom dimensions by dimension name.
+     *
+     * @return the declarations, or null if all the custom dimensions are passed as text
+     */
+    public Map<String, CustomDimensionDefinition> getCustomDimensionTypes() {
+        return customDimensionTypes;
+    }
+
+    public void setCustomDimensionTypes(Map<String, CustomDimensionDefinition> customDimensionTypes) {
+        this.customDimensionTypes = customDimensionTypes;
+    }
+}
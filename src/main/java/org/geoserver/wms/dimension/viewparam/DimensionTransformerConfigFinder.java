@@ -0,0 +1,23 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.restlet.Finder;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Resource;
+
+/**
+ * Finder for {@link DimensionTransformerConfigResource}, mapped to <code>/rest/wmsdim-viewparam/config</code>.
+ */
+public class DimensionTransformerConfigFinder extends Finder {
+
+    private final DimensionTransformerConfigStore store;
+
+    public DimensionTransformerConfigFinder(DimensionTransformerConfigStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Resource findTarget(Request request, Response response) {
+        return new DimensionTransformerConfigResource(getContext(), request, response, this.store);
+    }
+}
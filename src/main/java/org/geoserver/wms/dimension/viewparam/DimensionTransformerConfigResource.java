@@ -0,0 +1,92 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.RestletException;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * REST resource for reading (GET) and replacing (PUT) the configuration of {@link DimensionSQLViewParamRequestTransformer} as XML or JSON. A new
+ * configuration is validated, applied and persisted in the data directory.
+ *
+ * If the route contains a <code>workspace</code> attribute, the resource is the configuration specific to that workspace, which can also be
+ * removed (DELETE) to use the global configuration for the workspace.
+ */
+public class DimensionTransformerConfigResource extends ReflectiveResource {
+
+    private final DimensionTransformerConfigStore store;
+
+    private final String workspace;
+
+    public DimensionTransformerConfigResource(Context context, Request request, Response response,
+            DimensionTransformerConfigStore store) {
+        super(context, request, response);
+        this.store = store;
+        this.workspace = (String) request.getAttributes().get("workspace");
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        if (this.workspace == null) {
+            return this.store.getConfig();
+        }
+        DimensionTransformerConfig retval = this.store.getWorkspaceConfig(this.workspace);
+        if (retval == null) {
+            throw new RestletException("No configuration for workspace " + this.workspace,
+                    Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        return retval;
+    }
+
+    @Override
+    public boolean allowPut() {
+        return true;
+    }
+
+    @Override
+    protected void handleObjectPut(Object object) throws Exception {
+        if (!(object instanceof DimensionTransformerConfig)) {
+            throw new RestletException("Expected a dimensionViewParamConfig",
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+        }
+        try {
+            if (this.workspace == null) {
+                this.store.save((DimensionTransformerConfig) object);
+            } else {
+                this.store.saveWorkspaceConfig(this.workspace,
+                        (DimensionTransformerConfig) object);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new RestletException("Invalid configuration: " + e.getMessage(),
+                    Status.CLIENT_ERROR_BAD_REQUEST, e);
+        }
+    }
+
+    @Override
+    public boolean allowDelete() {
+        return this.workspace != null;
+    }
+
+    @Override
+    public void handleDelete() {
+        if (this.store.getWorkspaceConfig(this.workspace) == null) {
+            throw new RestletException("No configuration for workspace " + this.workspace,
+                    Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        try {
+            this.store.saveWorkspaceConfig(this.workspace, null);
+        } catch (Exception e) {
+            throw new RestletException("Could not remove the configuration of workspace "
+                    + this.workspace, Status.SERVER_ERROR_INTERNAL, e);
+        }
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        DimensionTransformerConfigStore.configure(xstream);
+    }
+}
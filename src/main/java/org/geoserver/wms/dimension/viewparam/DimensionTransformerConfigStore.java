@@ -0,0 +1,191 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Persists the configuration of {@link DimensionSQLViewParamRequestTransformer} in the GeoServer data directory, and loads the persisted
+ * configuration into the transformer at startup. Without a persisted configuration the transformer keeps the configuration given in the
+ * application context. Workspace specific configurations are persisted in the directories of the workspaces.
+ */
+public class DimensionTransformerConfigStore {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionTransformerConfigStore.class.getName());
+
+    static final String CONFIG_FILE = "wmsdim-viewparam.xml";
+
+    static final String WORKSPACES_DIR = "workspaces";
+
+    private final GeoServerResourceLoader resourceLoader;
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    private final XStream xstream;
+
+    public DimensionTransformerConfigStore(GeoServerResourceLoader resourceLoader,
+            DimensionSQLViewParamRequestTransformer transformer) {
+        this.resourceLoader = resourceLoader;
+        this.transformer = transformer;
+        this.xstream = new XStream();
+        configure(this.xstream);
+    }
+
+    /**
+     * Configures the aliases used in the XML and JSON representations of the configuration.
+     *
+     * @param xstream
+     */
+    static void configure(XStream xstream) {
+        xstream.alias("dimensionViewParamConfig", DimensionTransformerConfig.class);
+        xstream.alias("customDimension", CustomDimensionDefinition.class);
+        xstream.alias("elevationConversion", ElevationConversion.class);
+    }
+
+    /**
+     * Loads the persisted global and workspace specific configurations into the transformer. A persisted configuration which cannot be parsed
+     * or is not valid is logged and ignored, so it does not prevent GeoServer from starting.
+     *
+     * @throws IOException
+     */
+    public void load() throws IOException {
+        Resource resource = this.resourceLoader.get(CONFIG_FILE);
+        if (resource.getType() == Resource.Type.RESOURCE) {
+            try {
+                this.transformer.applyConfig(read(resource));
+                log.info("Loaded the dimension transformer configuration from " + CONFIG_FILE);
+            } catch (RuntimeException e) {
+                // an XStreamException if the file is malformed, an IllegalArgumentException if a setting is not valid
+                log.log(Level.SEVERE, "Invalid dimension transformer configuration in "
+                        + CONFIG_FILE + ", using the default configuration", e);
+            }
+        } else {
+            log.log(Level.FINE, "No persisted dimension transformer configuration");
+        }
+
+        Map<String, DimensionTransformerConfig> workspaceConfigs = new HashMap<String, DimensionTransformerConfig>();
+        Resource workspaces = this.resourceLoader.get(WORKSPACES_DIR);
+        if (workspaces.getType() == Resource.Type.DIRECTORY) {
+            for (Resource workspace : workspaces.list()) {
+                Resource wsResource = workspace.get(CONFIG_FILE);
+                if (wsResource.getType() == Resource.Type.RESOURCE) {
+                    try {
+                        DimensionTransformerConfig config = read(wsResource);
+                        this.transformer.applyWorkspaceConfig(workspace.name(), config);
+                        workspaceConfigs.put(workspace.name(), config);
+                    } catch (RuntimeException e) {
+                        log.log(Level.SEVERE, "Invalid dimension transformer configuration in "
+                                + wsResource.path() + ", using the global configuration", e);
+                    }
+                }
+            }
+        }
+        if (!workspaceConfigs.isEmpty()) {
+            log.info("Loaded the dimension transformer configurations of workspaces "
+                    + workspaceConfigs.keySet());
+        }
+    }
+
+    private DimensionTransformerConfig read(Resource resource) throws IOException {
+        InputStream in = resource.in();
+        try {
+            Object config = this.xstream.fromXML(in);
+            if (!(config instanceof DimensionTransformerConfig)) {
+                throw new IllegalArgumentException("Not a dimension transformer configuration: "
+                        + resource.path());
+            }
+            return (DimensionTransformerConfig) config;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void write(DimensionTransformerConfig config, Resource resource) throws IOException {
+        OutputStream out = resource.out();
+        try {
+            this.xstream.toXML(config, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the current configuration of the transformer.
+     *
+     * @return the configuration
+     */
+    public DimensionTransformerConfig getConfig() {
+        return this.transformer.getConfig();
+    }
+
+    /**
+     * Applies the given configuration to the transformer and persists it. If the configuration cannot be persisted, the previous configuration
+     * is restored.
+     *
+     * @param config
+     * @throws IllegalArgumentException if the configuration is not valid
+     * @throws IOException if the configuration could not be persisted
+     */
+    public synchronized void save(DimensionTransformerConfig config)
+            throws IllegalArgumentException, IOException {
+        DimensionTransformerConfig previous = this.transformer.getConfig();
+        this.transformer.applyConfig(config);
+        try {
+            write(this.transformer.getConfig(), this.resourceLoader.get(CONFIG_FILE));
+        } catch (IOException e) {
+            this.transformer.applyConfig(previous);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the configuration specific to the given workspace.
+     *
+     * @param workspace the workspace name
+     * @return the configuration, or null if the workspace uses the global configuration
+     */
+    public DimensionTransformerConfig getWorkspaceConfig(String workspace) {
+        return this.transformer.getWorkspaceConfig(workspace);
+    }
+
+    /**
+     * Applies the given configuration to the given workspace and persists it in the workspace directory. If the configuration cannot be
+     * persisted, the previous configuration of the workspace is restored.
+     *
+     * @param workspace the workspace name
+     * @param config the configuration, or null to remove the workspace specific configuration
+     * @throws IllegalArgumentException if the configuration is not valid
+     * @throws IOException if the configuration could not be persisted
+     */
+    public synchronized void saveWorkspaceConfig(String workspace,
+            DimensionTransformerConfig config) throws IllegalArgumentException, IOException {
+        if (workspace == null || workspace.isEmpty() || workspace.contains("/")
+                || workspace.contains("..")) {
+            throw new IllegalArgumentException("Invalid workspace name: " + workspace);
+        }
+        DimensionTransformerConfig previous = this.transformer.getWorkspaceConfig(workspace);
+        this.transformer.applyWorkspaceConfig(workspace, config);
+        Resource resource = this.resourceLoader.get(WORKSPACES_DIR + "/" + workspace + "/"
+                + CONFIG_FILE);
+        try {
+            if (config != null) {
+                write(config, resource);
+            } else if (resource.getType() == Resource.Type.RESOURCE && !resource.delete()) {
+                throw new IOException("Could not delete " + resource.path());
+            }
+        } catch (IOException e) {
+            this.transformer.applyWorkspaceConfig(workspace, previous);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Warms up {@link DimensionSQLViewParamRequestTransformer} after startup, so that the first real requests do not pay for the cold caches and
+ * the interpreted code paths. The warm-up runs in a background thread started when the application context starts:
+ * <ol>
+ * <li>the dimension metadata of the catalog feature types, the declared SQL view parameters and the layer group memberships are loaded,</li>
+ * <li>synthetic requests of the common shapes (single and multiple times, time ranges and periodic intervals, elevations and the custom
+ * dimensions to transform) for the matching layers are transformed, the view parameters formatted and the ETags computed, until
+ * <code>iterations</code> rounds have been run or <code>maxMillis</code> has passed.</li>
+ * </ol>
+ * The synthetic requests are transformed without going through
+ * {@link DimensionSQLViewParamRequestTransformer#initRequest(GetMapRequest)} or the transformation memo, so they are not recorded, traced,
+ * counted, admitted or memoised. No data is read from the stores.
+ *
+ * The warm-up is disabled by default, as it keeps a CPU busy for up to <code>maxMillis</code> after every start. The node is reported
+ * ready by {@link #isReady()}, and through the REST API, once the warm-up has finished or failed. The layers whose probe request is
+ * rejected are not warmed up.
+ */
+public class DimensionTransformerWarmup {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionTransformerWarmup.class.getName());
+
+    private static final DateTimeFormatter ISO_FORMAT = ISODateTimeFormat.dateTime()
+            .withZoneUTC();
+
+    /**
+     * Progress of the warm-up, as reported through the REST API.
+     */
+    public static class Status {
+
+        private boolean ready;
+
+        private int layers;
+
+        private long requests;
+
+        private long elapsedMillis;
+
+        Status(boolean ready, int layers, long requests, long elapsedMillis) {
+            this.ready = ready;
+            this.layers = layers;
+            this.requests = requests;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        /**
+         * @return the number of the layers the synthetic requests were made for
+         */
+        public int getLayers() {
+            return layers;
+        }
+
+        /**
+         * @return the number of the synthetic requests transformed so far
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final Catalog catalog;
+
+    private final DimensionSQLViewParamRequestTransformer transformer;
+
+    private boolean enabled;
+
+    private int iterations;
+
+    private long maxMillis;
+
+    private int maxLayers;
+
+    private volatile boolean ready;
+
+    private volatile int layerCount;
+
+    private volatile long requestCount;
+
+    private volatile long startMillis;
+
+    private volatile long endMillis;
+
+    private Thread thread;
+
+    public DimensionTransformerWarmup(Catalog catalog,
+            DimensionSQLViewParamRequestTransformer transformer) {
+        this.catalog = catalog;
+        this.transformer = transformer;
+        this.enabled = false;
+        this.iterations = 10000;
+        this.maxMillis = 60000;
+        this.maxLayers = 20;
+        this.ready = false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the warm-up. If disabled, the node is ready immediately. Disabled by default.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Set the number of rounds of the synthetic requests. Default is 10000, enough for the JIT compiler to compile the transformation code.
+     *
+     * @param iterations
+     */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Set the longest time the synthetic requests are run. Default is one minute.
+     *
+     * @param maxMillis
+     */
+    public void setMaxMillis(long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    public int getMaxLayers() {
+        return maxLayers;
+    }
+
+    /**
+     * Set the maximum number of the matching layers the synthetic requests are made for. Default is 20.
+     *
+     * @param maxLayers
+     */
+    public void setMaxLayers(int maxLayers) {
+        this.maxLayers = maxLayers;
+    }
+
+    /**
+     * Starts the warm-up in a background thread.
+     */
+    public synchronized void start() {
+        if (!this.enabled) {
+            this.ready = true;
+            return;
+        }
+        this.thread = new Thread("wmsdim-viewparam-warmup") {
+            @Override
+            public void run() {
+                try {
+                    warmup();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Dimension transformer warm-up failed", e);
+                } finally {
+                    endMillis = System.currentTimeMillis();
+                    ready = true;
+                }
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.NORM_PRIORITY - 1);
+        this.thread.start();
+    }
+
+    /**
+     * Stops a warm-up in progress.
+     */
+    public synchronized void stop() {
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Is the warm-up finished, successfully or not?
+     *
+     * @return true if the node is ready for traffic
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns the current progress of the warm-up.
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        long start = this.startMillis;
+        long end = this.ready ? this.endMillis : System.currentTimeMillis();
+        return new Status(this.ready, this.layerCount, this.requestCount, start > 0 ? Math.max(
+                end - start, 0) : 0);
+    }
+
+    /**
+     * Runs the warm-up in the calling thread.
+     */
+    void warmup() {
+        this.startMillis = System.currentTimeMillis();
+        long deadline = this.startMillis + this.maxMillis;
+        List<List<MapLayerInfo>> layers = preload();
+        this.layerCount = layers.size();
+        if (layers.isEmpty()) {
+            log.info("No layers matching the dimension transformation, skipping the warm-up");
+            return;
+        }
+        List<GetMapRequest> requests = new ArrayList<GetMapRequest>();
+        for (List<MapLayerInfo> l : layers) {
+            requests.addAll(createRequests(l));
+        }
+        long count = 0;
+        for (int i = 0; i < this.iterations && System.currentTimeMillis() < deadline
+                && !Thread.currentThread().isInterrupted(); i++) {
+            for (GetMapRequest request : requests) {
+                transform(request);
+                count++;
+            }
+            this.requestCount = count;
+        }
+        log.info("Dimension transformer warmed up with " + count + " requests for "
+                + layers.size() + " layers in " + (System.currentTimeMillis() - this.startMillis)
+                + " ms");
+    }
+
+    /**
+     * Loads the dimension metadata and the indexes of the feature type layers, and returns the layers matching the transformation.
+     */
+    private List<List<MapLayerInfo>> preload() {
+        List<List<MapLayerInfo>> retval = new ArrayList<List<MapLayerInfo>>();
+        VirtualTableParameterIndex parameterIndex = this.transformer.getParameterIndex();
+        LayerGroupMembershipIndex layerGroupIndex = this.transformer.getLayerGroupIndex();
+        for (LayerInfo layer : this.catalog.getLayers()) {
+            ResourceInfo resource = layer.getResource();
+            if (!(resource instanceof FeatureTypeInfo)) {
+                continue;
+            }
+            resource.getMetadata().get(ResourceInfo.TIME, DimensionInfo.class);
+            resource.getMetadata().get(ResourceInfo.ELEVATION, DimensionInfo.class);
+            if (parameterIndex != null) {
+                parameterIndex.getDeclaredParameterNames(resource);
+            }
+            if (layerGroupIndex != null) {
+                layerGroupIndex.getLayerGroupNames(resource);
+            }
+            if (retval.size() < this.maxLayers) {
+                List<MapLayerInfo> l = Collections.singletonList(new MapLayerInfo(layer));
+                GetMapRequest probe = new GetMapRequest();
+                probe.setLayers(l);
+                probe.setRawKvp(new HashMap<String, String>());
+                probe.setTime(Arrays.<Object> asList(new Date()));
+                if (transform(probe)) {
+                    retval.add(l);
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Creates the synthetic requests of the common shapes for the given layers.
+     */
+    private List<GetMapRequest> createRequests(List<MapLayerInfo> layers) {
+        List<GetMapRequest> retval = new ArrayList<GetMapRequest>();
+        DateTime now = new DateTime(DateTimeZone.UTC).hourOfDay().roundFloorCopy();
+        DateTime dayBefore = now.minusDays(1);
+
+        retval.add(createRequest(layers, ISO_FORMAT.print(now), null, now.toDate()));
+        retval.add(createRequest(layers, ISO_FORMAT.print(dayBefore) + "," + ISO_FORMAT.print(now),
+                null, dayBefore.toDate(), now.toDate()));
+        retval.add(createRequest(layers, ISO_FORMAT.print(dayBefore) + "/" + ISO_FORMAT.print(now),
+                null, new DateRange(dayBefore.toDate(), now.toDate())));
+        retval.add(createRequest(layers, ISO_FORMAT.print(dayBefore) + "/" + ISO_FORMAT.print(now)
+                + "/PT1H", null, new DateRange(dayBefore.toDate(), now.toDate())));
+
+        GetMapRequest elevation = createRequest(layers, ISO_FORMAT.print(now), "0", now.toDate());
+        elevation.setElevation(Arrays.<Object> asList(Double.valueOf(0)));
+        retval.add(elevation);
+        GetMapRequest elevationRange = createRequest(layers, ISO_FORMAT.print(now), "0/1000",
+                now.toDate());
+        elevationRange.setElevation(Arrays.<Object> asList(new NumberRange<Double>(Double.class,
+                0.0, 1000.0)));
+        retval.add(elevationRange);
+
+        List<String> customDimensions = this.transformer.getCustomDimensionsToTransform();
+        if (customDimensions != null && !customDimensions.isEmpty()) {
+            GetMapRequest custom = createRequest(layers, ISO_FORMAT.print(now), null,
+                    now.toDate());
+            for (String dimensionName : customDimensions) {
+                custom.getRawKvp().put("DIM_" + dimensionName,
+                        getSampleValue(dimensionName, now));
+            }
+            retval.add(custom);
+        }
+        return retval;
+    }
+
+    private static GetMapRequest createRequest(List<MapLayerInfo> layers, String rawTime,
+            String rawElevation, Object... times) {
+        GetMapRequest retval = new GetMapRequest();
+        retval.setLayers(layers);
+        Map<String, String> kvp = new HashMap<String, String>();
+        kvp.put("TIME", rawTime);
+        if (rawElevation != null) {
+            kvp.put("ELEVATION", rawElevation);
+        }
+        retval.setRawKvp(kvp);
+        retval.setTime(Arrays.asList(times));
+        return retval;
+    }
+
+    /**
+     * Returns a value valid for the declared type of the given custom dimension.
+     */
+    private String getSampleValue(String dimensionName, DateTime now) {
+        Map<String, CustomDimensionDefinition> types = this.transformer.getCustomDimensionTypes();
+        CustomDimensionDefinition definition = null;
+        if (types != null) {
+            for (Map.Entry<String, CustomDimensionDefinition> e : types.entrySet()) {
+                if (e.getKey().equalsIgnoreCase(dimensionName)) {
+                    definition = e.getValue();
+                }
+            }
+        }
+        if (definition == null || definition.getType() == null) {
+            return "warmup";
+        }
+        switch (definition.getType()) {
+        case INTEGER:
+            return "1/3";
+        case DECIMAL:
+            return "0.5";
+        case DATETIME:
+            return ISO_FORMAT.print(now);
+        case NUMERIC_RANGE:
+            return "0/10";
+        case ENUMERATED:
+            return definition.getAllowedValues().get(0);
+        default:
+            return "warmup";
+        }
+    }
+
+    /**
+     * Transforms the request and formats the view parameters like a real request.
+     *
+     * @return true if the request was transformed, false if it was not matched or was rejected
+     */
+    private boolean transform(GetMapRequest request) {
+        try {
+            List<Map<String, String>> viewParams = this.transformer.transformViewParams(request);
+            if (viewParams == null) {
+                return false;
+            }
+            for (Map<String, String> params : viewParams) {
+                for (Map.Entry<String, String> e : params.entrySet()) {
+                    e.getValue();
+                }
+            }
+            if (this.transformer.isEtagEnabled()) {
+                VirtualTableParameterIndex parameterIndex = this.transformer.getParameterIndex();
+                DimensionETagCallback.computeETag(request.getLayers(), request.getStyles(),
+                        viewParams, parameterIndex != null ? parameterIndex.getModificationCount()
+                                : 0L);
+            }
+            return true;
+        } catch (ServiceException e) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Synthetic warm-up request rejected", e);
+            }
+            return false;
+        }
+    }
+}
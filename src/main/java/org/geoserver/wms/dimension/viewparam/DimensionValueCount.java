@@ -0,0 +1,37 @@
+package org.geoserver.wms.dimension.viewparam;
+
+/**
+ * Estimated number of requests for a dimension value, layer combination or other value tracked by {@link DimensionValueSketch}.
+ */
+public class DimensionValueCount {
+
+    private final String category;
+
+    private final String value;
+
+    private final long count;
+
+    DimensionValueCount(String category, String value, long count) {
+        this.category = category;
+        this.value = value;
+        this.count = count;
+    }
+
+    /**
+     * @return TIME, ELEVATION, LAYERS or the DIM_ parameter name of a custom dimension
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the estimated count, decayed over time, never lower than the actual decayed count
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,456 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Bounded memory estimate of the most frequently requested TIME, ELEVATION and custom dimension values and layer combinations, for sizing
+ * caches and choosing the slices to pre-render. The counts are kept in a count-min sketch of atomic counters, and the most frequent values of
+ * each category in a top list, which is only locked when a new value enters the list.
+ *
+ * The counts are halved every <code>decayIntervalMillis</code>, so that the estimates follow the recent requests. The decay is done by the
+ * first request after the interval has passed.
+ *
+ * The parsed dimension values of the requests are counted, so that the different spellings of a time or an elevation are counted as one
+ * value. Only a <code>sampleRate</code> share of the requests is counted, and at most <code>maxValuesPerRequest</code> values of each
+ * dimension of a request, so that the requests for long lists of values cost a bounded time.
+ */
+public class DimensionValueSketch implements DimensionValueSketchMBean {
+
+    static final String TIME = "TIME";
+
+    static final String ELEVATION = "ELEVATION";
+
+    static final String LAYERS = "LAYERS";
+
+    /** Maximum number of tracked categories, as the custom dimension names come from the requests. */
+    static final int MAX_CATEGORIES = 32;
+
+    private static final DateTimeFormatter TIME_FORMAT = ISODateTimeFormat.dateTime()
+            .withZoneUTC();
+
+    private final int depth;
+
+    private final int width;
+
+    private final AtomicLongArray counters;
+
+    private final int topCount;
+
+    private final ConcurrentMap<String, TopValues> topValues;
+
+    private final AtomicLong nextDecay;
+
+    private volatile long decayIntervalMillis;
+
+    private volatile double sampleRate;
+
+    private volatile int maxValuesPerRequest;
+
+    public DimensionValueSketch() {
+        this(4, 4096, 20);
+    }
+
+    /**
+     * @param depth the number of hash functions of the sketch
+     * @param width the number of counters for each hash function, rounded up to a power of two
+     * @param topCount the number of the most frequent values kept for each category
+     */
+    public DimensionValueSketch(int depth, int width, int topCount) {
+        if (depth <= 0 || width <= 0 || topCount <= 0) {
+            throw new IllegalArgumentException("The sketch dimensions must be positive");
+        }
+        this.depth = depth;
+        int w = 1;
+        while (w < width) {
+            w <<= 1;
+        }
+        this.width = w;
+        this.counters = new AtomicLongArray(this.depth * this.width);
+        this.topCount = topCount;
+        this.topValues = new ConcurrentHashMap<String, TopValues>();
+        this.decayIntervalMillis = 3600000;
+        this.sampleRate = 1;
+        this.maxValuesPerRequest = 100;
+        this.nextDecay = new AtomicLong(System.currentTimeMillis() + this.decayIntervalMillis);
+    }
+
+    @Override
+    public long getDecayIntervalMillis() {
+        return decayIntervalMillis;
+    }
+
+    /**
+     * Set the interval of halving the counts. Default is one hour, and 0 disables the decay.
+     * 
+     * @param decayIntervalMillis
+     */
+    @Override
+    public void setDecayIntervalMillis(long decayIntervalMillis) {
+        this.decayIntervalMillis = decayIntervalMillis;
+        this.nextDecay.set(System.currentTimeMillis() + decayIntervalMillis);
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Set the share of the requests counted, between 0 and 1. Default is 1, counting all the requests.
+     * 
+     * @param sampleRate
+     */
+    @Override
+    public void setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public int getMaxValuesPerRequest() {
+        return maxValuesPerRequest;
+    }
+
+    /**
+     * Set the maximum number of the values of each dimension counted for a request. Default is 100.
+     * 
+     * @param maxValuesPerRequest
+     */
+    @Override
+    public void setMaxValuesPerRequest(int maxValuesPerRequest) {
+        if (maxValuesPerRequest <= 0) {
+            throw new IllegalArgumentException(
+                    "The maximum number of values per request must be positive");
+        }
+        this.maxValuesPerRequest = maxValuesPerRequest;
+    }
+
+    @Override
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * Counts the parsed dimension values and the layer combination of the given request, if the request is sampled.
+     * 
+     * @param request
+     */
+    public void record(GetMapRequest request) {
+        double rate = this.sampleRate;
+        if (rate < 1 && (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return;
+        }
+        decayIfDue(System.currentTimeMillis());
+        int max = this.maxValuesPerRequest;
+        addValues(TIME, request.getTime(), max);
+        addValues(ELEVATION, request.getElevation(), max);
+        Map<String, String> kvp = request.getRawKvp();
+        if (kvp != null) {
+            for (String key : kvp.keySet()) {
+                String name = key.toUpperCase(Locale.ENGLISH);
+                if (name.startsWith("DIM_")) {
+                    List<String> values = request.getCustomDimension(name.substring(4));
+                    if (values != null) {
+                        addValues(name, values, max);
+                    }
+                }
+            }
+        }
+        List<MapLayerInfo> layers = request.getLayers();
+        if (layers != null && !layers.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (MapLayerInfo layer : layers) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(layer.getName());
+            }
+            add(LAYERS, sb.toString());
+        }
+    }
+
+    /**
+     * Counts up to the given number of the parsed values.
+     */
+    private void addValues(String category, List<?> values, int max) {
+        if (values == null) {
+            return;
+        }
+        int n = Math.min(values.size(), max);
+        for (int i = 0; i < n; i++) {
+            String value = toCanonicalString(values.get(i));
+            if (value != null && !value.isEmpty()) {
+                add(category, value);
+            }
+        }
+    }
+
+    /**
+     * Returns the canonical form of a parsed value: the times in ISO 8601 in UTC, the elevations as doubles, and the ranges as start/end.
+     */
+    private static String toCanonicalString(Object value) {
+        if (value instanceof Date) {
+            return TIME_FORMAT.print(((Date) value).getTime());
+        } else if (value instanceof DateRange) {
+            DateRange range = (DateRange) value;
+            return TIME_FORMAT.print(range.getMinValue().getTime()) + "/"
+                    + TIME_FORMAT.print(range.getMaxValue().getTime());
+        } else if (value instanceof NumberRange) {
+            NumberRange<?> range = (NumberRange<?>) value;
+            return range.getMinimum() + "/" + range.getMaximum();
+        } else if (value instanceof Number) {
+            return String.valueOf(((Number) value).doubleValue());
+        }
+        return value != null ? value.toString().trim() : null;
+    }
+
+    /**
+     * Counts a single value of the given category.
+     */
+    void add(String category, String value) {
+        int h1 = hash(category, value);
+        int h2 = mix(h1) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < this.depth; i++) {
+            long c = this.counters.incrementAndGet(i * this.width
+                    + ((h1 + i * h2) & (this.width - 1)));
+            if (c < estimate) {
+                estimate = c;
+            }
+        }
+        TopValues top = this.topValues.get(category);
+        if (top == null) {
+            if (this.topValues.size() >= MAX_CATEGORIES) {
+                return;
+            }
+            top = new TopValues(this.topCount);
+            TopValues existing = this.topValues.putIfAbsent(category, top);
+            if (existing != null) {
+                top = existing;
+            }
+        }
+        if (estimate >= top.threshold) {
+            top.offer(value, estimate);
+        }
+    }
+
+    /**
+     * Returns the estimated count of a value.
+     */
+    long estimate(String category, String value) {
+        int h1 = hash(category, value);
+        int h2 = mix(h1) | 1;
+        long retval = Long.MAX_VALUE;
+        for (int i = 0; i < this.depth; i++) {
+            retval = Math.min(retval, this.counters.get(i * this.width
+                    + ((h1 + i * h2) & (this.width - 1))));
+        }
+        return retval;
+    }
+
+    private static int hash(String category, String value) {
+        return mix(category.hashCode() * 31 + value.hashCode());
+    }
+
+    /**
+     * Finalisation step of the 32 bit MurmurHash3, spreading the bits of the string hash codes.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void decayIfDue(long now) {
+        long interval = this.decayIntervalMillis;
+        if (interval <= 0) {
+            return;
+        }
+        long next = this.nextDecay.get();
+        if (now >= next && this.nextDecay.compareAndSet(next, now + interval)) {
+            decay();
+        }
+    }
+
+    /**
+     * Halves all the counts.
+     */
+    void decay() {
+        for (int i = 0; i < this.counters.length(); i++) {
+            long c;
+            do {
+                c = this.counters.get(i);
+            } while (c != 0 && !this.counters.compareAndSet(i, c, c >>> 1));
+        }
+        for (TopValues top : this.topValues.values()) {
+            top.decay();
+        }
+    }
+
+    @Override
+    public String[] getCategories() {
+        List<String> retval = new ArrayList<String>(this.topValues.keySet());
+        Collections.sort(retval);
+        return retval.toArray(new String[retval.size()]);
+    }
+
+    /**
+     * Returns the most frequent values of the given category.
+     * 
+     * @param category TIME, ELEVATION, LAYERS or a DIM_ parameter name
+     * @param limit the maximum number of values returned
+     * @return the values, most frequent first
+     */
+    public List<DimensionValueCount> getTopValues(String category, int limit) {
+        String name = category.toUpperCase(Locale.ENGLISH);
+        TopValues top = this.topValues.get(name);
+        if (top == null) {
+            return new ArrayList<DimensionValueCount>();
+        }
+        List<DimensionValueCount> retval = new ArrayList<DimensionValueCount>();
+        for (String value : top.counts.keySet()) {
+            retval.add(new DimensionValueCount(name, value, estimate(name, value)));
+        }
+        Collections.sort(retval, new Comparator<DimensionValueCount>() {
+            @Override
+            public int compare(DimensionValueCount a, DimensionValueCount b) {
+                return a.getCount() < b.getCount() ? 1 : a.getCount() > b.getCount() ? -1 : a
+                        .getValue().compareTo(b.getValue());
+            }
+        });
+        return retval.size() > limit ? new ArrayList<DimensionValueCount>(retval.subList(0,
+                limit)) : retval;
+    }
+
+    /**
+     * Returns the most frequent values of all the categories.
+     * 
+     * @param limit the maximum number of values returned for each category
+     * @return the values by category, most frequent first
+     */
+    public List<DimensionValueCount> getTopValues(int limit) {
+        List<DimensionValueCount> retval = new ArrayList<DimensionValueCount>();
+        for (String category : getCategories()) {
+            retval.addAll(getTopValues(category, limit));
+        }
+        return retval;
+    }
+
+    @Override
+    public String[] getTopValues(String category) {
+        List<DimensionValueCount> values = getTopValues(category, this.topCount);
+        String[] retval = new String[values.size()];
+        for (int i = 0; i < retval.length; i++) {
+            retval[i] = values.get(i).getValue() + "=" + values.get(i).getCount();
+        }
+        return retval;
+    }
+
+    /**
+     * Removes all the counts.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < this.counters.length(); i++) {
+            this.counters.set(i, 0);
+        }
+        this.topValues.clear();
+    }
+
+    /**
+     * The most frequent values of a category with their estimated counts. The counts of the values already in the list are updated without
+     * locking, and the list is only locked when a value estimated more frequent than the least frequent value in the list enters it.
+     */
+    private static final class TopValues {
+
+        private final int size;
+
+        private final ConcurrentMap<String, Long> counts;
+
+        /** The lowest count in the list when the list is full, otherwise 0. */
+        private volatile long threshold;
+
+        TopValues(int size) {
+            this.size = size;
+            this.counts = new ConcurrentHashMap<String, Long>();
+            this.threshold = 0;
+        }
+
+        void offer(String value, long estimate) {
+            Long current = this.counts.get(value);
+            if (current != null) {
+                if (estimate > current) {
+                    this.counts.replace(value, current, estimate);
+                }
+                return;
+            }
+            synchronized (this) {
+                if (this.counts.containsKey(value)) {
+                    return;
+                }
+                if (this.counts.size() >= this.size) {
+                    Map.Entry<String, Long> min = findMin();
+                    if (min == null || estimate <= min.getValue()) {
+                        return;
+                    }
+                    this.counts.remove(min.getKey());
+                }
+                this.counts.put(value, estimate);
+                updateThreshold();
+            }
+        }
+
+        synchronized void decay() {
+            for (Iterator<Map.Entry<String, Long>> i = this.counts.entrySet().iterator(); i
+                    .hasNext();) {
+                Map.Entry<String, Long> e = i.next();
+                long c = e.getValue() >>> 1;
+                if (c == 0) {
+                    i.remove();
+                } else {
+                    e.setValue(c);
+                }
+            }
+            updateThreshold();
+        }
+
+        private Map.Entry<String, Long> findMin() {
+            Map.Entry<String, Long> retval = null;
+            for (Map.Entry<String, Long> e : this.counts.entrySet()) {
+                if (retval == null || e.getValue() < retval.getValue()) {
+                    retval = e;
+                }
+            }
+            return retval;
+        }
+
+        private void updateThreshold() {
+            Map.Entry<String, Long> min = this.counts.size() >= this.size ? findMin() : null;
+            this.threshold = min != null ? min.getValue() : 0;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.restlet.Finder;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Resource;
+
+/**
+ * Finder for {@link DimensionValueSketchResource}, mapped to <code>/rest/wmsdim-viewparam/values</code>.
+ */
+public class DimensionValueSketchFinder extends Finder {
+
+    private final DimensionValueSketch valueSketch;
+
+    public DimensionValueSketchFinder(DimensionValueSketch valueSketch) {
+        this.valueSketch = valueSketch;
+    }
+
+    @Override
+    public Resource findTarget(Request request, Response response) {
+        return new DimensionValueSketchResource(getContext(), request, response,
+                this.valueSketch);
+    }
+}
@@ -0,0 +1,36 @@
+package org.geoserver.wms.dimension.viewparam;
+
+/**
+ * JMX management interface of {@link DimensionValueSketch}.
+ */
+public interface DimensionValueSketchMBean {
+
+    long getDecayIntervalMillis();
+
+    void setDecayIntervalMillis(long decayIntervalMillis);
+
+    double getSampleRate();
+
+    void setSampleRate(double sampleRate);
+
+    int getMaxValuesPerRequest();
+
+    void setMaxValuesPerRequest(int maxValuesPerRequest);
+
+    int getTopCount();
+
+    /**
+     * @return the tracked categories
+     */
+    String[] getCategories();
+
+    /**
+     * Returns the most frequent values of the given category.
+     * 
+     * @param category TIME, ELEVATION, LAYERS or a DIM_ parameter name
+     * @return the values with their estimated counts as "value=count", most frequent first
+     */
+    String[] getTopValues(String category);
+
+    void reset();
+}
@@ -0,0 +1,69 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.RestletException;
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * REST resource for reading (GET) the most frequent values counted by {@link DimensionValueSketch} as XML or JSON, and for removing the counts
+ * (DELETE). The values can be restricted to a single category with the <code>category</code> query parameter, and the number of values
+ * returned for each category limited with the <code>limit</code> query parameter.
+ */
+public class DimensionValueSketchResource extends ReflectiveResource {
+
+    private final DimensionValueSketch valueSketch;
+
+    public DimensionValueSketchResource(Context context, Request request, Response response,
+            DimensionValueSketch valueSketch) {
+        super(context, request, response);
+        this.valueSketch = valueSketch;
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        Form query = getRequest().getResourceRef().getQueryAsForm();
+        int limit = this.valueSketch.getTopCount();
+        String value = query.getFirstValue("limit");
+        if (value != null) {
+            try {
+                limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new RestletException("Invalid limit: " + value,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+            if (limit < 0) {
+                throw new RestletException("Invalid limit: " + value,
+                        Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+        }
+        String category = query.getFirstValue("category");
+        if (category != null) {
+            return this.valueSketch.getTopValues(category, limit);
+        }
+        return this.valueSketch.getTopValues(limit);
+    }
+
+    @Override
+    public boolean allowDelete() {
+        return true;
+    }
+
+    @Override
+    public void handleDelete() {
+        this.valueSketch.reset();
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("valueCounts", ArrayList.class);
+        xstream.alias("valueCount", DimensionValueCount.class);
+    }
+}
@@ -0,0 +1,23 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.restlet.Finder;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Resource;
+
+/**
+ * Finder for {@link DimensionWarmupResource}, mapped to <code>/rest/wmsdim-viewparam/ready</code>.
+ */
+public class DimensionWarmupFinder extends Finder {
+
+    private final DimensionTransformerWarmup warmup;
+
+    public DimensionWarmupFinder(DimensionTransformerWarmup warmup) {
+        this.warmup = warmup;
+    }
+
+    @Override
+    public Resource findTarget(Request request, Response response) {
+        return new DimensionWarmupResource(getContext(), request, response, this.warmup);
+    }
+}
@@ -0,0 +1,38 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import org.geoserver.rest.ReflectiveResource;
+import org.restlet.Context;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * REST resource for reading (GET) the progress of the {@link DimensionTransformerWarmup} as XML or JSON. The response status is 503 Service
+ * Unavailable until the warm-up has finished, so the resource can be used as the readiness check of a load balancer.
+ */
+public class DimensionWarmupResource extends ReflectiveResource {
+
+    private final DimensionTransformerWarmup warmup;
+
+    public DimensionWarmupResource(Context context, Request request, Response response,
+            DimensionTransformerWarmup warmup) {
+        super(context, request, response);
+        this.warmup = warmup;
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        DimensionTransformerWarmup.Status status = this.warmup.getStatus();
+        if (!status.isReady()) {
+            getResponse().setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+        }
+        return status;
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("warmup", DimensionTransformerWarmup.Status.class);
+    }
+}
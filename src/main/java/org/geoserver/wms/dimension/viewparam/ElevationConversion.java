@@ -0,0 +1,120 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.List;
+
+/**
+ * Declares the conversion of the requested elevations of a layer into the units of the stored elevations, so that the SQL view can compare the
+ * stored values directly:
+ * <ul>
+ * <li>{@link Type#LINEAR}: <code>value * scale + offset</code>, e.g. a scale of 0.3048 from feet to metres,</li>
+ * <li>{@link Type#TABLE}: linear interpolation between the output values of the two nearest input values of a table, e.g. from pressure
+ * levels to heights. With logarithmic interpolation the logarithms of the input values are interpolated, which suits pressure levels. The
+ * elevations outside the table are rejected with an InvalidDimensionValue exception.</li>
+ * </ul>
+ * The lowest and the highest value of a range are swapped if the conversion is decreasing.
+ */
+public class ElevationConversion {
+
+    public enum Type {
+        LINEAR, TABLE
+    }
+
+    private Type type;
+
+    private Double scale;
+
+    private Double offset;
+
+    private List<Double> inputValues;
+
+    private List<Double> outputValues;
+
+    private Boolean logarithmic;
+
+    public ElevationConversion() {
+        this.type = null;
+        this.scale = null;
+        this.offset = null;
+        this.inputValues = null;
+        this.outputValues = null;
+        this.logarithmic = null;
+    }
+
+    public ElevationConversion(Type type) {
+        this();
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public Double getScale() {
+        return scale;
+    }
+
+    /**
+     * Set the multiplier of a LINEAR conversion. Default is 1.
+     * 
+     * @param scale
+     */
+    public void setScale(Double scale) {
+        this.scale = scale;
+    }
+
+    public Double getOffset() {
+        return offset;
+    }
+
+    /**
+     * Set the value added in a LINEAR conversion after scaling. Default is 0.
+     * 
+     * @param offset
+     */
+    public void setOffset(Double offset) {
+        this.offset = offset;
+    }
+
+    public List<Double> getInputValues() {
+        return inputValues;
+    }
+
+    /**
+     * Set the requested elevations of a TABLE conversion, in any order.
+     * 
+     * @param inputValues
+     */
+    public void setInputValues(List<Double> inputValues) {
+        this.inputValues = inputValues;
+    }
+
+    public List<Double> getOutputValues() {
+        return outputValues;
+    }
+
+    /**
+     * Set the stored elevations corresponding to the input values of a TABLE conversion.
+     * 
+     * @param outputValues
+     */
+    public void setOutputValues(List<Double> outputValues) {
+        this.outputValues = outputValues;
+    }
+
+    public Boolean getLogarithmic() {
+        return logarithmic;
+    }
+
+    /**
+     * Enable or disable interpolating the logarithms of the input values of a TABLE conversion. Disabled by default.
+     * 
+     * @param logarithmic
+     */
+    public void setLogarithmic(Boolean logarithmic) {
+        this.logarithmic = logarithmic;
+    }
+}
@@ -0,0 +1,172 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.NumberRange;
+
+/**
+ * Conversion of the requested elevations of a layer, compiled from an {@link ElevationConversion} when the configuration is set. The tables
+ * are kept in primitive arrays searched with a binary search. Instances are immutable and shared by the concurrent requests.
+ */
+abstract class ElevationConverter {
+
+    protected final String layerName;
+
+    ElevationConverter(String layerName) {
+        this.layerName = layerName;
+    }
+
+    /**
+     * Compiles the converter for the given conversion.
+     *
+     * @param layerName the prefixed name of the layer
+     * @param conversion
+     * @return the converter
+     * @throws IllegalArgumentException if the conversion is not valid
+     */
+    static ElevationConverter compile(String layerName, ElevationConversion conversion)
+            throws IllegalArgumentException {
+        if (conversion.getType() == null) {
+            throw new IllegalArgumentException("No type given for the elevation conversion of "
+                    + layerName);
+        }
+        switch (conversion.getType()) {
+        case LINEAR:
+            return new LinearConverter(layerName, conversion);
+        case TABLE:
+            return new TableConverter(layerName, conversion);
+        default:
+            throw new IllegalArgumentException("Unsupported type " + conversion.getType()
+                    + " for the elevation conversion of " + layerName);
+        }
+    }
+
+    /**
+     * Converts a single elevation.
+     *
+     * @throws ServiceException if the elevation cannot be converted
+     */
+    abstract double convert(double value) throws ServiceException;
+
+    /**
+     * Converts the requested elevations and elevation ranges.
+     *
+     * @param elevations the {@link Number} values and {@link NumberRange} ranges
+     * @return the converted values as {@link Double} values and ranges
+     * @throws ServiceException if an elevation cannot be converted
+     */
+    List<Object> convert(List<Object> elevations) throws ServiceException {
+        List<Object> retval = new ArrayList<Object>(elevations.size());
+        for (Object elev : elevations) {
+            if (elev instanceof Number) {
+                retval.add(Double.valueOf(convert(((Number) elev).doubleValue())));
+            } else if (elev instanceof NumberRange) {
+                double a = convert(((NumberRange<?>) elev).getMinimum());
+                double b = convert(((NumberRange<?>) elev).getMaximum());
+                retval.add(new NumberRange<Double>(Double.class, Math.min(a, b), Math.max(a, b)));
+            }
+        }
+        return retval;
+    }
+
+    private static class LinearConverter extends ElevationConverter {
+
+        private final double scale;
+
+        private final double offset;
+
+        LinearConverter(String layerName, ElevationConversion conversion) {
+            super(layerName);
+            this.scale = conversion.getScale() != null ? conversion.getScale() : 1d;
+            this.offset = conversion.getOffset() != null ? conversion.getOffset() : 0d;
+            if (this.scale == 0 || Double.isNaN(this.scale) || Double.isInfinite(this.scale)
+                    || Double.isNaN(this.offset) || Double.isInfinite(this.offset)) {
+                throw new IllegalArgumentException("Invalid scale or offset in the elevation "
+                        + "conversion of " + layerName);
+            }
+        }
+
+        @Override
+        double convert(double value) {
+            return value * this.scale + this.offset;
+        }
+    }
+
+    private static class TableConverter extends ElevationConverter {
+
+        private final double[] inputs;
+
+        private final double[] outputs;
+
+        private final boolean logarithmic;
+
+        TableConverter(String layerName, ElevationConversion conversion) {
+            super(layerName);
+            final List<Double> in = conversion.getInputValues();
+            final List<Double> out = conversion.getOutputValues();
+            if (in == null || out == null || in.size() != out.size() || in.size() < 2) {
+                throw new IllegalArgumentException("The elevation conversion table of "
+                        + layerName + " needs at least two input values and as many outputs");
+            }
+            this.logarithmic = conversion.getLogarithmic() != null && conversion.getLogarithmic();
+            // validated before sorting, as the comparator cannot handle the null values:
+            for (int i = 0; i < in.size(); i++) {
+                Double x = in.get(i);
+                Double y = out.get(i);
+                if (!isFinite(x) || !isFinite(y) || (this.logarithmic && x <= 0)) {
+                    throw new IllegalArgumentException("Invalid value in the elevation conversion"
+                            + " table of " + layerName);
+                }
+            }
+            Integer[] order = new Integer[in.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(in.get(a), in.get(b));
+                }
+            });
+            this.inputs = new double[order.length];
+            this.outputs = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                double x = in.get(order[i]);
+                double y = out.get(order[i]);
+                this.inputs[i] = this.logarithmic ? Math.log(x) : x;
+                this.outputs[i] = y;
+                if (i > 0 && this.inputs[i] == this.inputs[i - 1]) {
+                    throw new IllegalArgumentException("Duplicate input value " + x
+                            + " in the elevation conversion table of " + layerName);
+                }
+            }
+        }
+
+        private static boolean isFinite(Double value) {
+            return value != null && !Double.isNaN(value) && !Double.isInfinite(value);
+        }
+
+        @Override
+        double convert(double value) throws ServiceException {
+            double x = this.logarithmic ? Math.log(value) : value;
+            int last = this.inputs.length - 1;
+            if (!(x >= this.inputs[0] && x <= this.inputs[last])) {
+                throw new ServiceException("Elevation " + value
+                        + " is outside the conversion table of layer " + this.layerName,
+                        "InvalidDimensionValue", "ELEVATION");
+            }
+            int i = Arrays.binarySearch(this.inputs, x);
+            if (i >= 0) {
+                return this.outputs[i];
+            }
+            int upper = -i - 1;
+            int lower = upper - 1;
+            double t = (x - this.inputs[lower]) / (this.inputs[upper] - this.inputs[lower]);
+            return this.outputs[lower] + t * (this.outputs[upper] - this.outputs[lower]);
+        }
+    }
+}
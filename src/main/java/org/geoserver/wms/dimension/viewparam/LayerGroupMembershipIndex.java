@@ -0,0 +1,211 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.PublishedInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.opengis.feature.type.Name;
+
+/**
+ * Index of the layer group memberships of the catalog resources, with the nested groups flattened. The index is built on first use after any
+ * change to the layer groups, layers or resources of the catalog, so looking up the groups of a resource during a request is a single hash
+ * lookup.
+ *
+ * The layer groups are identified by their prefixed names (<code>workspace:group</code>, or <code>group</code> for global groups).
+ */
+public class LayerGroupMembershipIndex implements CatalogListener {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(LayerGroupMembershipIndex.class.getName());
+
+    /**
+     * Immutable snapshot of the memberships.
+     */
+    private static class Memberships {
+
+        final Map<Name, Set<String>> groupsByResource = new HashMap<Name, Set<String>>();
+
+        final Map<String, Set<Name>> membersByGroup = new HashMap<String, Set<Name>>();
+    }
+
+    private final Catalog catalog;
+
+    private volatile Memberships memberships;
+
+    private final AtomicInteger generation;
+
+    /**
+     * Creates a new index and registers it as a listener of the given catalog.
+     *
+     * @param catalog
+     */
+    public LayerGroupMembershipIndex(Catalog catalog) {
+        this.catalog = catalog;
+        this.memberships = null;
+        this.generation = new AtomicInteger();
+        catalog.addListener(this);
+    }
+
+    /**
+     * Returns the names of the layer groups containing the given resource directly or through nested groups.
+     *
+     * @param resource
+     * @return the prefixed layer group names, or an empty set if the resource is not in any group
+     */
+    public Set<String> getLayerGroupNames(ResourceInfo resource) {
+        if (resource == null) {
+            return Collections.emptySet();
+        }
+        Set<String> retval = getMemberships().groupsByResource.get(resource.getQualifiedName());
+        return retval != null ? retval : Collections.<String> emptySet();
+    }
+
+    /**
+     * Returns the qualified names of the resources in the given layer group, including the members of the nested groups.
+     *
+     * @param layerGroupName the prefixed layer group name
+     * @return the member resource names, or an empty set if there is no such group
+     */
+    public Set<Name> getMemberResourceNames(String layerGroupName) {
+        Set<Name> retval = getMemberships().membersByGroup.get(layerGroupName);
+        return retval != null ? retval : Collections.<Name> emptySet();
+    }
+
+    /**
+     * Returns the number of the changes of the catalog seen by this index, for invalidating the results computed with the previous
+     * memberships.
+     *
+     * @return the generation
+     */
+    public int getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Discards the index, to be rebuilt on next use.
+     */
+    public void clear() {
+        this.generation.incrementAndGet();
+        this.memberships = null;
+    }
+
+    private Memberships getMemberships() {
+        Memberships retval = this.memberships;
+        if (retval == null) {
+            synchronized (this) {
+                retval = this.memberships;
+                if (retval == null) {
+                    int gen = this.generation.get();
+                    retval = build();
+                    // don't keep the result if the catalog changed during the build:
+                    if (gen == this.generation.get()) {
+                        this.memberships = retval;
+                    }
+                }
+            }
+        }
+        return retval;
+    }
+
+    private Memberships build() {
+        Memberships retval = new Memberships();
+        for (LayerGroupInfo group : this.catalog.getLayerGroups()) {
+            String groupName = group.prefixedName();
+            Set<Name> members = new HashSet<Name>();
+            collectMembers(group, members, new HashSet<String>());
+            retval.membersByGroup.put(groupName, Collections.unmodifiableSet(members));
+            for (Name member : members) {
+                Set<String> groups = retval.groupsByResource.get(member);
+                if (groups == null) {
+                    groups = new HashSet<String>();
+                    retval.groupsByResource.put(member, groups);
+                }
+                groups.add(groupName);
+            }
+        }
+        for (Map.Entry<Name, Set<String>> e : retval.groupsByResource.entrySet()) {
+            e.setValue(Collections.unmodifiableSet(e.getValue()));
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Indexed " + retval.groupsByResource.size()
+                    + " resources in " + retval.membersByGroup.size() + " layer groups");
+        }
+        return retval;
+    }
+
+    private static void collectMembers(LayerGroupInfo group, Set<Name> members,
+            Set<String> visited) {
+        if (!visited.add(group.getId() != null ? group.getId() : group.prefixedName())) {
+            // a cycle, already collected
+            return;
+        }
+        if (group.getRootLayer() != null) {
+            addMember(group.getRootLayer(), members);
+        }
+        if (group.getLayers() != null) {
+            for (PublishedInfo published : group.getLayers()) {
+                if (published instanceof LayerInfo) {
+                    addMember((LayerInfo) published, members);
+                } else if (published instanceof LayerGroupInfo) {
+                    collectMembers((LayerGroupInfo) published, members, visited);
+                }
+            }
+        }
+    }
+
+    private static void addMember(LayerInfo layer, Set<Name> members) {
+        ResourceInfo resource = layer.getResource();
+        if (resource != null) {
+            members.add(resource.getQualifiedName());
+        }
+    }
+
+    private void invalidate(CatalogInfo source) {
+        if (source instanceof LayerGroupInfo || source instanceof LayerInfo
+                || source instanceof ResourceInfo) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+}
@@ -0,0 +1,271 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * View parameter map with values formatted only when they are first accessed. The map keys are known up front, but the values may be given as
+ * {@link LazyValue} instances holding the typed dimension values. The formatted value is memoised in the {@link LazyValue} itself, so a lazy
+ * value is formatted at most once, however many maps share it: the maps of the layers of a request, or the copies of a memoised result given to
+ * several requests. The maps themselves are not shared between requests.
+ *
+ * The map is intended to be filled by a single thread when the request is initialized, and read by any number of threads after that.
+ */
+public class LazyViewParameterMap extends AbstractMap<String, String> {
+
+    /**
+     * A view parameter value formatted on first access.
+     */
+    public static abstract class LazyValue {
+
+        private volatile String value;
+
+        /**
+         * Returns the formatted value, formatting it if not already done.
+         *
+         * @return the formatted value
+         */
+        public final String get() {
+            String retval = this.value;
+            if (retval == null) {
+                retval = format();
+                this.value = retval;
+            }
+            return retval;
+        }
+
+        /**
+         * Is the value already formatted?
+         *
+         * @return true if formatted
+         */
+        public final boolean isFormatted() {
+            return this.value != null;
+        }
+
+        /**
+         * Returns the number of the values joined into this value, for deciding whether the value is worth formatting in parallel.
+         *
+         * @return the number of the values, 1 by default
+         */
+        public int getValueCount() {
+            return 1;
+        }
+
+        /**
+         * Appends a canonical description of the typed input of this value, identifying the formatted value without formatting it. Values with
+         * equal descriptions must format to equal values. By default the formatted value itself is appended.
+         *
+         * @param sb
+         */
+        protected void appendInput(StringBuilder sb) {
+            sb.append(get());
+        }
+
+        /**
+         * Formats the value. Called at most once per thread, the returned value must not be null.
+         */
+        protected abstract String format();
+    }
+
+    private final Map<String, Object> entries;
+
+    public LazyViewParameterMap() {
+        this.entries = new LinkedHashMap<String, Object>();
+    }
+
+    /**
+     * Creates a new map containing the given, already formatted values.
+     *
+     * @param values
+     */
+    public LazyViewParameterMap(Map<String, String> values) {
+        this.entries = new LinkedHashMap<String, Object>();
+        if (values instanceof LazyViewParameterMap) {
+            this.entries.putAll(((LazyViewParameterMap) values).entries);
+        } else if (values != null) {
+            this.entries.putAll(values);
+        }
+    }
+
+    /**
+     * Sets a value to be formatted on first access.
+     *
+     * @param name
+     * @param value
+     */
+    public void putLazy(String name, LazyValue value) {
+        this.entries.put(name, value);
+    }
+
+    /**
+     * Copies the entries of the given map into this map without formatting the lazy values.
+     *
+     * @param from the map to copy from
+     * @param override set true to replace the existing values with the same name
+     */
+    public void putAll(LazyViewParameterMap from, boolean override) {
+        if (override) {
+            this.entries.putAll(from.entries);
+        } else {
+            for (Map.Entry<String, Object> e : from.entries.entrySet()) {
+                if (!this.entries.containsKey(e.getKey())) {
+                    this.entries.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new map with the entries of this map with the given names, without formatting the lazy values.
+     *
+     * @param names
+     * @return the new map
+     */
+    public LazyViewParameterMap subMap(Collection<String> names) {
+        LazyViewParameterMap retval = new LazyViewParameterMap();
+        for (String name : names) {
+            Object value = this.entries.get(name);
+            if (value != null) {
+                retval.entries.put(name, value);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Adds the lazy values of this map not yet formatted to the given collection.
+     *
+     * @param to
+     */
+    void collectUnformatted(Collection<LazyValue> to) {
+        for (Object value : this.entries.values()) {
+            if (value instanceof LazyValue && !((LazyValue) value).isFormatted()) {
+                to.add((LazyValue) value);
+            }
+        }
+    }
+
+    /**
+     * Is the value with the given name already formatted?
+     *
+     * @param name
+     * @return true if the value is formatted, false if not or if there is no value with the given name
+     */
+    public boolean isFormatted(String name) {
+        Object value = this.entries.get(name);
+        if (value instanceof LazyValue) {
+            return ((LazyValue) value).isFormatted();
+        }
+        return value != null;
+    }
+
+    /**
+     * Appends the entries of this map in name order, with the canonical input of the lazy values instead of the formatted values, so the lazy
+     * values are not formatted.
+     *
+     * @param sb
+     */
+    void appendInputs(StringBuilder sb) {
+        for (String name : new TreeSet<String>(this.entries.keySet())) {
+            Object value = this.entries.get(name);
+            sb.append(name).append('=');
+            if (value instanceof LazyValue) {
+                ((LazyValue) value).appendInput(sb);
+            } else {
+                sb.append((String) value);
+            }
+            sb.append('\n');
+        }
+    }
+
+    private static String resolve(Object value) {
+        if (value instanceof LazyValue) {
+            return ((LazyValue) value).get();
+        }
+        return (String) value;
+    }
+
+    @Override
+    public String get(Object key) {
+        return resolve(this.entries.get(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.entries.containsKey(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return resolve(this.entries.put(key, value));
+    }
+
+    @Override
+    public String remove(Object key) {
+        return resolve(this.entries.remove(key));
+    }
+
+    @Override
+    public void clear() {
+        this.entries.clear();
+    }
+
+    @Override
+    public int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(this.entries.keySet());
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                final Iterator<Map.Entry<String, Object>> delegate = entries.entrySet()
+                        .iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return delegate.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        Map.Entry<String, Object> e = delegate.next();
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(e.getKey(),
+                                resolve(e.getValue()));
+                    }
+
+                    @Override
+                    public void remove() {
+                        delegate.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,179 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Formats the view parameter values of very large requests on a bounded fork-join pool. A list of more than <code>threshold</code> values is
+ * split into chunks of at most <code>threshold</code> values, formatted in parallel and joined in the original order, and the distinct lazy
+ * values of a request (such as the time values of the layers with different time zones) are formatted in parallel when the request is
+ * initialized. Smaller requests are formatted sequentially in the calling thread, as before.
+ */
+public class ParallelListFormatter {
+
+    /**
+     * A list of values, any range of which can be formatted independently.
+     */
+    interface ChunkedList {
+
+        int size();
+
+        /**
+         * Appends the comma separated values from <code>from</code> (inclusive) to <code>to</code> (exclusive), without a leading comma.
+         */
+        void format(int from, int to, StringBuilder sb);
+    }
+
+    private final ForkJoinPool pool;
+
+    private final int threshold;
+
+    public ParallelListFormatter() {
+        this(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1), 1000);
+    }
+
+    /**
+     * @param parallelism the number of the formatting threads
+     * @param threshold the number of values formatted sequentially
+     */
+    public ParallelListFormatter(int parallelism, int threshold) {
+        if (parallelism <= 0 || threshold <= 0) {
+            throw new IllegalArgumentException("The parallelism and the threshold must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.threshold = threshold;
+    }
+
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Formats the given list, in parallel if it has more values than the threshold.
+     *
+     * @param list
+     * @return the comma separated values
+     */
+    String format(ChunkedList list) {
+        int size = list.size();
+        if (size <= this.threshold) {
+            StringBuilder sb = new StringBuilder();
+            list.format(0, size, sb);
+            return sb.toString();
+        }
+        return invoke(new ChunkTask(list, 0, size));
+    }
+
+    /**
+     * Formats the distinct lazy values of the given view parameters in parallel, if they hold more values than the threshold in total. The
+     * values are formatted in the calling thread on first access otherwise.
+     *
+     * @param viewParams
+     */
+    void prefetch(List<Map<String, String>> viewParams) {
+        Set<LazyViewParameterMap.LazyValue> values = Collections
+                .newSetFromMap(new IdentityHashMap<LazyViewParameterMap.LazyValue, Boolean>());
+        for (Map<String, String> params : viewParams) {
+            if (params instanceof LazyViewParameterMap) {
+                ((LazyViewParameterMap) params).collectUnformatted(values);
+            }
+        }
+        if (values.size() < 2) {
+            return;
+        }
+        long count = 0;
+        for (LazyViewParameterMap.LazyValue value : values) {
+            count += value.getValueCount();
+        }
+        if (count > this.threshold) {
+            invoke(new PrefetchTask(new ArrayList<LazyViewParameterMap.LazyValue>(values)));
+        }
+    }
+
+    private <T> T invoke(ForkJoinTask<T> task) {
+        // nested tasks are run in the pool of the current task:
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : this.pool.invoke(task);
+    }
+
+    /**
+     * Stops the formatting threads.
+     */
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    private final class ChunkTask extends RecursiveTask<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkedList list;
+
+        private final int from;
+
+        private final int to;
+
+        ChunkTask(ChunkedList list, int from, int to) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected String compute() {
+            if (this.to - this.from <= threshold) {
+                StringBuilder sb = new StringBuilder();
+                this.list.format(this.from, this.to, sb);
+                return sb.toString();
+            }
+            int middle = (this.from + this.to) >>> 1;
+            ChunkTask left = new ChunkTask(this.list, this.from, middle);
+            left.fork();
+            String right = new ChunkTask(this.list, middle, this.to).compute();
+            String retval = left.join();
+            if (retval.isEmpty()) {
+                return right;
+            }
+            return right.isEmpty() ? retval : retval + ',' + right;
+        }
+    }
+
+    private static final class PrefetchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<LazyViewParameterMap.LazyValue> values;
+
+        PrefetchTask(List<LazyViewParameterMap.LazyValue> values) {
+            this.values = values;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(this.values.size());
+            for (final LazyViewParameterMap.LazyValue value : this.values) {
+                tasks.add(new RecursiveAction() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void compute() {
+                        value.get();
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+
+/**
+ * A GetMap request recorded by {@link DimensionRequestRecorder}: the requested layers, the raw dimension request parameters, the parsed TIME and
+ * ELEVATION values, the view parameters given by the client, the resulting view parameters and the time spent in the transformation.
+ */
+public class RecordedRequest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte INSTANT = 0;
+
+    private static final byte RANGE = 1;
+
+    /**
+     * Identity of a requested layer.
+     */
+    public static class RecordedLayer {
+
+        private final String namespacePrefix;
+
+        private final String namespaceURI;
+
+        private final String localName;
+
+        public RecordedLayer(String namespacePrefix, String namespaceURI, String localName) {
+            this.namespacePrefix = namespacePrefix;
+            this.namespaceURI = namespaceURI;
+            this.localName = localName;
+        }
+
+        public String getNamespacePrefix() {
+            return namespacePrefix;
+        }
+
+        public String getNamespaceURI() {
+            return namespaceURI;
+        }
+
+        public String getLocalName() {
+            return localName;
+        }
+    }
+
+    private long timestamp;
+
+    private long durationNanos;
+
+    private List<RecordedLayer> layers;
+
+    private Map<String, String> dimensionKvp;
+
+    private List<Object> times;
+
+    private List<Object> elevations;
+
+    private List<Map<String, String>> inputViewParams;
+
+    private List<Map<String, String>> viewParams;
+
+    private RecordedRequest() {
+    }
+
+    /**
+     * Creates a record of the given request after the transformation, before its view parameters are replaced with the transformed ones. The
+     * view parameters given by the client are copied, the transformed view parameters are not formatted until the record is encoded.
+     *
+     * @param request the transformed request
+     * @param viewParams the view parameters after the transformation
+     * @param durationNanos the time spent in the transformation
+     * @return the record
+     */
+    public static RecordedRequest of(GetMapRequest request, List<Map<String, String>> viewParams,
+            long durationNanos) {
+        RecordedRequest retval = new RecordedRequest();
+        retval.timestamp = System.currentTimeMillis();
+        retval.durationNanos = durationNanos;
+        retval.layers = new ArrayList<RecordedLayer>();
+        if (request.getLayers() != null) {
+            for (MapLayerInfo l : request.getLayers()) {
+                LayerInfo layer = l.getLayerInfo();
+                ResourceInfo resource = layer != null ? layer.getResource() : null;
+                if (resource != null && resource.getNamespace() != null) {
+                    retval.layers.add(new RecordedLayer(resource.getNamespace().getPrefix(),
+                            resource.getNamespace().getURI(), resource.getName()));
+                } else {
+                    retval.layers.add(new RecordedLayer(null, null, l.getName()));
+                }
+            }
+        }
+        retval.dimensionKvp = new LinkedHashMap<String, String>();
+        if (request.getRawKvp() != null) {
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                String key = e.getKey().toUpperCase();
+                if ("TIME".equals(key) || "ELEVATION".equals(key) || key.startsWith("DIM_")) {
+                    retval.dimensionKvp.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+        retval.times = request.getTime() != null ? request.getTime()
+                : Collections.<Object> emptyList();
+        retval.elevations = request.getElevation() != null ? request.getElevation()
+                : Collections.<Object> emptyList();
+        if (request.getViewParams() != null) {
+            retval.inputViewParams = new ArrayList<Map<String, String>>(request.getViewParams()
+                    .size());
+            for (Map<String, String> params : request.getViewParams()) {
+                retval.inputViewParams.add(params != null ? new LinkedHashMap<String, String>(
+                        params) : null);
+            }
+        }
+        retval.viewParams = viewParams;
+        return retval;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public List<RecordedLayer> getLayers() {
+        return layers;
+    }
+
+    public Map<String, String> getDimensionKvp() {
+        return dimensionKvp;
+    }
+
+    public List<Object> getTimes() {
+        return times;
+    }
+
+    public List<Object> getElevations() {
+        return elevations;
+    }
+
+    /**
+     * Returns the view parameters given by the client for each layer.
+     *
+     * @return the view parameters, or null if the request had none or was recorded in the version 1 format
+     */
+    public List<Map<String, String>> getInputViewParams() {
+        return inputViewParams;
+    }
+
+    /**
+     * Returns the recorded view parameters for each layer.
+     *
+     * @return the view parameters, or null if the request had none after the transformation
+     */
+    public List<Map<String, String>> getViewParams() {
+        return viewParams;
+    }
+
+    /**
+     * Encodes the record in the binary log format.
+     *
+     * @return the encoded record
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(this.timestamp);
+            out.writeLong(this.durationNanos);
+            out.writeInt(this.layers.size());
+            for (RecordedLayer layer : this.layers) {
+                writeString(out, layer.namespacePrefix);
+                writeString(out, layer.namespaceURI);
+                writeString(out, layer.localName);
+            }
+            writeMap(out, this.dimensionKvp);
+            out.writeInt(this.times.size());
+            for (Object time : this.times) {
+                if (time instanceof DateRange) {
+                    out.writeByte(RANGE);
+                    out.writeLong(((DateRange) time).getMinValue().getTime());
+                    out.writeLong(((DateRange) time).getMaxValue().getTime());
+                } else {
+                    out.writeByte(INSTANT);
+                    out.writeLong(time instanceof Date ? ((Date) time).getTime() : 0L);
+                }
+            }
+            out.writeInt(this.elevations.size());
+            for (Object elev : this.elevations) {
+                if (elev instanceof NumberRange) {
+                    out.writeByte(RANGE);
+                    out.writeDouble(((NumberRange<?>) elev).getMinimum());
+                    out.writeDouble(((NumberRange<?>) elev).getMaximum());
+                } else {
+                    out.writeByte(INSTANT);
+                    out.writeDouble(elev instanceof Number ? ((Number) elev).doubleValue()
+                            : Double.NaN);
+                }
+            }
+            writeList(out, this.viewParams);
+            writeList(out, this.inputViewParams);
+            out.flush();
+        } catch (IOException e) {
+            // never happens with a byte array stream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a record from the current binary log format.
+     *
+     * @param in
+     * @return the decoded record
+     * @throws IOException
+     */
+    public static RecordedRequest decode(DataInputStream in) throws IOException {
+        return decode(in, DimensionRequestRecorder.VERSION);
+    }
+
+    /**
+     * Decodes a record from the given version of the binary log format. The version 1 records have no view parameters given by the client.
+     */
+    static RecordedRequest decode(DataInputStream in, int version) throws IOException {
+        RecordedRequest retval = new RecordedRequest();
+        retval.timestamp = in.readLong();
+        retval.durationNanos = in.readLong();
+        int count = in.readInt();
+        retval.layers = new ArrayList<RecordedLayer>(count);
+        for (int i = 0; i < count; i++) {
+            retval.layers.add(new RecordedLayer(readString(in), readString(in), readString(in)));
+        }
+        retval.dimensionKvp = readMap(in);
+        count = in.readInt();
+        retval.times = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.readByte() == RANGE) {
+                retval.times.add(new DateRange(new Date(in.readLong()), new Date(in.readLong())));
+            } else {
+                retval.times.add(new Date(in.readLong()));
+            }
+        }
+        count = in.readInt();
+        retval.elevations = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.readByte() == RANGE) {
+                retval.elevations.add(new NumberRange<Double>(Double.class, in.readDouble(),
+                        in.readDouble()));
+            } else {
+                retval.elevations.add(in.readDouble());
+            }
+        }
+        retval.viewParams = readList(in);
+        if (version >= 2) {
+            retval.inputViewParams = readList(in);
+        }
+        return retval;
+    }
+
+    private static void writeList(DataOutputStream out, List<Map<String, String>> list)
+            throws IOException {
+        if (list == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(list.size());
+            for (Map<String, String> params : list) {
+                writeMap(out, params);
+            }
+        }
+    }
+
+    private static List<Map<String, String>> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        List<Map<String, String>> retval = new ArrayList<Map<String, String>>(count);
+        for (int i = 0; i < count; i++) {
+            retval.add(readMap(in));
+        }
+        return retval;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        if (map == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        Map<String, String> retval = new HashMap<String, String>(count * 2);
+        for (int i = 0; i < count; i++) {
+            retval.put(readString(in), readString(in));
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,85 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * {@link AnimationFrameListener} warming the database ahead of the next animation frame by counting the features of the SQL view layers within
+ * the bounding box of the frame, with the expected view parameters. The count runs the SQL view query of the next frame, so that the database
+ * has the rows of the frame cached by the time the frame is requested. The bounding box of the frame is reprojected from the CRS of the request
+ * to the native CRS of each layer.
+ */
+public class SQLViewWarmingListener implements AnimationFrameListener {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(SQLViewWarmingListener.class.getName());
+
+    private static final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+
+    @Override
+    public void frameExpected(AnimationFrame frame) {
+        List<Map<String, String>> viewParams = frame.getViewParams();
+        if (viewParams == null || viewParams.size() != frame.getLayers().size()) {
+            return;
+        }
+        for (int i = 0; i < viewParams.size(); i++) {
+            LayerInfo layer = frame.getLayers().get(i);
+            if (layer == null) {
+                continue;
+            }
+            ResourceInfo resource = layer.getResource();
+            if (!(resource instanceof FeatureTypeInfo) || resource.getMetadata() == null
+                    || !resource.getMetadata().containsKey(FeatureTypeInfo.JDBC_VIRTUAL_TABLE)) {
+                continue;
+            }
+            try {
+                FeatureSource<?, ?> source = ((FeatureTypeInfo) resource).getFeatureSource(null,
+                        null);
+                Query query = new Query(source.getSchema().getName().getLocalPart(),
+                        ff.bbox(ff.property(""), toNativeCRS(frame.getBbox(), source)));
+                query.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, viewParams.get(i)));
+                int count = source.getCount(query);
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "Warmed " + count + " features of '" + layer.getName()
+                            + "' for the time " + frame.getTime());
+                }
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not warm the SQL view of '" + layer.getName() + "'", e);
+            } catch (TransformException e) {
+                log.log(Level.FINE, "Could not reproject the frame bounding box for '"
+                        + layer.getName() + "'", e);
+            } catch (FactoryException e) {
+                log.log(Level.FINE, "Could not reproject the frame bounding box for '"
+                        + layer.getName() + "'", e);
+            }
+        }
+    }
+
+    /**
+     * Reprojects the given bounding box to the CRS of the given feature source, if both are known and differ.
+     */
+    static ReferencedEnvelope toNativeCRS(ReferencedEnvelope bbox, FeatureSource<?, ?> source)
+            throws TransformException, FactoryException {
+        CoordinateReferenceSystem nativeCRS = source.getSchema().getCoordinateReferenceSystem();
+        if (nativeCRS == null || bbox.getCoordinateReferenceSystem() == null) {
+            return bbox;
+        }
+        return bbox.transform(nativeCRS, true);
+    }
+}
@@ -0,0 +1,714 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Cache of the transformation results in a memory-mapped file, shared by all the GeoServer instances on the same host using the same file, so
+ * that a restarted instance finds the view parameters formatted by the other instances.
+ *
+ * The file holds a fixed number of fixed size slots with open addressing. The key of a slot is the SHA-256 digest of the canonical
+ * configuration of the transformer, the layer names with the catalog state of their resources (qualified name, declared SQL view parameters
+ * and layer groups), the existing view parameters and the requested dimension values, and the value is the encoded list of the view
+ * parameter maps. Results larger than a slot are not cached.
+ *
+ * The results are written by a background thread, which formats their values, so a cache miss only costs the request thread the key and a
+ * queue offer. The writes waiting beyond the queue capacity are dropped.
+ *
+ * Java offers no atomic compare-and-set on mapped memory, so the slots are written under a file lock of the slot region, and the readers use
+ * no locks at all: each slot has a sequence number, odd while the slot is written, and the reads and writes of the slot contents are ordered
+ * against the sequence number with fences, as in {@link java.util.concurrent.locks.StampedLock}. The fences are a write followed by a read of a
+ * volatile field, which the JVM implements with the memory barriers ordering all the memory accesses, including those of the mapped file. A
+ * slot changed while read is a cache miss. The CRC32 checksum of the value guards against a slot left half written by a crashed instance.
+ */
+public class SharedTransformationCache {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(SharedTransformationCache.class.getName());
+
+    private static final int MAGIC = 0x57445643;
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER = 64;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    /**
+     * Slot header: sequence number, key digest, value length and value checksum.
+     */
+    private static final int SLOT_HEADER = 4 + DIGEST_LENGTH + 4 + 4;
+
+    private static final int MAX_PROBES = 8;
+
+    private static final byte[] EMPTY_DIGEST = new byte[DIGEST_LENGTH];
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final XStream xstream;
+    static {
+        xstream = new XStream();
+        DimensionTransformerConfigStore.configure(xstream);
+    }
+
+    private final File file;
+
+    private final int slotCount;
+
+    private final int slotSize;
+
+    private final Object[] locks;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    private final ThreadPoolExecutor writer;
+
+    private RandomAccessFile raf;
+
+    private volatile FileChannel channel;
+
+    private volatile MappedByteBuffer buffer;
+
+    /**
+     * Written and read by {@link #fence()} only.
+     */
+    private volatile int fence;
+
+    public SharedTransformationCache(File file) {
+        this(file, 4096, 16384);
+    }
+
+    /**
+     * @param file the file shared by the instances, created if it does not exist
+     * @param slotCount the number of slots, rounded up to a power of two
+     * @param slotSize the size of a slot in bytes, limiting the size of the cached results
+     */
+    public SharedTransformationCache(File file, int slotCount, int slotSize) {
+        if (slotCount <= 0 || slotSize <= SLOT_HEADER) {
+            throw new IllegalArgumentException(
+                    "The number of slots must be positive, and the slot size more than "
+                            + SLOT_HEADER + " bytes");
+        }
+        int count = Integer.highestOneBit(slotCount);
+        if (count < slotCount) {
+            count <<= 1;
+        }
+        if ((long) count * slotSize + FILE_HEADER > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The cache file cannot be larger than 2 GB");
+        }
+        this.file = file;
+        this.slotCount = count;
+        this.slotSize = slotSize;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(256), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "wmsdim-shared-cache");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Maps the cache file, creating and initializing it if needed. A file with a different layout is not used, and the cache stays closed,
+     * missing every request.
+     */
+    public synchronized void open() {
+        if (this.buffer != null) {
+            return;
+        }
+        long length = FILE_HEADER + (long) this.slotCount * this.slotSize;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(this.file, "rw");
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock(0, FILE_HEADER, false);
+            try {
+                if (raf.length() == 0) {
+                    raf.setLength(length);
+                } else if (raf.length() != length) {
+                    throw new IOException("The file " + this.file + " is not a cache file of "
+                            + length + " bytes");
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                if (buffer.getInt(0) == 0) {
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, this.slotCount);
+                    buffer.putInt(12, this.slotSize);
+                    buffer.putInt(0, MAGIC);
+                } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != this.slotCount
+                        || buffer.getInt(12) != this.slotSize) {
+                    throw new IOException("The file " + this.file
+                            + " is not a cache file with " + this.slotCount + " slots of "
+                            + this.slotSize + " bytes");
+                }
+                this.raf = raf;
+                this.channel = channel;
+                this.buffer = buffer;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Shared transformation cache not available", e);
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Is the cache file mapped?
+     *
+     * @return true if open
+     */
+    public boolean isOpen() {
+        return this.buffer != null;
+    }
+
+    /**
+     * Closes the cache file, dropping the pending writes. The cache misses every request after closing.
+     */
+    public synchronized void close() {
+        this.writer.shutdownNow();
+        this.buffer = null;
+        closeQuietly(this.raf);
+        this.raf = null;
+        this.channel = null;
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not close the cache file", e);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Returns the fingerprint of the given configuration, equal in all the instances with an equal configuration.
+     *
+     * @param config
+     * @return the fingerprint
+     */
+    static String getFingerprint(DimensionTransformerConfig config) {
+        byte[] digest = digest(VERSION + ":" + xstream.toXML(config));
+        StringBuilder retval = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            retval.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+        }
+        return retval.toString();
+    }
+
+    private static byte[] digest(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the key of the transformation of the given request with the given plan.
+     *
+     * @return the SHA-256 digest of the canonical request
+     */
+    static byte[] getKey(TransformationPlan plan, GetMapRequest request) {
+        StringBuilder sb = new StringBuilder(plan.getFingerprint());
+        sb.append("\nLAYERS");
+        for (MapLayerInfo layer : request.getLayers()) {
+            sb.append('\n').append(layer.getName()).append(';');
+            if (layer.getLayerInfo() != null) {
+                plan.appendCatalogState(layer.getLayerInfo(), sb);
+            }
+        }
+        sb.append("\nVIEWPARAMS");
+        if (request.getViewParams() != null) {
+            for (Map<String, String> params : request.getViewParams()) {
+                sb.append('\n');
+                if (params != null) {
+                    // in name order, so that the key does not depend on the map iteration order:
+                    for (Map.Entry<String, String> e : new TreeMap<String, String>(params)
+                            .entrySet()) {
+                        sb.append(e.getKey()).append('=').append(e.getValue()).append(';');
+                    }
+                }
+            }
+        }
+        sb.append("\nTIME");
+        appendValues(sb, request.getTime());
+        sb.append("\nELEVATION");
+        appendValues(sb, request.getElevation());
+        if (request.getRawKvp() != null) {
+            Map<String, String> kvp = new TreeMap<String, String>();
+            for (Map.Entry<String, String> e : request.getRawKvp().entrySet()) {
+                kvp.put(e.getKey().toUpperCase(Locale.ENGLISH), e.getValue());
+            }
+            // the time zone parameter may have any name, so all the other parameters are included:
+            kvp.keySet().removeAll(DimensionTransformationMemo.IGNORED_PARAMETERS);
+            for (Map.Entry<String, String> e : kvp.entrySet()) {
+                sb.append('\n').append(e.getKey()).append('=').append(e.getValue());
+            }
+        }
+        return digest(sb.toString());
+    }
+
+    /**
+     * Appends the given dimension values independently of the time zone of the instance.
+     */
+    private static void appendValues(StringBuilder sb, List<Object> values) {
+        if (values == null) {
+            return;
+        }
+        for (Object value : values) {
+            sb.append('\n');
+            if (value instanceof Date) {
+                sb.append(((Date) value).getTime());
+            } else if (value instanceof DateRange) {
+                sb.append(((DateRange) value).getMinValue().getTime()).append('/')
+                        .append(((DateRange) value).getMaxValue().getTime());
+            } else if (value instanceof NumberRange) {
+                sb.append(((NumberRange<?>) value).getMinimum()).append('/')
+                        .append(((NumberRange<?>) value).getMaximum());
+            } else {
+                sb.append(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached result for the given key.
+     *
+     * @param key
+     * @return the view parameters, an empty list if the request was not transformed, or null if not cached
+     */
+    List<Map<String, String>> get(byte[] key) {
+        ByteBuffer buffer = this.buffer;
+        if (buffer != null) {
+            buffer = buffer.duplicate();
+            int first = getFirstSlot(key);
+            byte[] digest = new byte[DIGEST_LENGTH];
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int pos = getSlotPosition(first + i);
+                int seq = buffer.getInt(pos);
+                if (seq == 0) {
+                    break;
+                }
+                if ((seq & 1) != 0) {
+                    // being written:
+                    continue;
+                }
+                // the contents are read after the sequence number:
+                fence();
+                buffer.position(pos + 4);
+                buffer.get(digest);
+                if (!Arrays.equals(digest, key)) {
+                    continue;
+                }
+                int length = buffer.getInt(pos + 4 + DIGEST_LENGTH);
+                int checksum = buffer.getInt(pos + 8 + DIGEST_LENGTH);
+                if (length < 0 || length > this.slotSize - SLOT_HEADER) {
+                    continue;
+                }
+                byte[] value = new byte[length];
+                buffer.position(pos + SLOT_HEADER);
+                buffer.get(value);
+                // and before the sequence number is checked again:
+                fence();
+                if (buffer.getInt(pos) != seq || checksum(value) != checksum) {
+                    continue;
+                }
+                try {
+                    List<Map<String, String>> retval = decode(value);
+                    this.hits.incrementAndGet();
+                    return retval;
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Invalid shared cache entry ignored", e);
+                }
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the given result in the background. The values are formatted by the background thread, and the result is not cached if it does
+     * not fit in a slot or too many results are waiting to be written.
+     *
+     * @param key
+     * @param viewParams the view parameters, or an empty list if the request was not transformed
+     */
+    void put(final byte[] key, List<Map<String, String>> viewParams) {
+        if (this.buffer == null) {
+            return;
+        }
+        final List<Map<String, String>> copy = new ArrayList<Map<String, String>>(viewParams);
+        this.writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                store(key, copy);
+            }
+        });
+    }
+
+    /**
+     * Waits until the results given before have been written.
+     *
+     * @param timeoutMillis
+     * @return true if written within the timeout
+     */
+    boolean awaitWrites(long timeoutMillis) {
+        Future<?> marker = this.writer.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                // the writes queued before are done
+            }
+        });
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of the results waiting to be written.
+     *
+     * @return the number of the pending writes
+     */
+    public int getPendingWriteCount() {
+        return this.writer.getQueue().size();
+    }
+
+    private void store(byte[] key, List<Map<String, String>> viewParams) {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            return;
+        }
+        byte[] value;
+        try {
+            value = encode(viewParams);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (value.length > this.slotSize - SLOT_HEADER) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Transformation result of " + value.length
+                        + " bytes too large for the shared cache");
+            }
+            return;
+        }
+        buffer = buffer.duplicate();
+        int first = getFirstSlot(key);
+        // the key itself or an empty slot if found, otherwise a victim chosen by the key:
+        int slot = first + ((key[DIGEST_LENGTH - 1] & 0xff) % MAX_PROBES);
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int pos = getSlotPosition(first + i);
+            if (buffer.getInt(pos) == 0) {
+                slot = first + i;
+                break;
+            }
+            buffer.position(pos + 4);
+            buffer.get(digest);
+            if (Arrays.equals(digest, key) || Arrays.equals(digest, EMPTY_DIGEST)) {
+                slot = first + i;
+                break;
+            }
+        }
+        try {
+            write(buffer, slot & (this.slotCount - 1), key, value);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not write to the shared cache", e);
+        }
+    }
+
+    private void write(ByteBuffer buffer, int slot, byte[] key, byte[] value) throws IOException {
+        int pos = getSlotPosition(slot);
+        // file locks are held by the whole JVM, so the threads of this JVM are kept apart by the stripes:
+        synchronized (this.locks[slot & (LOCK_STRIPES - 1)]) {
+            FileChannel channel = this.channel;
+            if (channel == null) {
+                return;
+            }
+            FileLock lock = channel.lock(pos, this.slotSize, false);
+            try {
+                int seq = buffer.getInt(pos);
+                // an odd sequence number is left behind by a writer that died:
+                int writing = (seq & 1) == 0 ? seq + 1 : seq;
+                buffer.putInt(pos, writing);
+                // the contents are written after the odd sequence number:
+                fence();
+                buffer.position(pos + 4);
+                buffer.put(key);
+                buffer.putInt(value.length);
+                buffer.putInt(checksum(value));
+                buffer.put(value);
+                // and before the even one:
+                fence();
+                buffer.putInt(pos, writing + 1 != 0 ? writing + 1 : 2);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached results, also from the other instances. The removed slots keep their sequence numbers, so that a concurrent
+     * reader cannot mistake a new result for the removed one.
+     */
+    public void clear() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            return;
+        }
+        buffer = buffer.duplicate();
+        try {
+            for (int slot = 0; slot < this.slotCount; slot++) {
+                int pos = getSlotPosition(slot);
+                synchronized (this.locks[slot & (LOCK_STRIPES - 1)]) {
+                    FileChannel channel = this.channel;
+                    if (channel == null) {
+                        return;
+                    }
+                    FileLock lock = channel.lock(pos, this.slotSize, false);
+                    try {
+                        int seq = buffer.getInt(pos);
+                        if (seq != 0) {
+                            int writing = (seq & 1) == 0 ? seq + 1 : seq;
+                            buffer.putInt(pos, writing);
+                            fence();
+                            buffer.position(pos + 4);
+                            buffer.put(EMPTY_DIGEST);
+                            fence();
+                            buffer.putInt(pos, writing + 1 != 0 ? writing + 1 : 2);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not clear the shared cache", e);
+        }
+    }
+
+    /**
+     * Orders the memory accesses before the call with the accesses after it.
+     */
+    private void fence() {
+        this.fence = 0;
+        if (this.fence != 0) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private int getFirstSlot(byte[] key) {
+        int h = (key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8
+                | (key[3] & 0xff);
+        return h & (this.slotCount - 1);
+    }
+
+    private int getSlotPosition(int slot) {
+        return FILE_HEADER + (slot & (this.slotCount - 1)) * this.slotSize;
+    }
+
+    private static int checksum(byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(value, 0, value.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(List<Map<String, String>> viewParams) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(viewParams.size());
+        for (Map<String, String> params : viewParams) {
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static List<Map<String, String>> decode(byte[] value) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        int count = in.readInt();
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        List<Map<String, String>> retval = new ArrayList<Map<String, String>>(count);
+        for (int i = 0; i < count; i++) {
+            int size = in.readInt();
+            LazyViewParameterMap params = new LazyViewParameterMap();
+            for (int j = 0; j < size; j++) {
+                params.put(readString(in), readString(in));
+            }
+            retval.add(params);
+        }
+        return retval;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the current statistics of the cache.
+     *
+     * @return the statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(this.file.getPath(), isOpen(), this.slotCount, this.slotSize,
+                getHitCount(), getMissCount(), getPendingWriteCount());
+    }
+
+    /**
+     * Statistics of the cache, as reported through the REST API.
+     */
+    public static class Statistics {
+
+        private String file;
+
+        private boolean open;
+
+        private int slotCount;
+
+        private int slotSize;
+
+        private long hitCount;
+
+        private long missCount;
+
+        private int pendingWriteCount;
+
+        Statistics(String file, boolean open, int slotCount, int slotSize, long hitCount,
+                long missCount, int pendingWriteCount) {
+            this.file = file;
+            this.open = open;
+            this.slotCount = slotCount;
+            this.slotSize = slotSize;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.pendingWriteCount = pendingWriteCount;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public int getSlotCount() {
+            return slotCount;
+        }
+
+        public int getSlotSize() {
+            return slotSize;
+        }
+
+        /**
+         * @return the number of the hits of this instance
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * @return the number of the misses of this instance
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public int getPendingWriteCount() {
+            return pendingWriteCount;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.geotools.util.DateRange;
+
+/**
+ * Decides the HTTP Cache-Control header for a GetMap response based on the requested TIME values:
+ * <ul>
+ * <li>requests with the latest requested time older than {@link #getImmutableAfterDays()} days are cached for {@link #getImmutableMaxAge()}
+ * seconds and marked immutable,</li>
+ * <li>requests for the current time (TIME=current or present, or an interval ending at the current time such as
+ * TIME=2016-01-01/present) are cached for {@link #getCurrentMaxAge()} seconds,</li>
+ * <li>requests with any requested time in the future (forecasts) are not stored if {@link #isFutureNoStore()} is true,</li>
+ * <li>other requests are cached for {@link #getRecentMaxAge()} seconds.</li>
+ * </ul>
+ * A negative max-age leaves the header for the corresponding case untouched. The cached responses are marked private, so that only the browser
+ * caches store them, unless {@link #isPublicCaching()} is true.
+ */
+public class TimeCachePolicy {
+
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    private int immutableAfterDays;
+
+    private int immutableMaxAge;
+
+    private int recentMaxAge;
+
+    private int currentMaxAge;
+
+    private boolean futureNoStore;
+
+    private boolean publicCaching;
+
+    public TimeCachePolicy() {
+        this.immutableAfterDays = 7;
+        this.immutableMaxAge = 365 * 24 * 60 * 60;
+        this.recentMaxAge = 60;
+        this.currentMaxAge = 60;
+        this.futureNoStore = true;
+    }
+
+    /**
+     * Returns the age in days after which the requested time slices are considered immutable.
+     *
+     * @return
+     */
+    public int getImmutableAfterDays() {
+        return immutableAfterDays;
+    }
+
+    /**
+     * Set the age in days after which the requested time slices are considered immutable. Default is 7 days.
+     *
+     * @param immutableAfterDays
+     */
+    public void setImmutableAfterDays(int immutableAfterDays) {
+        this.immutableAfterDays = immutableAfterDays;
+    }
+
+    public int getImmutableMaxAge() {
+        return immutableMaxAge;
+    }
+
+    /**
+     * Set the max-age in seconds for immutable time slices. Default is one year.
+     *
+     * @param immutableMaxAge
+     */
+    public void setImmutableMaxAge(int immutableMaxAge) {
+        this.immutableMaxAge = immutableMaxAge;
+    }
+
+    public int getRecentMaxAge() {
+        return recentMaxAge;
+    }
+
+    /**
+     * Set the max-age in seconds for the time slices which are not yet immutable. Default is 60 seconds.
+     *
+     * @param recentMaxAge
+     */
+    public void setRecentMaxAge(int recentMaxAge) {
+        this.recentMaxAge = recentMaxAge;
+    }
+
+    public int getCurrentMaxAge() {
+        return currentMaxAge;
+    }
+
+    /**
+     * Set the max-age in seconds for the requests for the current time. Default is 60 seconds.
+     *
+     * @param currentMaxAge
+     */
+    public void setCurrentMaxAge(int currentMaxAge) {
+        this.currentMaxAge = currentMaxAge;
+    }
+
+    public boolean isFutureNoStore() {
+        return futureNoStore;
+    }
+
+    /**
+     * Set true to forbid storing the responses for requests containing future time values. Enabled by default.
+     *
+     * @param futureNoStore
+     */
+    public void setFutureNoStore(boolean futureNoStore) {
+        this.futureNoStore = futureNoStore;
+    }
+
+    public boolean isPublicCaching() {
+        return publicCaching;
+    }
+
+    /**
+     * Set true to mark the cached responses public, letting the shared caches such as proxies store them. Only enable it if the responses do
+     * not depend on the user, as the shared caches would serve the responses to authenticated users to everyone. Disabled by default, marking
+     * the cached responses private.
+     *
+     * @param publicCaching
+     */
+    public void setPublicCaching(boolean publicCaching) {
+        this.publicCaching = publicCaching;
+    }
+
+    /**
+     * Returns the Cache-Control header value for the given requested times.
+     *
+     * @param requestedTimes the parsed TIME values, {@link Date} or {@link DateRange} instances
+     * @param rawTime the TIME parameter value as given in the request, may be null
+     * @param now the current time in milliseconds
+     * @return the header value, or null if the header should not be changed
+     */
+    public String getCacheControl(List<Object> requestedTimes, String rawTime, long now) {
+        if (rawTime != null && isCurrent(rawTime)) {
+            return maxAge(this.currentMaxAge, false);
+        }
+        if (requestedTimes == null || requestedTimes.isEmpty()) {
+            return null;
+        }
+        long latest = Long.MIN_VALUE;
+        for (Object time : requestedTimes) {
+            Date value = null;
+            if (time instanceof Date) {
+                value = (Date) time;
+            } else if (time instanceof DateRange) {
+                value = ((DateRange) time).getMaxValue();
+            }
+            if (value != null && value.getTime() > latest) {
+                latest = value.getTime();
+            }
+        }
+        if (latest == Long.MIN_VALUE) {
+            return null;
+        }
+        if (latest > now) {
+            return this.futureNoStore ? "no-store" : maxAge(this.recentMaxAge, false);
+        } else if (latest < now - this.immutableAfterDays * MILLIS_PER_DAY) {
+            return maxAge(this.immutableMaxAge, true);
+        } else {
+            return maxAge(this.recentMaxAge, false);
+        }
+    }
+
+    /**
+     * Is the given TIME value the current time, or a start/end or start/end/period interval ending at the current time?
+     */
+    static boolean isCurrent(String rawTime) {
+        String[] parts = rawTime.split("/");
+        if (parts.length == 1) {
+            return isCurrentKeyword(parts[0]);
+        }
+        return (parts.length == 2 || parts.length == 3) && isCurrentKeyword(parts[1]);
+    }
+
+    private static boolean isCurrentKeyword(String value) {
+        String lower = value.trim().toLowerCase(Locale.ENGLISH);
+        return "current".equals(lower) || "present".equals(lower);
+    }
+
+    private String maxAge(int seconds, boolean immutable) {
+        if (seconds < 0) {
+            return null;
+        }
+        String scope = this.publicCaching ? "public" : "private";
+        return immutable ? scope + ", max-age=" + seconds + ", immutable"
+                : scope + ", max-age=" + seconds;
+    }
+}
@@ -0,0 +1,62 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Bounded pool of immutable time formatters bound to different time zones, created from the configured time formatter and shared by the
+ * concurrent requests. The formatters are looked up by the resolved zone, so the different spellings of the same zone or offset share a
+ * formatter, and the zones beyond the maximum number of pooled zones get a new formatter for each lookup instead of growing the pool.
+ *
+ * The zones returned by {@link DateTimeZone#forID(String)} are themselves cached by Joda-Time, including their offset transitions, so the
+ * pooled formatters do not recompute the zone rules when formatting.
+ */
+final class TimeFormatterPool {
+
+    static final int DEFAULT_MAX_ZONES = 64;
+
+    private final DateTimeFormatter formatter;
+
+    private final int maxZones;
+
+    private final ConcurrentMap<DateTimeZone, DateTimeFormatter> formatters;
+
+    TimeFormatterPool(DateTimeFormatter formatter) {
+        this(formatter, DEFAULT_MAX_ZONES);
+    }
+
+    TimeFormatterPool(DateTimeFormatter formatter, int maxZones) {
+        this.formatter = formatter;
+        this.maxZones = maxZones;
+        this.formatters = new ConcurrentHashMap<DateTimeZone, DateTimeFormatter>();
+    }
+
+    /**
+     * Returns the formatter bound to the given time zone.
+     * 
+     * @param zoneId a time zone id or offset, as accepted by {@link DateTimeZone#forID(String)}
+     * @return the formatter
+     * @throws IllegalArgumentException if the time zone is not known
+     */
+    DateTimeFormatter getFormatter(String zoneId) throws IllegalArgumentException {
+        DateTimeZone zone = DateTimeZone.forID(zoneId);
+        DateTimeFormatter retval = this.formatters.get(zone);
+        if (retval == null) {
+            retval = this.formatter.withZone(zone);
+            if (this.formatters.size() < this.maxZones) {
+                DateTimeFormatter previous = this.formatters.putIfAbsent(zone, retval);
+                if (previous != null) {
+                    retval = previous;
+                }
+            }
+        }
+        return retval;
+    }
+
+    int size() {
+        return this.formatters.size();
+    }
+}
@@ -0,0 +1,1156 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.DimensionName;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.RangeLimitType;
+import org.geotools.factory.Hints;
+import org.geotools.feature.NameImpl;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Period;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.joda.time.format.ISOPeriodFormat;
+import org.opengis.feature.type.Name;
+
+/**
+ * Immutable snapshot of the {@link DimensionSQLViewParamRequestTransformer} configuration, used for transforming a single request. The transformer
+ * compiles a new plan whenever its configuration changes, so a request in progress always sees a consistent configuration regardless of
+ * concurrent reconfiguration. The transformer compiles a plan of its own for each workspace specific configuration.
+ */
+final class TransformationPlan {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(DimensionSQLViewParamRequestTransformer.class.getName());
+
+    private final Map<DimensionName, Map<RangeLimitType, String>> viewParameterNames;
+
+    private final Map<String, String> customDimensionParameterNames;
+
+    private final Map<String, CustomDimensionCodec> customDimensionCodecs;
+
+    private final Set<Name> resourceNamesToMatch;
+
+    private final Set<String> layerGroupNamesToMatch;
+
+    private final LayerGroupMembershipIndex layerGroupIndex;
+
+    private final List<String> customDimensionsToTransform;
+
+    private final boolean transformTime;
+
+    private final boolean transformElevation;
+
+    private final DateTimeFormatter timeFormatter;
+
+    private final String timeFormatPattern;
+
+    private final String elevationFormatPattern;
+
+    private final boolean overrideExistingViewParams;
+
+    private final boolean injectDeclaredParametersOnly;
+
+    private final VirtualTableParameterIndex parameterIndex;
+
+    private final boolean preservePeriodicIntervals;
+
+    private final String timeZoneParameter;
+
+    private final TimeFormatterPool timeFormatterPool;
+
+    private final Map<String, DateTimeFormatter> layerTimeFormatters;
+
+    private final Map<String, ElevationConverter> layerElevationConverters;
+
+    private final ParallelListFormatter parallelFormatter;
+
+    private final String fingerprint;
+
+    private final boolean etagEnabled;
+
+    private final boolean typedQueryHintsEnabled;
+
+    private final TimeCachePolicy timeCachePolicy;
+
+    private final DimensionTransformerConfig config;
+
+    private final long sequence;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * Compiles a plan from the given configuration, in which null values are not replaced by the defaults, and the components shared by the
+     * plans of a transformer. The collections are copied, so later changes to the configuration do not affect the plan.
+     * 
+     * @throws IllegalArgumentException if the time zones, the format patterns, the custom dimension types, the elevation conversions or the
+     *         resource names of the configuration are not valid
+     */
+    TransformationPlan(DimensionTransformerConfig config, TimeCachePolicy timeCachePolicy,
+            VirtualTableParameterIndex parameterIndex, LayerGroupMembershipIndex layerGroupIndex,
+            ParallelListFormatter parallelFormatter, SharedTransformationCache sharedCache)
+            throws IllegalArgumentException {
+        this.config = new DimensionTransformerConfig(config);
+        this.sequence = SEQUENCE.incrementAndGet();
+        Map<DimensionName, Map<RangeLimitType, String>> names = new EnumMap<DimensionName, Map<RangeLimitType, String>>(
+                DimensionName.class);
+        names.put(DimensionName.TIME, viewParameterNames(config.getTimeStartParameter(),
+                config.getTimeEndParameter(), config.getTimeStepParameter()));
+        names.put(DimensionName.ELEVATION, viewParameterNames(config.getElevationStartParameter(),
+                config.getElevationEndParameter(), config.getElevationStepParameter()));
+        this.viewParameterNames = Collections.unmodifiableMap(names);
+        this.customDimensionParameterNames = config.getCustomDimensionParameterNames() != null
+                ? Collections.unmodifiableMap(new HashMap<String, String>(config
+                        .getCustomDimensionParameterNames()))
+                : Collections.<String, String> emptyMap();
+        this.resourceNamesToMatch = config.getResourceNamesToMatch() != null
+                ? Collections.unmodifiableSet(new HashSet<Name>(toNames(config
+                        .getResourceNamesToMatch())))
+                : null;
+        this.layerGroupNamesToMatch = config.getLayerGroupNamesToMatch() != null
+                ? Collections.unmodifiableSet(new HashSet<String>(config
+                        .getLayerGroupNamesToMatch()))
+                : null;
+        this.layerGroupIndex = layerGroupIndex;
+        this.customDimensionsToTransform = config.getCustomDimensionsToTransform() != null
+                ? Collections.unmodifiableList(new ArrayList<String>(config
+                        .getCustomDimensionsToTransform()))
+                : null;
+        this.transformTime = Boolean.TRUE.equals(config.getTransformTimeEnabled());
+        this.transformElevation = Boolean.TRUE.equals(config.getTransformElevationEnabled());
+        this.timeFormatPattern = config.getTimeFormatPattern();
+        this.timeFormatter = DateTimeFormat.forPattern(this.timeFormatPattern).withZone(
+                DateTimeZone.forID(config.getTimeZoneId()));
+        Map<String, CustomDimensionCodec> codecs = new HashMap<String, CustomDimensionCodec>();
+        if (config.getCustomDimensionTypes() != null) {
+            for (Map.Entry<String, CustomDimensionDefinition> e : config.getCustomDimensionTypes()
+                    .entrySet()) {
+                if (e.getValue() == null) {
+                    throw new IllegalArgumentException("No definition for custom dimension "
+                            + e.getKey());
+                }
+                codecs.put(e.getKey().toUpperCase(Locale.ENGLISH), CustomDimensionCodec.compile(
+                        e.getKey(), e.getValue(), this.timeFormatter));
+            }
+        }
+        this.customDimensionCodecs = Collections.unmodifiableMap(codecs);
+        this.elevationFormatPattern = config.getElevationFormatPattern();
+        // throws an IllegalFormatException, which is an IllegalArgumentException:
+        String.format(Locale.ENGLISH, this.elevationFormatPattern, 0d);
+        this.overrideExistingViewParams = Boolean.TRUE.equals(config
+                .getOverrideExistingViewParams());
+        this.injectDeclaredParametersOnly = Boolean.TRUE.equals(config
+                .getInjectDeclaredParametersOnly());
+        this.parameterIndex = parameterIndex;
+        this.preservePeriodicIntervals = Boolean.TRUE.equals(config
+                .getPreservePeriodicIntervals());
+        this.timeZoneParameter = config.getTimeZoneParameter();
+        this.timeFormatterPool = new TimeFormatterPool(this.timeFormatter);
+        Map<String, DateTimeFormatter> layerFormatters = new HashMap<String, DateTimeFormatter>();
+        if (config.getLayerTimeZones() != null) {
+            for (Map.Entry<String, String> e : config.getLayerTimeZones().entrySet()) {
+                layerFormatters.put(e.getKey(), this.timeFormatterPool.getFormatter(e.getValue()));
+            }
+        }
+        this.layerTimeFormatters = Collections.unmodifiableMap(layerFormatters);
+        Map<String, ElevationConverter> converters = new HashMap<String, ElevationConverter>();
+        if (config.getLayerElevationConversions() != null) {
+            for (Map.Entry<String, ElevationConversion> e : config.getLayerElevationConversions()
+                    .entrySet()) {
+                converters.put(e.getKey(), ElevationConverter.compile(e.getKey(), e.getValue()));
+            }
+        }
+        this.layerElevationConverters = Collections.unmodifiableMap(converters);
+        this.parallelFormatter = parallelFormatter;
+        this.etagEnabled = Boolean.TRUE.equals(config.getEtagEnabled());
+        this.typedQueryHintsEnabled = Boolean.TRUE.equals(config.getTypedQueryHintsEnabled());
+        this.timeCachePolicy = timeCachePolicy;
+        this.fingerprint = sharedCache != null ? SharedTransformationCache
+                .getFingerprint(this.config) : null;
+    }
+
+    private static Map<RangeLimitType, String> viewParameterNames(String start, String end,
+            String step) {
+        Map<RangeLimitType, String> forDim = new EnumMap<RangeLimitType, String>(
+                RangeLimitType.class);
+        if (start != null) {
+            forDim.put(RangeLimitType.START, start);
+        }
+        if (end != null) {
+            forDim.put(RangeLimitType.END, end);
+        }
+        if (step != null) {
+            forDim.put(RangeLimitType.STEP, step);
+        }
+        return Collections.unmodifiableMap(forDim);
+    }
+
+    /**
+     * Parses the qualified resource names given as <code>namespaceURI:localName</code>, or as a local name without a namespace.
+     * 
+     * @param names
+     * @return the names, in the same order
+     * @throws IllegalArgumentException if any of the names is empty
+     */
+    static List<Name> toNames(List<String> names) throws IllegalArgumentException {
+        List<Name> retval = new ArrayList<Name>(names.size());
+        for (String name : names) {
+            if (name == null || name.trim().isEmpty()) {
+                throw new IllegalArgumentException("Empty resource name to match");
+            }
+            int i = name.lastIndexOf(':');
+            retval.add(i > 0 ? new NameImpl(name.substring(0, i), name.substring(i + 1))
+                    : new NameImpl(name));
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the configuration this plan was compiled from.
+     * 
+     * @return a new configuration object, not affecting the plan when changed
+     */
+    DimensionTransformerConfig getConfig() {
+        return new DimensionTransformerConfig(this.config);
+    }
+
+    /**
+     * Returns the sequence number of this plan, unique within the JVM, for keying the results of this plan without referring to the plan itself.
+     * 
+     * @return the sequence number
+     */
+    long getSequence() {
+        return this.sequence;
+    }
+
+    DateTimeFormatter getTimeFormatter() {
+        return this.timeFormatter;
+    }
+
+    boolean isEtagEnabled() {
+        return this.etagEnabled;
+    }
+
+    boolean isTypedQueryHintsEnabled() {
+        return this.typedQueryHintsEnabled;
+    }
+
+    TimeCachePolicy getTimeCachePolicy() {
+        return this.timeCachePolicy;
+    }
+
+    /**
+     * Returns the generations of the catalog indexes of this plan, changing whenever a resource, and so its declared parameters or its
+     * qualified name, or a layer group membership may have changed.
+     * 
+     * @return the generations, as a value to compare
+     */
+    Object getCatalogGeneration() {
+        return Arrays.<Object> asList(
+                this.parameterIndex != null ? this.parameterIndex.getGeneration() : null,
+                this.layerGroupIndex != null ? this.layerGroupIndex.getGeneration() : null);
+    }
+
+    /**
+     * Returns the number of the catalog changes of any kind seen by the parameter index, for validating the ETags computed with the previous
+     * catalog state, such as a previous version of a style.
+     * 
+     * @return the modification count, or 0 without a parameter index
+     */
+    long getCatalogModificationCount() {
+        return this.parameterIndex != null ? this.parameterIndex.getModificationCount() : 0L;
+    }
+
+    /**
+     * Appends the catalog state the transformation of the given layer depends on: the qualified name of its resource, the parameters declared
+     * by its SQL view and the layer groups it belongs to, sorted. Unlike the generations, the state is equal in all the instances sharing the
+     * same catalog.
+     * 
+     * @param layer
+     * @param sb
+     */
+    void appendCatalogState(LayerInfo layer, StringBuilder sb) {
+        ResourceInfo resource = layer.getResource();
+        if (resource == null) {
+            return;
+        }
+        sb.append(resource.getQualifiedName());
+        if (this.parameterIndex != null) {
+            sb.append(';').append(new TreeSet<String>(this.parameterIndex
+                    .getDeclaredParameterNames(resource)));
+        }
+        if (this.layerGroupIndex != null && this.layerGroupNamesToMatch != null) {
+            sb.append(';').append(new TreeSet<String>(this.layerGroupIndex
+                    .getLayerGroupNames(resource)));
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the configuration of this plan, for keying the shared cache.
+     * 
+     * @return the fingerprint, or null if the transformer has no shared cache
+     */
+    String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    String getViewParameterName(DimensionName dimension, RangeLimitType type) {
+        Map<RangeLimitType, String> forDim = this.viewParameterNames.get(dimension);
+        return forDim != null ? forDim.get(type) : null;
+    }
+
+    String getCustomDimensionViewParameterName(String dimensionName) {
+        String retval = this.customDimensionParameterNames.get(dimensionName);
+        return retval != null ? retval : dimensionName;
+    }
+
+    /**
+     * Returns the view parameters of the request layers with the dimension parameters injected.
+     * 
+     * @see DimensionSQLViewParamRequestTransformer#getTransformedViewParams(GetMapRequest)
+     */
+    List<Map<String, String>> getTransformedViewParams(GetMapRequest request)
+            throws ServiceException {
+        List<MapLayerInfo> l = request.getLayers();
+        if (l != null && !l.isEmpty()) {
+            List<LayerInfo> layers = new ArrayList<LayerInfo>(l.size());
+            for (MapLayerInfo i : l) {
+                layers.add(i.getLayerInfo());
+            }
+            boolean shouldTransform = isTransformationTriggered(layers);
+            if (shouldTransform) {
+                LazyViewParameterMap dimViewParams = new LazyViewParameterMap();
+                DateTimeFormatter requestFormatter = getRequestTimeFormatter(
+                        getRequestTimeZone(request));
+                addTimeAndElevation(request.getTime(), getRawKvpValue(request, "TIME"),
+                        request.getElevation(), getRawKvpValue(request, "ELEVATION"),
+                        requestFormatter, dimViewParams);
+                // Logic: if customDimensionsToTransform is null (default), include all custom dims.
+                if (this.customDimensionsToTransform == null) {
+                    log.log(Level.FINEST,
+                            "Null custom dims to match given, transforming any custom dimension");
+                    for (String dimensionName : getAllCustomDimensionNames(request)) {
+                        addToViewParams(this.getCustomDimensionAsViewParams(dimensionName,
+                                request.getCustomDimension(dimensionName)), dimViewParams);
+                    }
+                    // Else if it's not empty, only include the matching custom dims
+                } else if (this.customDimensionsToTransform.size() > 0) {
+                    for (String dimensionName : this.customDimensionsToTransform) {
+                        if (hasCustomDimensionSet(request, dimensionName)) {
+                            if (log.isLoggable(Level.FINE)) {
+                                log.log(Level.FINE, "Found matching custom dimension '"
+                                        + dimensionName + "', transforming");
+                            }
+                            addToViewParams(
+                                    this.getCustomDimensionAsViewParams(dimensionName,
+                                            request.getCustomDimension(dimensionName)),
+                                    dimViewParams);
+                        } else {
+                            if (log.isLoggable(Level.FINEST)) {
+                                log.log(Level.FINEST, "Skipping transformation for custom dimension '"
+                                        + dimensionName + "'");
+                            }
+                        }
+                    }
+                }
+                return getLayerViewParams(layers, request.getViewParams(), dimViewParams,
+                        getLayerDimensionParams(request.getTime(), getRawKvpValue(request,
+                                "TIME"), requestFormatter, request.getElevation()));
+            } else {
+                log.log(Level.FINEST, "Not transforming dimension parameters");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the typed dimension values of the request as query hints for the given layer.
+     * 
+     * @param request
+     * @param layer the layer for choosing the elevation conversion, or null if not known
+     * @return the hints, empty if no dimensions are transformed
+     * @throws ServiceException if a custom dimension value is not valid or an elevation cannot be converted
+     * @see DimensionQueryHints
+     */
+    Hints getTypedDimensionHints(GetMapRequest request, LayerInfo layer) throws ServiceException {
+        Hints retval = new Hints();
+        if (this.transformTime && request.getTime() != null && !request.getTime().isEmpty()) {
+            retval.put(DimensionQueryHints.TIME, Collections.unmodifiableList(
+                    new ArrayList<Object>(request.getTime())));
+        }
+        if (this.transformElevation && request.getElevation() != null
+                && !request.getElevation().isEmpty()) {
+            ElevationConverter converter = layer != null ? this.layerElevationConverters.get(layer
+                    .prefixedName()) : null;
+            retval.put(DimensionQueryHints.ELEVATION, Collections.unmodifiableList(
+                    converter != null ? converter.convert(request.getElevation())
+                            : new ArrayList<Object>(request.getElevation())));
+        }
+        List<String> names = this.customDimensionsToTransform != null
+                ? this.customDimensionsToTransform : getAllCustomDimensionNames(request);
+        Map<String, List<Object>> custom = new LinkedHashMap<String, List<Object>>();
+        for (String dimensionName : names) {
+            if (!hasCustomDimensionSet(request, dimensionName)) {
+                continue;
+            }
+            List<String> values = request.getCustomDimension(dimensionName);
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+            String key = dimensionName.toUpperCase(Locale.ENGLISH);
+            CustomDimensionCodec codec = this.customDimensionCodecs.get(key);
+            custom.put(key, Collections.unmodifiableList(codec != null ? codec.parse(values)
+                    : new ArrayList<Object>(values)));
+        }
+        if (!custom.isEmpty()) {
+            retval.put(DimensionQueryHints.CUSTOM_DIMENSIONS, Collections.unmodifiableMap(custom));
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the view parameters of the layers of each of the given requests with the dimension parameters injected. The layers are matched
+     * once for each distinct layer list, and the dimension values are formatted once for each distinct set of values in the batch.
+     * 
+     * @see DimensionSQLViewParamRequestTransformer#getTransformedViewParams(List)
+     */
+    List<List<Map<String, String>>> getTransformedViewParams(List<DimensionBatchRequest> requests)
+            throws ServiceException {
+        List<List<Map<String, String>>> retval = new ArrayList<List<Map<String, String>>>(
+                requests.size());
+        Map<List<LayerInfo>, Boolean> triggered = new HashMap<List<LayerInfo>, Boolean>();
+        Map<Object, LazyViewParameterMap> dimensions = new HashMap<Object, LazyViewParameterMap>();
+        for (DimensionBatchRequest request : requests) {
+            List<LayerInfo> layers = request.getLayers();
+            Boolean shouldTransform = triggered.get(layers);
+            if (shouldTransform == null) {
+                shouldTransform = !layers.isEmpty() && isTransformationTriggered(layers);
+                triggered.put(layers, shouldTransform);
+            }
+            if (!shouldTransform) {
+                retval.add(null);
+                continue;
+            }
+            Object key = request.getDimensionKey();
+            LazyViewParameterMap dimViewParams = dimensions.get(key);
+            if (dimViewParams == null) {
+                dimViewParams = getDimensionViewParams(request);
+                dimensions.put(key, dimViewParams);
+            }
+            retval.add(getLayerViewParams(layers, request.getViewParams(), dimViewParams,
+                    getLayerDimensionParams(request.getTime(), request.getRawTime(),
+                            getRequestTimeFormatter(request.getTimeZone()),
+                            request.getElevation())));
+        }
+        return retval;
+    }
+
+    private LazyViewParameterMap getDimensionViewParams(DimensionBatchRequest request) {
+        LazyViewParameterMap retval = new LazyViewParameterMap();
+        addTimeAndElevation(request.getTime(), request.getRawTime(), request.getElevation(),
+                request.getRawElevation(), getRequestTimeFormatter(request.getTimeZone()), retval);
+        if (this.customDimensionsToTransform == null) {
+            for (Map.Entry<String, List<String>> e : request.getCustomDimensions().entrySet()) {
+                addToViewParams(this.getCustomDimensionAsViewParams(e.getKey(), e.getValue()),
+                        retval);
+            }
+        } else {
+            for (String dimensionName : this.customDimensionsToTransform) {
+                List<String> values = request.getCustomDimension(dimensionName);
+                if (values != null) {
+                    addToViewParams(this.getCustomDimensionAsViewParams(dimensionName, values),
+                            retval);
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the time formatter for the time zone selected in a request, or null if no time zone is selected.
+     */
+    private DateTimeFormatter getRequestTimeFormatter(String zoneId) throws ServiceException {
+        if (zoneId == null || zoneId.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return this.timeFormatterPool.getFormatter(zoneId.trim());
+        } catch (IllegalArgumentException e) {
+            throw new ServiceException("Unknown time zone '" + zoneId + "'",
+                    "InvalidParameterValue", this.timeZoneParameter);
+        }
+    }
+
+    /**
+     * Returns the dimension view parameters of the layers with their own time zone or elevation conversion, or null if all the layers use the
+     * dimension parameters of the request.
+     */
+    private LayerDimensionParams getLayerDimensionParams(List<Object> times, String rawTime,
+            DateTimeFormatter requestFormatter, List<Object> elevations) {
+        boolean zoned = this.transformTime && !this.layerTimeFormatters.isEmpty()
+                && requestFormatter == null;
+        boolean converted = this.transformElevation && !this.layerElevationConverters.isEmpty()
+                && elevations != null;
+        if (!zoned && !converted) {
+            return null;
+        }
+        return new LayerDimensionParams(zoned ? times : null, rawTime, converted ? elevations
+                : null);
+    }
+
+    private void addTimeAndElevation(List<Object> times, String rawTime, List<Object> elevations,
+            String rawElevation, DateTimeFormatter requestFormatter, LazyViewParameterMap to) {
+        if (this.transformTime) {
+            log.log(Level.FINEST, "Time dimension transformation enabled");
+            addToViewParams(getTimeViewParams(times, rawTime, requestFormatter != null
+                    ? requestFormatter : this.timeFormatter), to);
+        }
+        if (this.transformElevation) {
+            log.log(Level.FINEST, "Elevation dimension transformation enabled");
+            LazyViewParameterMap periodic = null;
+            if (this.preservePeriodicIntervals) {
+                periodic = this.getPeriodicElevationAsViewParams(rawElevation);
+            }
+            addToViewParams(periodic != null ? periodic
+                    : this.getElevationsAsViewParams(elevations), to);
+        }
+    }
+
+    private LazyViewParameterMap getTimeViewParams(List<Object> times, String rawTime,
+            DateTimeFormatter formatter) {
+        LazyViewParameterMap periodic = null;
+        if (this.preservePeriodicIntervals) {
+            periodic = this.getPeriodicTimeAsViewParams(rawTime, formatter);
+        }
+        return periodic != null ? periodic : this.getTimesAsViewParams(times, formatter);
+    }
+
+    /**
+     * Returns the view parameters of the given layers with the given dimension parameters injected into the existing view parameters, or null
+     * if there are no dimension parameters to inject. The parameters of the layers with their own time zone or elevation conversion are taken
+     * from the given layer dimension parameters, if any.
+     */
+    private List<Map<String, String>> getLayerViewParams(List<LayerInfo> layers,
+            List<Map<String, String>> viewParams, LazyViewParameterMap dimViewParams,
+            LayerDimensionParams layerParams) throws ServiceException {
+        if (dimViewParams.isEmpty()) {
+            return null;
+        }
+        int layerCount = layers.size();
+        if (viewParams == null) {
+            viewParams = new ArrayList<Map<String, String>>(layerCount);
+            for (int i = 0; i < layerCount; i++) {
+                if (layers.get(i) == null) {
+                    // a remote or inline layer is not an SQL view:
+                    viewParams.add(new LazyViewParameterMap());
+                    continue;
+                }
+                viewParams.add(getLayerDimViewParams(layers.get(i), layerParams != null
+                        ? layerParams.get(layers.get(i), dimViewParams) : dimViewParams));
+            }
+        } else if (viewParams.size() == layerCount) {
+            viewParams = new ArrayList<Map<String, String>>(viewParams);
+            LazyViewParameterMap merged;
+            for (int i = 0; i < layerCount; i++) {
+                if (layers.get(i) == null) {
+                    // a remote or inline layer is not an SQL view:
+                    continue;
+                }
+                // Copy the existing values to keep the dimension values lazy:
+                merged = new LazyViewParameterMap(viewParams.get(i));
+                addToViewParams(getLayerDimViewParams(layers.get(i), layerParams != null
+                        ? layerParams.get(layers.get(i), dimViewParams) : dimViewParams),
+                        merged);
+                viewParams.set(i, merged);
+            }
+        } else {
+            // The lengths should match at this point, throw error if not:
+            String msg = layerCount + " layers in request, but " + viewParams.size()
+                    + " view params set. Cannot correctly append dimension view parameters .";
+            throw new ServiceException(msg,
+                    DimensionSQLViewParamRequestTransformer.class.getName());
+        }
+        if (this.parallelFormatter != null) {
+            this.parallelFormatter.prefetch(viewParams);
+        }
+        return viewParams;
+    }
+
+    /**
+     * Does the given list of request layers trigger the dimension transformation? The layers not in the catalog, such as the remote and inline
+     * layers, given as null, do not trigger it.
+     */
+    boolean isTransformationTriggered(List<LayerInfo> layers) {
+        // Logic: if neither resource nor layer group names to match are given (default), always transform.
+        if (this.resourceNamesToMatch == null && this.layerGroupNamesToMatch == null) {
+            log.log(Level.FINE, "Null layers to match, transform dims for any GetMap request");
+            return true;
+        }
+        // Else only transform if the request contains one of the resources or a member of one of the groups.
+        boolean matchResources = this.resourceNamesToMatch != null
+                && !this.resourceNamesToMatch.isEmpty();
+        boolean matchGroups = this.layerGroupNamesToMatch != null
+                && !this.layerGroupNamesToMatch.isEmpty() && this.layerGroupIndex != null;
+        if (!matchResources && !matchGroups) {
+            return false;
+        }
+        for (LayerInfo layer : layers) {
+            if (layer == null || layer.getResource() == null) {
+                continue;
+            }
+            if (matchResources
+                    && this.resourceNamesToMatch.contains(layer.getResource().getQualifiedName())) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "Found triggering layer '" + layer.getName()
+                            + "' in GetMap request, enabling dim transformation");
+                }
+                return true;
+            }
+            if (matchGroups) {
+                for (String group : this.layerGroupIndex.getLayerGroupNames(layer.getResource())) {
+                    if (this.layerGroupNamesToMatch.contains(group)) {
+                        if (log.isLoggable(Level.FINE)) {
+                            log.log(Level.FINE, "Found layer '" + layer.getName()
+                                    + "' of triggering layer group '" + group
+                                    + "' in GetMap request, enabling dim transformation");
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the dimension view parameters to inject into the given layer. Unless only the declared parameters are injected, all the layers share
+     * the same parameters.
+     */
+    private LazyViewParameterMap getLayerDimViewParams(LayerInfo layer,
+            LazyViewParameterMap dimViewParams) {
+        if (!this.injectDeclaredParametersOnly || this.parameterIndex == null) {
+            return dimViewParams;
+        }
+        Set<String> declared = this.parameterIndex.getDeclaredParameterNames(layer.getResource());
+        return dimViewParams.subMap(declared);
+    }
+
+    private void addToViewParams(LazyViewParameterMap from, LazyViewParameterMap to) {
+        if (from != null && to != null && !from.isEmpty()) {
+            to.putAll(from, this.overrideExistingViewParams);
+        }
+    }
+
+    private LazyViewParameterMap getTimesAsViewParams(List<Object> requestedTimes,
+            DateTimeFormatter formatter) {
+        LazyViewParameterMap retval = null;
+        if (requestedTimes != null) {
+            retval = new LazyViewParameterMap();
+            if (requestedTimes.isEmpty()) {
+                return retval;
+            }
+            if (this.viewParameterNames.containsKey(DimensionName.TIME)) {
+                String startParam = getViewParameterName(DimensionName.TIME,
+                        RangeLimitType.START);
+                String endParam = getViewParameterName(DimensionName.TIME, RangeLimitType.END);
+
+                if (startParam != null) {
+                    retval.putLazy(startParam, new TimeListValue(requestedTimes,
+                            RangeLimitType.START, this.timeFormatPattern, formatter,
+                            this.parallelFormatter));
+                }
+                if (endParam != null) {
+                    retval.putLazy(endParam, new TimeListValue(requestedTimes,
+                            RangeLimitType.END, this.timeFormatPattern, formatter,
+                            this.parallelFormatter));
+                }
+            }
+        }
+        return retval;
+    }
+
+    private LazyViewParameterMap getElevationsAsViewParams(List<Object> requestedElevations) {
+        LazyViewParameterMap retval = null;
+        if (requestedElevations != null) {
+            retval = new LazyViewParameterMap();
+            if (requestedElevations.isEmpty()) {
+                return retval;
+            }
+            if (this.viewParameterNames.containsKey(DimensionName.ELEVATION)) {
+                String startParam = getViewParameterName(DimensionName.ELEVATION,
+                        RangeLimitType.START);
+                String endParam = getViewParameterName(DimensionName.ELEVATION,
+                        RangeLimitType.END);
+
+                if (startParam != null) {
+                    retval.putLazy(startParam, new ElevationListValue(requestedElevations,
+                            RangeLimitType.START, this.elevationFormatPattern,
+                            this.parallelFormatter));
+                }
+                if (endParam != null) {
+                    retval.putLazy(endParam, new ElevationListValue(requestedElevations,
+                            RangeLimitType.END, this.elevationFormatPattern,
+                            this.parallelFormatter));
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the start, end and step view parameters for a single periodic TIME interval (start/end/period), or null if the given value is not a
+     * periodic interval or no step view parameter is configured, so the interval is expanded instead of losing its step.
+     */
+    private LazyViewParameterMap getPeriodicTimeAsViewParams(String rawTime,
+            DateTimeFormatter formatter) {
+        String stepParam = getViewParameterName(DimensionName.TIME, RangeLimitType.STEP);
+        if (stepParam == null) {
+            return null;
+        }
+        String[] parts = splitPeriodicInterval(rawTime);
+        if (parts == null || !parts[2].toUpperCase(Locale.ENGLISH).startsWith("P")) {
+            return null;
+        }
+        Date start, end;
+        Period step;
+        try {
+            start = ISODateTimeFormat.dateTimeParser().withZoneUTC().parseDateTime(parts[0])
+                    .toDate();
+            end = ISODateTimeFormat.dateTimeParser().withZoneUTC().parseDateTime(parts[1])
+                    .toDate();
+            step = ISOPeriodFormat.standard().parsePeriod(parts[2].toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            log.log(Level.FINE, "Not a valid periodic time interval, expanding instead", e);
+            return null;
+        }
+        LazyViewParameterMap retval = new LazyViewParameterMap();
+        if (this.viewParameterNames.containsKey(DimensionName.TIME)) {
+            String startParam = getViewParameterName(DimensionName.TIME,
+                    RangeLimitType.START);
+            String endParam = getViewParameterName(DimensionName.TIME, RangeLimitType.END);
+            if (startParam != null) {
+                retval.putLazy(startParam, new TimeListValue(
+                        Collections.<Object> singletonList(start), RangeLimitType.START,
+                        this.timeFormatPattern, formatter, null));
+            }
+            if (endParam != null) {
+                retval.putLazy(endParam, new TimeListValue(Collections.<Object> singletonList(end),
+                        RangeLimitType.END, this.timeFormatPattern, formatter, null));
+            }
+            retval.put(stepParam, step.toString());
+        }
+        return retval;
+    }
+
+    /**
+     * Returns the start, end and step view parameters for a single periodic ELEVATION interval (start/end/step), or null if the given value is
+     * not a periodic interval or no step view parameter is configured, so the interval is expanded instead of losing its step.
+     */
+    private LazyViewParameterMap getPeriodicElevationAsViewParams(String rawElevation) {
+        String stepParam = getViewParameterName(DimensionName.ELEVATION, RangeLimitType.STEP);
+        if (stepParam == null) {
+            return null;
+        }
+        String[] parts = splitPeriodicInterval(rawElevation);
+        if (parts == null) {
+            return null;
+        }
+        Double start, end, step;
+        try {
+            start = Double.valueOf(parts[0]);
+            end = Double.valueOf(parts[1]);
+            step = Double.valueOf(parts[2]);
+        } catch (NumberFormatException e) {
+            log.log(Level.FINE, "Not a valid periodic elevation interval, expanding instead", e);
+            return null;
+        }
+        LazyViewParameterMap retval = new LazyViewParameterMap();
+        if (this.viewParameterNames.containsKey(DimensionName.ELEVATION)) {
+            String startParam = getViewParameterName(DimensionName.ELEVATION,
+                    RangeLimitType.START);
+            String endParam = getViewParameterName(DimensionName.ELEVATION,
+                    RangeLimitType.END);
+            if (startParam != null) {
+                retval.putLazy(startParam, new ElevationListValue(
+                        Collections.<Object> singletonList(start), RangeLimitType.START,
+                        this.elevationFormatPattern, null));
+            }
+            if (endParam != null) {
+                retval.putLazy(endParam, new ElevationListValue(
+                        Collections.<Object> singletonList(end), RangeLimitType.END,
+                        this.elevationFormatPattern, null));
+            }
+            retval.putLazy(stepParam, new ElevationListValue(
+                    Collections.<Object> singletonList(step), RangeLimitType.STEP,
+                    this.elevationFormatPattern, null));
+        }
+        return retval;
+    }
+
+    /**
+     * Splits a single periodic interval "start/end/step" into its parts.
+     * 
+     * @return the three parts, or null if the value is not a single periodic interval
+     */
+    private static String[] splitPeriodicInterval(String value) {
+        if (value == null || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String[] parts = value.trim().split("/");
+        if (parts.length != 3) {
+            return null;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = parts[i].trim();
+            if (parts[i].isEmpty()) {
+                return null;
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the time zone selected in the given request with the time zone parameter, or null if none is selected.
+     */
+    String getRequestTimeZone(GetMapRequest request) {
+        return this.timeZoneParameter != null ? getRawKvpValue(request, this.timeZoneParameter)
+                : null;
+    }
+
+    static String getRawKvpValue(GetMapRequest request, String key) {
+        return request.getRawKvp() != null ? request.getRawKvp().get(key) : null;
+    }
+
+    private LazyViewParameterMap getCustomDimensionAsViewParams(String dimensionName,
+            List<String> requestedValues) {
+        LazyViewParameterMap retval = null;
+        if (requestedValues != null) {
+            retval = new LazyViewParameterMap();
+            if (requestedValues.isEmpty()) {
+                return retval;
+            }
+            String viewParamName = getCustomDimensionViewParameterName(dimensionName);
+            CustomDimensionCodec codec = this.customDimensionCodecs.isEmpty() ? null
+                    : this.customDimensionCodecs.get(dimensionName.toUpperCase(Locale.ENGLISH));
+            if (codec != null) {
+                codec.encode("DIM_" + viewParamName, requestedValues, retval);
+            } else {
+                retval.putLazy("DIM_" + viewParamName, new JoinedListValue(requestedValues));
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Dimension view parameters of the layers with their own time zone or elevation conversion within a single request. The parameters are built
+     * once for each combination of a time zone and an elevation conversion used by the request layers, and the other dimension parameters are
+     * shared with the other layers. The converted elevations are always passed as lists, even if the periodic intervals are preserved.
+     */
+    private final class LayerDimensionParams {
+
+        private final List<Object> times;
+
+        private final String rawTime;
+
+        private final List<Object> elevations;
+
+        private Map<List<Object>, LazyViewParameterMap> byRule;
+
+        /**
+         * @param times the requested times, or null if the layer time zones are not applied
+         * @param rawTime
+         * @param elevations the requested elevations, or null if the layer elevation conversions are not applied
+         */
+        LayerDimensionParams(List<Object> times, String rawTime, List<Object> elevations) {
+            this.times = times;
+            this.rawTime = rawTime;
+            this.elevations = elevations;
+        }
+
+        LazyViewParameterMap get(LayerInfo layer, LazyViewParameterMap dimViewParams)
+                throws ServiceException {
+            String name = layer.prefixedName();
+            DateTimeFormatter formatter = this.times != null ? layerTimeFormatters.get(name)
+                    : null;
+            ElevationConverter converter = this.elevations != null ? layerElevationConverters
+                    .get(name) : null;
+            if (formatter == null && converter == null) {
+                return dimViewParams;
+            }
+            if (this.byRule == null) {
+                this.byRule = new HashMap<List<Object>, LazyViewParameterMap>(4);
+            }
+            List<Object> rule = Arrays.<Object> asList(formatter, converter);
+            LazyViewParameterMap retval = this.byRule.get(rule);
+            if (retval == null) {
+                retval = new LazyViewParameterMap(dimViewParams);
+                if (formatter != null) {
+                    LazyViewParameterMap timeParams = getTimeViewParams(this.times, this.rawTime,
+                            formatter);
+                    if (timeParams != null) {
+                        retval.putAll(timeParams, true);
+                    }
+                }
+                if (converter != null) {
+                    String stepParam = getViewParameterName(DimensionName.ELEVATION,
+                            RangeLimitType.STEP);
+                    if (stepParam != null) {
+                        retval.remove(stepParam);
+                    }
+                    retval.putAll(getElevationsAsViewParams(converter.convert(this.elevations)),
+                            true);
+                }
+                this.byRule.put(rule, retval);
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * Comma separated list of the start or end values of the requested time instants and ranges, formatted in chunks on the given
+     * {@link ParallelListFormatter} if any.
+     */
+    private static class TimeListValue extends LazyViewParameterMap.LazyValue implements
+            ParallelListFormatter.ChunkedList {
+
+        private final List<Object> times;
+
+        private final RangeLimitType limit;
+
+        private final String pattern;
+
+        private final DateTimeFormatter formatter;
+
+        private final ParallelListFormatter parallelFormatter;
+
+        TimeListValue(List<Object> times, RangeLimitType limit, String pattern,
+                DateTimeFormatter formatter, ParallelListFormatter parallelFormatter) {
+            this.times = times;
+            this.limit = limit;
+            this.pattern = pattern;
+            this.formatter = formatter;
+            this.parallelFormatter = parallelFormatter;
+        }
+
+        @Override
+        public int getValueCount() {
+            return this.times.size();
+        }
+
+        @Override
+        public int size() {
+            return this.times.size();
+        }
+
+        @Override
+        protected String format() {
+            if (this.parallelFormatter != null) {
+                return this.parallelFormatter.format(this);
+            }
+            StringBuilder sb = new StringBuilder(this.times.size() * 30);
+            format(0, this.times.size(), sb);
+            return sb.toString();
+        }
+
+        @Override
+        public void format(int from, int to, StringBuilder sb) {
+            boolean first = true;
+            for (Object time : this.times.subList(from, to)) {
+                Date value = getValue(time);
+                if (value == null) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(this.formatter.print(value.getTime()));
+            }
+        }
+
+        @Override
+        protected void appendInput(StringBuilder sb) {
+            sb.append("time:").append(this.pattern).append(':').append(this.formatter.getZone())
+                    .append(':');
+            for (Object time : this.times) {
+                Date value = getValue(time);
+                if (value != null) {
+                    sb.append(value.getTime()).append(',');
+                }
+            }
+        }
+
+        private Date getValue(Object time) {
+            if (time instanceof Date) {
+                return (Date) time;
+            } else if (time instanceof DateRange) {
+                return this.limit == RangeLimitType.START ? ((DateRange) time).getMinValue()
+                        : ((DateRange) time).getMaxValue();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Comma separated list of the lowest or highest values of the requested elevations and elevation ranges, formatted in chunks on the given
+     * {@link ParallelListFormatter} if any.
+     */
+    private static class ElevationListValue extends LazyViewParameterMap.LazyValue implements
+            ParallelListFormatter.ChunkedList {
+
+        private final List<Object> elevations;
+
+        private final RangeLimitType limit;
+
+        private final String pattern;
+
+        private final ParallelListFormatter parallelFormatter;
+
+        ElevationListValue(List<Object> elevations, RangeLimitType limit, String pattern,
+                ParallelListFormatter parallelFormatter) {
+            this.elevations = elevations;
+            this.limit = limit;
+            this.pattern = pattern;
+            this.parallelFormatter = parallelFormatter;
+        }
+
+        @Override
+        public int getValueCount() {
+            return this.elevations.size();
+        }
+
+        @Override
+        public int size() {
+            return this.elevations.size();
+        }
+
+        @Override
+        protected String format() throws IllegalFormatException {
+            // without a pattern only the separators are written, so the chunks are not joined:
+            if (this.parallelFormatter != null && this.pattern != null) {
+                return this.parallelFormatter.format(this);
+            }
+            StringBuilder sb = new StringBuilder(this.elevations.size() * 12);
+            format(0, this.elevations.size(), sb);
+            return sb.toString();
+        }
+
+        @Override
+        public void format(int from, int to, StringBuilder sb) throws IllegalFormatException {
+            Formatter formatter = new Formatter(sb);
+            boolean first = true;
+            for (Object elev : this.elevations.subList(from, to)) {
+                Double value = getValue(elev);
+                if (value == null) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                if (this.pattern != null) {
+                    formatter.format(this.pattern, value);
+                }
+            }
+        }
+
+        @Override
+        protected void appendInput(StringBuilder sb) {
+            sb.append("elevation:").append(this.pattern).append(':');
+            for (Object elev : this.elevations) {
+                Double value = getValue(elev);
+                if (value != null) {
+                    sb.append(value.doubleValue()).append(',');
+                }
+            }
+        }
+
+        private Double getValue(Object elev) {
+            if (elev instanceof Double) {
+                return (Double) elev;
+            } else if (elev instanceof NumberRange) {
+                return this.limit == RangeLimitType.START
+                        ? new Double(((NumberRange<?>) elev).getMinimum())
+                        : new Double(((NumberRange<?>) elev).getMaximum());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Comma separated list of textual values.
+     */
+    private static class JoinedListValue extends LazyViewParameterMap.LazyValue {
+
+        private final List<String> values;
+
+        JoinedListValue(List<String> values) {
+            this.values = values;
+        }
+
+        @Override
+        public int getValueCount() {
+            return this.values.size();
+        }
+
+        @Override
+        protected String format() {
+            // In Java 8 this can be done using String.join(delimiter,collection):
+            return StringUtils.join(this.values, ',');
+        }
+    }
+
+    private static boolean hasCustomDimensionSet(GetMapRequest request, String dimensionName) {
+        boolean retval = false;
+        if (request.getRawKvp() != null) {
+            String key = "DIM_" + dimensionName;
+            String value = request.getRawKvp().get(key);
+            if (value != null) {
+                retval = true;
+            }
+        }
+        return retval;
+    }
+
+    private static List<String> getAllCustomDimensionNames(GetMapRequest request) {
+        List<String> retval = null;
+        Map<String, String> kvp = request.getRawKvp();
+        if (kvp == null) {
+            retval = Collections.emptyList();
+        } else {
+            retval = new ArrayList<String>();
+            for (String name : kvp.keySet()) {
+                if (name.startsWith("DIM_")) {
+                    retval.add(name.substring(4));
+                }
+            }
+        }
+        return retval;
+    }
+}
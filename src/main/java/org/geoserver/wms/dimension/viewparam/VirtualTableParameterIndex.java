@@ -0,0 +1,168 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.jdbc.VirtualTable;
+
+/**
+ * Caches the SQL view parameter names declared by the {@link VirtualTable} definitions of the catalog feature types. The cached entries are
+ * invalidated when the corresponding resource is modified or removed, and the whole cache is cleared when the catalog is reloaded.
+ */
+public class VirtualTableParameterIndex implements CatalogListener {
+
+    private static final Logger log = org.geotools.util.logging.Logging
+            .getLogger(VirtualTableParameterIndex.class.getName());
+
+    private final ConcurrentMap<String, Set<String>> declaredNames;
+
+    private final AtomicLong generation;
+
+    private final AtomicLong modifications;
+
+    public VirtualTableParameterIndex() {
+        this.declaredNames = new ConcurrentHashMap<String, Set<String>>();
+        this.generation = new AtomicLong();
+        this.modifications = new AtomicLong();
+    }
+
+    /**
+     * Creates a new index and registers it as a listener of the given catalog.
+     *
+     * @param catalog
+     */
+    public VirtualTableParameterIndex(Catalog catalog) {
+        this();
+        catalog.addListener(this);
+    }
+
+    /**
+     * Returns the names of the SQL view parameters declared by the virtual table of the given resource.
+     *
+     * @param resource
+     * @return the declared names, or an empty set if the resource is not an SQL view
+     */
+    public Set<String> getDeclaredParameterNames(ResourceInfo resource) {
+        if (!(resource instanceof FeatureTypeInfo)) {
+            return Collections.emptySet();
+        }
+        String id = resource.getId();
+        if (id == null) {
+            return readDeclaredParameterNames((FeatureTypeInfo) resource);
+        }
+        Set<String> names = this.declaredNames.get(id);
+        if (names == null) {
+            long gen = this.generation.get();
+            names = readDeclaredParameterNames((FeatureTypeInfo) resource);
+            Set<String> existing = this.declaredNames.putIfAbsent(id, names);
+            if (existing != null) {
+                names = existing;
+            } else if (gen != this.generation.get()) {
+                // don't keep the result if the catalog changed during the read:
+                this.declaredNames.remove(id, names);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the number of the changes of the resources seen by this index, for invalidating the results computed with the previous
+     * declared parameters.
+     *
+     * @return the generation
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Returns the number of the catalog changes of any kind seen by this index, including the changes of the styles and of the layers, for
+     * validating the responses computed with the previous catalog state.
+     *
+     * @return the modification count
+     */
+    public long getModificationCount() {
+        return this.modifications.get();
+    }
+
+    /**
+     * Removes all the cached entries.
+     */
+    public void clear() {
+        this.modifications.incrementAndGet();
+        this.generation.incrementAndGet();
+        this.declaredNames.clear();
+    }
+
+    private static Set<String> readDeclaredParameterNames(FeatureTypeInfo featureType) {
+        VirtualTable vt = null;
+        if (featureType.getMetadata() != null) {
+            vt = featureType.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE,
+                    VirtualTable.class);
+        }
+        if (vt == null) {
+            return Collections.emptySet();
+        }
+        Collection<String> names = vt.getParameterNames();
+        if (names == null || names.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (log.isLoggable(Level.FINEST)) {
+            log.log(Level.FINEST, "SQL view of '" + featureType.getName()
+                    + "' declares parameters " + names);
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(names));
+    }
+
+    private void invalidate(CatalogInfo source) {
+        this.modifications.incrementAndGet();
+        if (source instanceof ResourceInfo) {
+            this.generation.incrementAndGet();
+            if (source.getId() != null) {
+                this.declaredNames.remove(source.getId());
+            }
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+}
@@ -0,0 +1,178 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.DimensionName;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.RangeLimitType;
+import org.geotools.feature.NameImpl;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DimensionTransformerConfigStoreTest {
+
+    private File dataDir;
+
+    private GeoServerResourceLoader resourceLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = File.createTempFile("wmsdim", "data");
+        dataDir.delete();
+        dataDir.mkdirs();
+        resourceLoader = new GeoServerResourceLoader(dataDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dataDir);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        DimensionTransformerConfigStore store = new DimensionTransformerConfigStore(
+                resourceLoader, transformer);
+        DimensionTransformerConfig config = store.getConfig();
+        config.setTransformElevationEnabled(false);
+        config.setTimeZoneId("Europe/Helsinki");
+        config.setTimeFormatPattern("yyyy-MM-dd");
+        config.setResourceNamesToMatch(Arrays.asList("http://geoserver.org:layerOne"));
+        config.setTimeStartParameter("start");
+        config.setCustomDimensionParameterNames(Collections.singletonMap("testdim", "myDim"));
+        store.save(config);
+
+        assertTrue(new File(dataDir, DimensionTransformerConfigStore.CONFIG_FILE).exists());
+        assertFalse(transformer.isTransformElevationEnabled());
+        assertEquals("start", transformer.getViewParameterName(DimensionName.TIME,
+                RangeLimitType.START));
+
+        // a restarted node loads the persisted configuration:
+        DimensionSQLViewParamRequestTransformer restarted = new DimensionSQLViewParamRequestTransformer();
+        new DimensionTransformerConfigStore(resourceLoader, restarted).load();
+        assertFalse(restarted.isTransformElevationEnabled());
+        assertTrue(restarted.isTransformTimeEnabled());
+        assertEquals("Europe/Helsinki", restarted.getTimeZone().getID());
+        assertEquals("yyyy-MM-dd", restarted.getTimeFormatPattern());
+        assertEquals(Arrays.asList(new NameImpl("http://geoserver.org", "layerOne")),
+                restarted.getResourceNamesToMatch());
+        assertEquals("start", restarted.getViewParameterName(DimensionName.TIME,
+                RangeLimitType.START));
+        assertEquals("timeEnd", restarted.getViewParameterName(DimensionName.TIME,
+                RangeLimitType.END));
+        assertEquals("myDim", restarted.getCustomDimensionViewParameterName("testdim"));
+    }
+
+    @Test
+    public void testWorkspaceConfig() throws Exception {
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        DimensionTransformerConfigStore store = new DimensionTransformerConfigStore(
+                resourceLoader, transformer);
+        DimensionTransformerConfig config = new DimensionTransformerConfig();
+        config.setTimeStartParameter("wsStart");
+        store.saveWorkspaceConfig("tenant", config);
+        File file = new File(dataDir, "workspaces/tenant/"
+                + DimensionTransformerConfigStore.CONFIG_FILE);
+        assertTrue(file.exists());
+
+        DimensionSQLViewParamRequestTransformer restarted = new DimensionSQLViewParamRequestTransformer();
+        new DimensionTransformerConfigStore(resourceLoader, restarted).load();
+        assertEquals("wsStart", restarted.getWorkspaceConfig("tenant").getTimeStartParameter());
+        assertNull(restarted.getWorkspaceConfig("other"));
+        assertEquals("timeStart", restarted.getViewParameterName(DimensionName.TIME,
+                RangeLimitType.START));
+
+        store.saveWorkspaceConfig("tenant", null);
+        assertFalse(file.exists());
+        assertNull(transformer.getWorkspaceConfig("tenant"));
+    }
+
+    @Test
+    public void testLoadWithoutPersistedConfig() throws Exception {
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        transformer.setTransformTimeEnabled(false);
+        new DimensionTransformerConfigStore(resourceLoader, transformer).load();
+        assertFalse(transformer.isTransformTimeEnabled());
+    }
+
+    @Test
+    public void testMalformedConfigIsSkipped() throws Exception {
+        FileUtils.writeStringToFile(new File(dataDir, DimensionTransformerConfigStore.CONFIG_FILE),
+                "<dimensionViewParamConfig><transformTimeEnabled>");
+        FileUtils.writeStringToFile(new File(dataDir, "workspaces/broken/"
+                + DimensionTransformerConfigStore.CONFIG_FILE),
+                "<dimensionViewParamConfig><noSuchSetting>true</noSuchSetting></dimensionViewParamConfig>");
+        FileUtils.writeStringToFile(new File(dataDir, "workspaces/other/"
+                + DimensionTransformerConfigStore.CONFIG_FILE), "<string>other</string>");
+        FileUtils.writeStringToFile(new File(dataDir, "workspaces/tenant/"
+                + DimensionTransformerConfigStore.CONFIG_FILE),
+                "<dimensionViewParamConfig><timeStartParameter>wsStart</timeStartParameter></dimensionViewParamConfig>");
+
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        transformer.setTransformTimeEnabled(false);
+        new DimensionTransformerConfigStore(resourceLoader, transformer).load();
+        assertFalse(transformer.isTransformTimeEnabled());
+        assertNull(transformer.getWorkspaceConfig("broken"));
+        assertNull(transformer.getWorkspaceConfig("other"));
+        assertEquals("wsStart", transformer.getWorkspaceConfig("tenant").getTimeStartParameter());
+    }
+
+    @Test
+    public void testUnchangedConfigKeepsOutput() throws Exception {
+        long millis = new DateTime("2016-01-01T00:00:00.000Z").getMillis();
+        DateTimeZone defaultZone = DateTimeZone.getDefault();
+        DateTimeZone.setDefault(DateTimeZone.forID("America/New_York"));
+        try {
+            DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+            DimensionTransformerConfigStore store = new DimensionTransformerConfigStore(
+                    resourceLoader, transformer);
+            String formatted = transformer.getTimeFormatter().print(millis);
+            assertEquals("2016-01-01T00:00:00.000+00:00", formatted);
+            DimensionTransformerConfig config = store.getConfig();
+            String fingerprint = SharedTransformationCache.getFingerprint(config);
+
+            // reading the configuration and writing it back unchanged does not change the output:
+            store.save(config);
+            assertEquals(formatted, transformer.getTimeFormatter().print(millis));
+            assertEquals(fingerprint, SharedTransformationCache.getFingerprint(store.getConfig()));
+        } finally {
+            DateTimeZone.setDefault(defaultZone);
+        }
+    }
+
+    @Test
+    public void testInvalidConfigIsRejected() throws Exception {
+        DimensionSQLViewParamRequestTransformer transformer = new DimensionSQLViewParamRequestTransformer();
+        DimensionTransformerConfigStore store = new DimensionTransformerConfigStore(
+                resourceLoader, transformer);
+        DimensionTransformerConfig config = store.getConfig();
+        config.setTransformTimeEnabled(false);
+        config.setElevationFormatPattern("%.3q");
+        try {
+            store.save(config);
+            fail("Invalid elevation format pattern accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(transformer.isTransformTimeEnabled());
+        assertFalse(new File(dataDir, DimensionTransformerConfigStore.CONFIG_FILE).exists());
+
+        config.setElevationFormatPattern(null);
+        config.setTimeZoneId("Not/A_Zone");
+        try {
+            store.save(config);
+            fail("Invalid time zone accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(transformer.isTransformTimeEnabled());
+    }
+}
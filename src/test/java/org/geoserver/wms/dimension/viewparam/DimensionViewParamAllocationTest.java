@@ -0,0 +1,219 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSMockData;
+import org.geotools.feature.NameImpl;
+import org.geotools.util.NumberRange;
+import org.joda.time.DateTime;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.type.Name;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Measures the bytes allocated by {@link DimensionSQLViewParamRequestTransformer#initRequest(GetMapRequest)} for a fixed set of request shapes,
+ * with the transformer wired to the components of the sample configuration: the parameter index, the trace buffer, the value sketch and the
+ * transformation memo. The requests are created before the measurement, so only the transformation itself is counted. The view parameter
+ * values are formatted lazily, so formatting is not included.
+ *
+ * The budgets are relative instead of absolute bytes, which depend on the JVM: each dimension value of a layer may allocate up to
+ * {@link #PER_VALUE_BUDGET} bytes more than a request not transformed, and the wired transformer up to {@link #WIRED_FACTOR} times the
+ * allocation of a bare transformer. When a change reduces the allocation considerably, lower the budgets to keep the test meaningful.
+ */
+public class DimensionViewParamAllocationTest {
+
+    private static final int WARMUP = 20000;
+
+    private static final int ITERATIONS = 5000;
+
+    /** Bytes allocated for each dimension value of each layer, above a request not transformed. */
+    private static final long PER_VALUE_BUDGET = 3072;
+
+    /** Allocation of the wired transformer relative to a bare transformer. */
+    private static final double WIRED_FACTOR = 3;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private WMSMockData mockData;
+
+    private MapLayerInfo layerOne;
+
+    private MapLayerInfo layerTwo;
+
+    private MapLayerInfo layerThree;
+
+    private DimensionSQLViewParamRequestTransformer bare;
+
+    private DimensionSQLViewParamRequestTransformer transformer;
+
+    private RequestShape notTriggered;
+
+    @Before
+    public void setUp() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        mockData = new WMSMockData();
+        mockData.setUp();
+        layerOne = mockData.addFeatureTypeLayer("layerOne", Point.class);
+        layerTwo = mockData.addFeatureTypeLayer("layerTwo", Point.class);
+        layerThree = mockData.addFeatureTypeLayer("layerThree", Point.class);
+
+        bare = createTransformer();
+        transformer = createTransformer();
+        transformer.setParameterIndex(new VirtualTableParameterIndex());
+        transformer.setTraceBuffer(new DimensionTraceBuffer(256));
+        transformer.setValueSketch(new DimensionValueSketch());
+        transformer.setTransformationMemo(new DimensionTransformationMemo(1024));
+
+        notTriggered = new RequestShape() {
+            @Override
+            public GetMapRequest create() {
+                GetMapRequest request = mockData.createRequest();
+                request.setLayers(Arrays.asList(layerTwo, layerThree));
+                request.setTime(Arrays.<Object> asList(new DateTime("2004-12-13T23:59:59.000Z")
+                        .toDate()));
+                return request;
+            }
+        };
+    }
+
+    private static DimensionSQLViewParamRequestTransformer createTransformer() {
+        DimensionSQLViewParamRequestTransformer retval = new DimensionSQLViewParamRequestTransformer();
+        retval.setResourceNamesToMatch(
+                Arrays.<Name> asList(new NameImpl("http://geoserver.org", "layerOne")));
+        retval.setCustomDimensionsToTransform(Arrays.asList("testdim", "otherdim"));
+        return retval;
+    }
+
+    @Test
+    public void testNotTriggered() throws Exception {
+        run(bare, notTriggered, WARMUP);
+        long bareBytes = run(bare, notTriggered, ITERATIONS);
+        run(transformer, notTriggered, WARMUP);
+        long wiredBytes = run(transformer, notTriggered, ITERATIONS);
+        assertTrue("Allocation per request not transformed is " + wiredBytes
+                + " bytes with the wired components and " + bareBytes
+                + " bytes without, the components should cost less than a dimension value",
+                wiredBytes <= bareBytes + PER_VALUE_BUDGET);
+    }
+
+    @Test
+    public void testSingleTime() throws Exception {
+        assertWithinBudget("single time", 1, new RequestShape() {
+            @Override
+            public GetMapRequest create() {
+                GetMapRequest request = mockData.createRequest();
+                request.setLayers(Arrays.asList(layerOne));
+                request.setTime(Arrays.<Object> asList(new DateTime("2004-12-13T23:59:59.000Z")
+                        .toDate()));
+                return request;
+            }
+        });
+    }
+
+    @Test
+    public void testAllDimensions() throws Exception {
+        // two layers of three times, an elevation range and four custom values:
+        assertWithinBudget("all dimensions", 16, new RequestShape() {
+            @Override
+            public GetMapRequest create() {
+                GetMapRequest request = mockData.createRequest();
+                request.setLayers(Arrays.asList(layerOne, layerTwo));
+                request.setTime(Arrays.<Object> asList(
+                        new DateTime("2004-12-13T23:59:59.000Z").toDate(),
+                        new DateTime("2004-12-14T00:59:59.000Z").toDate(),
+                        new DateTime("2004-12-14T01:59:59.000Z").toDate()));
+                request.setElevation(Arrays.<Object> asList(new NumberRange<Double>(
+                        Double.class, new Double(1000), new Double(2000))));
+                DimensionViewParamTransformerTest.setCustomDimensionValue(request, "testdim",
+                        "100,256,ABC");
+                DimensionViewParamTransformerTest.setCustomDimensionValue(request, "otherdim",
+                        "XYZ");
+                return request;
+            }
+        });
+    }
+
+    @Test
+    public void testExistingViewParams() throws Exception {
+        // three layers of a time, an elevation and an existing parameter:
+        assertWithinBudget("existing view params", 9,
+                new RequestShape() {
+                    @Override
+                    public GetMapRequest create() {
+                        GetMapRequest request = mockData.createRequest();
+                        request.setLayers(Arrays.asList(layerOne, layerTwo, layerThree));
+                        request.setTime(Arrays.<Object> asList(new DateTime(
+                                "2004-12-13T23:59:59.000Z").toDate()));
+                        request.setElevation(Arrays.<Object> asList(new Double(1000)));
+                        List<Map<String, String>> viewParams = new ArrayList<Map<String, String>>();
+                        for (int i = 0; i < 3; i++) {
+                            Map<String, String> params = new HashMap<String, String>();
+                            params.put("source", "model" + i);
+                            viewParams.add(params);
+                        }
+                        request.setViewParams(viewParams);
+                        return request;
+                    }
+                });
+    }
+
+    private interface RequestShape {
+        GetMapRequest create();
+    }
+
+    /**
+     * Asserts the allocation of the given shape with the given number of dimension values over all the layers is within the per value
+     * budget and the relative budget of the wired components.
+     */
+    private void assertWithinBudget(String shape, int values, RequestShape factory) {
+        run(transformer, notTriggered, WARMUP);
+        long baseline = run(transformer, notTriggered, ITERATIONS);
+        run(bare, factory, WARMUP);
+        long bareBytes = run(bare, factory, ITERATIONS);
+        run(transformer, factory, WARMUP);
+        long perRequest = run(transformer, factory, ITERATIONS);
+        long perValue = (perRequest - baseline) / values;
+        assertTrue("Allocation per dimension value for shape '" + shape + "' is " + perValue
+                + " bytes, exceeding the budget of " + PER_VALUE_BUDGET + " bytes",
+                perValue <= PER_VALUE_BUDGET);
+        assertTrue("Allocation per request for shape '" + shape + "' is " + perRequest
+                + " bytes with the wired components, more than " + WIRED_FACTOR
+                + " times the " + bareBytes + " bytes without",
+                perRequest <= bareBytes * WIRED_FACTOR);
+    }
+
+    /**
+     * Transforms the given number of requests of a shape, and returns the average bytes allocated per request.
+     */
+    private long run(DimensionSQLViewParamRequestTransformer target, RequestShape factory,
+            int count) {
+        GetMapRequest[] requests = new GetMapRequest[count];
+        for (int i = 0; i < count; i++) {
+            requests[i] = factory.create();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < count; i++) {
+            target.initRequest(requests[i]);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        return allocated / count;
+    }
+}
@@ -0,0 +1,222 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogBuilder;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.wms.WMSTestSupport;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.RegexpValidator;
+import org.geotools.jdbc.VirtualTable;
+import org.geotools.jdbc.VirtualTableParameter;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * End-to-end GetMap benchmark on an SQL view of an embedded H2 database, measuring the whole path from the dimension KVP parameters through
+ * the transformation and the SQL view query to the encoded image. Each combination of a TIME/ELEVATION request shape and an output format is
+ * requested repeatedly after a warm-up, and the latency percentiles and the throughput are printed.
+ *
+ * The benchmark runs fully offline, but it is slow, so it is skipped unless the system property <code>wmsdim.benchmark</code> is set to
+ * true, e.g. <code>mvn test -Dtest=DimensionViewParamBenchmarkTest -Dwmsdim.benchmark=true</code>.
+ */
+public class DimensionViewParamBenchmarkTest extends WMSTestSupport {
+
+    private static final String LAYER = MockData.CITE_PREFIX + ":observations_view";
+
+    private static final int HOURS = 24;
+
+    private static final int LEVELS = 10;
+
+    private static final int POINTS = 100;
+
+    private static final int WARMUP = Integer.getInteger("wmsdim.benchmark.warmup", 50);
+
+    private static final int ITERATIONS = Integer.getInteger("wmsdim.benchmark.iterations", 200);
+
+    private static final String[] FORMATS = { "image/png", "image/png8", "image/jpeg" };
+
+    /** TIME/ELEVATION request shapes by name. */
+    private static final String[][] SHAPES = {
+            { "instant", "&TIME=2016-01-01T12:00:00Z&ELEVATION=5" },
+            { "time range", "&TIME=2016-01-01T06:00:00Z/2016-01-01T18:00:00Z&ELEVATION=5" },
+            { "periodic interval", "&TIME=2016-01-01T00:00:00Z/2016-01-01T23:00:00Z/PT1H"
+                    + "&ELEVATION=0/9/1" },
+            { "elevation range", "&TIME=2016-01-01T12:00:00Z&ELEVATION=2/7" },
+            { "all", "&TIME=2016-01-01T00:00:00Z/2016-01-01T23:00:00Z&ELEVATION=0/9" } };
+
+    @BeforeClass
+    public static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean("wmsdim.benchmark"));
+    }
+
+    @Override
+    protected void onSetUp(SystemTestData testData) throws Exception {
+        super.onSetUp(testData);
+        Catalog catalog = getCatalog();
+        CatalogBuilder cb = new CatalogBuilder(catalog);
+        cb.setWorkspace(catalog.getWorkspaceByName(MockData.CITE_PREFIX));
+        DataStoreInfo storeInfo = cb.buildDataStore("h2benchmark");
+        Map<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put("dbtype", "h2");
+        params.put("database", new File(testData.getDataDirectoryRoot(), "h2benchmark")
+                .getAbsolutePath());
+        storeInfo.getConnectionParameters().putAll(params);
+        catalog.add(storeInfo);
+
+        JDBCDataStore store = (JDBCDataStore) storeInfo.getDataStore(null);
+        createObservations(store);
+
+        VirtualTable vt = new VirtualTable("observations_view",
+                "select \"fid\", \"geom\", \"obs_time\", \"elevation\", \"value\""
+                        + " from \"observations\""
+                        + " where \"obs_time\" between '%timeStart%' and '%timeEnd%'"
+                        + " and \"elevation\" between %elevationStart% and %elevationEnd%");
+        RegexpValidator timeValidator = new RegexpValidator("^[\\d\\-: ]+$");
+        RegexpValidator elevationValidator = new RegexpValidator("^-?\\d+$");
+        vt.addParameter(new VirtualTableParameter("timeStart", "1970-01-01 00:00:00",
+                timeValidator));
+        vt.addParameter(new VirtualTableParameter("timeEnd", "2100-01-01 00:00:00",
+                timeValidator));
+        vt.addParameter(new VirtualTableParameter("elevationStart", "-100000",
+                elevationValidator));
+        vt.addParameter(new VirtualTableParameter("elevationEnd", "100000",
+                elevationValidator));
+        vt.setPrimaryKeyColumns(Arrays.asList("fid"));
+        vt.addGeometryMetadatata("geom", Point.class, 4326);
+        store.createVirtualTable(vt);
+
+        cb.setStore(storeInfo);
+        FeatureTypeInfo featureType = cb.buildFeatureType(store.getFeatureSource(vt.getName()));
+        featureType.getMetadata().put(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, vt);
+        ReferencedEnvelope bounds = new ReferencedEnvelope(-180, 180, -90, 90,
+                DefaultGeographicCRS.WGS84);
+        featureType.setSRS("EPSG:4326");
+        featureType.setNativeBoundingBox(bounds);
+        featureType.setLatLonBoundingBox(bounds);
+        catalog.add(featureType);
+        LayerInfo layer = cb.buildLayer(featureType);
+        layer.setDefaultStyle(catalog.getStyleByName("point"));
+        catalog.add(layer);
+
+        DimensionSQLViewParamRequestTransformer transformer = applicationContext.getBean(
+                "getMapCallback", DimensionSQLViewParamRequestTransformer.class);
+        transformer.setResourceNamesToMatch(null);
+        transformer.setTimeZone(DateTimeZone.UTC);
+        transformer.setTimeFormatPattern("yyyy-MM-dd HH:mm:ss");
+        transformer.setElevationFormatPattern("%.0f");
+        transformer.setPreservePeriodicIntervals(true);
+    }
+
+    /**
+     * Creates a table of POINTS observations for each hour and elevation level. The times are stored as UTC text, so that the comparisons do
+     * not depend on the time zone of the JVM.
+     */
+    private static void createObservations(JDBCDataStore store) throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("observations",
+                "geom:Point:srid=4326,obs_time:String,elevation:Integer,value:Double");
+        store.createSchema(type);
+        DateTimeFormatter formatter = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss")
+                .withZoneUTC();
+        DateTime start = new DateTime("2016-01-01T00:00:00Z");
+        GeometryFactory gf = new GeometryFactory();
+        Transaction t = new DefaultTransaction();
+        FeatureWriter<SimpleFeatureType, SimpleFeature> writer = store.getFeatureWriterAppend(
+                "observations", t);
+        try {
+            for (int hour = 0; hour < HOURS; hour++) {
+                String time = formatter.print(start.plusHours(hour));
+                for (int level = 0; level < LEVELS; level++) {
+                    for (int i = 0; i < POINTS; i++) {
+                        SimpleFeature f = writer.next();
+                        f.setAttribute("geom", gf.createPoint(new Coordinate(
+                                -180 + (i * 3.6), -90 + ((i * 7 + hour) % 180))));
+                        f.setAttribute("obs_time", time);
+                        f.setAttribute("elevation", level);
+                        f.setAttribute("value", Math.sin(i + hour + level));
+                        writer.write();
+                    }
+                }
+            }
+            t.commit();
+        } finally {
+            writer.close();
+            t.close();
+        }
+    }
+
+    @Test
+    public void testGetMapLatency() throws Exception {
+        System.out.println(String.format(Locale.ENGLISH, "%-18s %-11s %9s %9s %9s %9s %10s",
+                "shape", "format", "p50 ms", "p90 ms", "p99 ms", "max ms", "req/s"));
+        for (String[] shape : SHAPES) {
+            for (String format : FORMATS) {
+                String url = "wms?service=WMS&version=1.1.1&request=GetMap&layers=" + LAYER
+                        + "&styles=&srs=EPSG:4326&bbox=-180,-90,180,90&width=512&height=256"
+                        + "&format=" + format + shape[1];
+                for (int i = 0; i < WARMUP; i++) {
+                    request(url);
+                }
+                long[] latencies = new long[ITERATIONS];
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long t = System.nanoTime();
+                    request(url);
+                    latencies[i] = System.nanoTime() - t;
+                }
+                long total = System.nanoTime() - start;
+                Arrays.sort(latencies);
+                System.out.println(String.format(Locale.ENGLISH,
+                        "%-18s %-11s %9.2f %9.2f %9.2f %9.2f %10.1f", shape[0], format,
+                        percentile(latencies, 0.5), percentile(latencies, 0.9),
+                        percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6,
+                        ITERATIONS / (total / 1e9)));
+            }
+        }
+    }
+
+    private void request(String url) throws Exception {
+        MockHttpServletResponse response = getAsServletResponse(url);
+        assertEquals(200, response.getStatus());
+        // a service exception would be returned as XML:
+        assertTrue(response.getContentType(), response.getContentType().startsWith("image/"));
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies in milliseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
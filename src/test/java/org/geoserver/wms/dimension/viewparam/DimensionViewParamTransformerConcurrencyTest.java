@@ -0,0 +1,246 @@
+package org.geoserver.wms.dimension.viewparam;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSMockData;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.DimensionName;
+import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.RangeLimitType;
+import org.geotools.util.DateRange;
+import org.geotools.util.NumberRange;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Calls the shared transformer from many threads with randomised dimension values while the transformer is being reconfigured, and compares
+ * every result against the results of a single-threaded run with each of the configurations in use.
+ */
+public class DimensionViewParamTransformerConcurrencyTest {
+
+    private static final int INPUTS = 200;
+
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 25;
+
+    private static final String[] ELEVATION_PATTERNS = { "%.3f", "%.1f" };
+
+    private static final String[] TIME_START_NAMES = { "timeStart", "timeBegin" };
+
+    private WMSMockData mockData;
+
+    private List<MapLayerInfo> layers;
+
+    private DimensionSQLViewParamRequestTransformer transformer;
+
+    @Before
+    public void setUp() throws Exception {
+        mockData = new WMSMockData();
+        mockData.setUp();
+        layers = Arrays.asList(mockData.addFeatureTypeLayer("layerOne", Point.class),
+                mockData.addFeatureTypeLayer("layerTwo", Point.class),
+                mockData.addFeatureTypeLayer("layerThree", Point.class));
+        transformer = new DimensionSQLViewParamRequestTransformer();
+        transformer.setCustomDimensionsToTransform(Arrays.asList("testdim", "otherdim"));
+    }
+
+    @Test
+    public void testConcurrentRequestsWithReconfiguration() throws Exception {
+        final Random random = new Random(20160101L);
+        final List<Input> inputs = new ArrayList<Input>(INPUTS);
+        for (int i = 0; i < INPUTS; i++) {
+            inputs.add(randomInput(random));
+        }
+
+        // Single-threaded oracle results for every combination of the configurations:
+        final List<List<List<Map<String, String>>>> oracles = new ArrayList<List<List<Map<String, String>>>>();
+        for (int c = 0; c < 4; c++) {
+            configure(c);
+            List<List<Map<String, String>>> expected = new ArrayList<List<Map<String, String>>>(
+                    INPUTS);
+            for (Input input : inputs) {
+                expected.add(materialize(transformer.initRequest(input.toRequest())
+                        .getViewParams()));
+            }
+            oracles.add(expected);
+        }
+        // sanity check that the configurations make a difference
+        assertFalse(oracles.get(0).equals(oracles.get(3)));
+        configure(0);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger checked = new AtomicInteger();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+
+        Thread reconfigurer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int c = 0;
+                while (running.get()) {
+                    configure(++c % 4);
+                    Thread.yield();
+                }
+            }
+        }, "dimension-reconfigure");
+
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t * 17;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < ITERATIONS * INPUTS && failure.get() == null; n++) {
+                            int i = (n + offset) % INPUTS;
+                            GetMapRequest request = inputs.get(i).toRequest();
+                            List<Map<String, String>> actual;
+                            try {
+                                actual = materialize(transformer.initRequest(request)
+                                        .getViewParams());
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, "Input " + i + " failed: " + e);
+                                return;
+                            }
+                            boolean matched = false;
+                            for (List<List<Map<String, String>>> oracle : oracles) {
+                                if (oracle.get(i).equals(actual)) {
+                                    matched = true;
+                                    break;
+                                }
+                            }
+                            if (!matched) {
+                                failure.compareAndSet(null, "Input " + i + " gave " + actual
+                                        + ", expected one of the single-threaded results "
+                                        + oracles.get(0).get(i) + " ... "
+                                        + oracles.get(3).get(i));
+                                return;
+                            }
+                            checked.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        failure.compareAndSet(null, "Interrupted");
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "dimension-request-" + t).start();
+        }
+
+        reconfigurer.start();
+        start.countDown();
+        done.await();
+        running.set(false);
+        reconfigurer.join();
+
+        assertNull(failure.get(), failure.get());
+        assertEquals(THREADS * ITERATIONS * INPUTS, checked.get());
+    }
+
+    /**
+     * Switches the transformer into one of the four configurations. The settings are changed with separate calls, so the requests may also see
+     * the combinations in between, all of which have an oracle.
+     */
+    private void configure(int c) {
+        transformer.setElevationFormatPattern(ELEVATION_PATTERNS[c & 1]);
+        transformer.setViewParameterName(DimensionName.TIME, RangeLimitType.START,
+                TIME_START_NAMES[(c >> 1) & 1]);
+    }
+
+    private Input randomInput(Random random) {
+        Input retval = new Input();
+        retval.layers = new ArrayList<MapLayerInfo>(layers);
+        Collections.shuffle(retval.layers, random);
+        retval.layers = retval.layers.subList(0, 1 + random.nextInt(layers.size()));
+
+        long base = 1262304000000L + random.nextInt(100000) * 60000L;
+        retval.times = new ArrayList<Object>();
+        if (random.nextInt(4) == 0) {
+            retval.times.add(new DateRange(new Date(base), new Date(base
+                    + random.nextInt(1000) * 60000L)));
+        } else {
+            int count = 1 + random.nextInt(3);
+            for (int i = 0; i < count; i++) {
+                retval.times.add(new Date(base + i * 3600000L));
+            }
+        }
+
+        retval.elevations = new ArrayList<Object>();
+        if (random.nextInt(4) == 0) {
+            double min = random.nextInt(10000) / 7d;
+            retval.elevations.add(new NumberRange<Double>(Double.class, min, min
+                    + random.nextInt(1000)));
+        } else {
+            int count = random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                retval.elevations.add(random.nextInt(100000) / 13d);
+            }
+        }
+
+        retval.kvp = new HashMap<String, String>();
+        if (random.nextBoolean()) {
+            retval.kvp.put("DIM_testdim", "A" + random.nextInt(100) + ",B" + random.nextInt(100));
+        }
+        if (random.nextBoolean()) {
+            retval.kvp.put("DIM_otherdim", String.valueOf(random.nextInt(1000)));
+        }
+        return retval;
+    }
+
+    /**
+     * Copies the view parameters into plain maps, formatting any lazily formatted values.
+     */
+    private static List<Map<String, String>> materialize(List<Map<String, String>> viewParams) {
+        if (viewParams == null) {
+            return null;
+        }
+        List<Map<String, String>> retval = new ArrayList<Map<String, String>>(viewParams.size());
+        for (Map<String, String> params : viewParams) {
+            retval.add(params != null ? new HashMap<String, String>(params) : null);
+        }
+        return retval;
+    }
+
+    /**
+     * Randomised request input, turned into a new request for each call.
+     */
+    private static class Input {
+
+        List<MapLayerInfo> layers;
+
+        List<Object> times;
+
+        List<Object> elevations;
+
+        Map<String, String> kvp;
+
+        GetMapRequest toRequest() {
+            GetMapRequest request = new GetMapRequest();
+            request.setLayers(new ArrayList<MapLayerInfo>(this.layers));
+            request.setTime(this.times);
+            request.setElevation(this.elevations);
+            Map<String, String> rawKvp = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            rawKvp.putAll(this.kvp);
+            request.setRawKvp(rawKvp);
+            return request;
+        }
+    }
+}
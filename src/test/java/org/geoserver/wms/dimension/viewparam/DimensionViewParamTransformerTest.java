@@ -1,21 +1,41 @@
 package org.geoserver.wms.dimension.viewparam;
 
+import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.impl.LayerGroupInfoImpl;
+import org.geoserver.catalog.impl.WorkspaceInfoImpl;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.HttpErrorCodeException;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetFeatureInfoRequest;
 import org.geoserver.wms.GetMap;
 import org.geoserver.wms.GetMapOutputFormat;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WMSMockData;
@@ -24,16 +44,34 @@ import org.geoserver.wms.WebMap;
 import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.DimensionName;
 import org.geoserver.wms.dimension.viewparam.DimensionSQLViewParamRequestTransformer.RangeLimitType;
 import org.geoserver.wms.map.RenderedImageMap;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
 import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.jdbc.VirtualTable;
+import org.geotools.jdbc.VirtualTableParameter;
+import org.geotools.map.FeatureLayer;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.styling.Style;
+import org.geotools.styling.StyleFactory;
 import org.geotools.util.DateRange;
 import org.geotools.util.NumberRange;
+import org.geotools.util.Version;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.geoserver.wms.WMSMockData.DummyRasterMapProducer;
 import org.junit.Before;
 import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
 
 public class DimensionViewParamTransformerTest extends WMSTestSupport {
@@ -59,6 +97,26 @@ public class DimensionViewParamTransformerTest extends WMSTestSupport {
         transformer.setElevationFormatPattern("%.3f");
         transformer.setTimeFormatPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
         transformer.setTimeZone(DateTimeZone.UTC);
+        transformer.setInjectDeclaredParametersOnly(false);
+        transformer.setEtagEnabled(false);
+        transformer.setTimeCachePolicy(null);
+        transformer.setRequestRecorder(null);
+        transformer.setPreservePeriodicIntervals(false);
+        transformer.setWorkspaceConfigs(null);
+        transformer.setLayerGroupNamesToMatch(null);
+        transformer.setLayerGroupIndex(null);
+        transformer.setCustomDimensionTypes(null);
+        transformer.setTraceBuffer(null);
+        transformer.setTimeZoneParameter(null);
+        transformer.setLayerTimeZones(null);
+        transformer.setAnimationDetector(null);
+        transformer.setLayerElevationConversions(null);
+        transformer.setValueSketch(null);
+        transformer.setAdmissionControl(null);
+        transformer.setTypedQueryHintsEnabled(false);
+        transformer.setTransformationMemo(null);
+        transformer.setParallelFormatter(null);
+        transformer.setSharedCache(null);
         transformer.setViewParameterName(DimensionName.TIME, RangeLimitType.START, "timeStart");
         transformer.setViewParameterName(DimensionName.TIME, RangeLimitType.END, "timeEnd");
         transformer.setViewParameterName(DimensionName.ELEVATION, RangeLimitType.START,
@@ -647,6 +705,1346 @@ public class DimensionViewParamTransformerTest extends WMSTestSupport {
         }
     }
 
+    @Test
+    public void testRemoteLayersSkipped() throws Exception {
+        SimpleFeatureSource remote = createNiceMock(SimpleFeatureSource.class);
+        expect(remote.getSchema()).andReturn(DataUtilities.createType("remote", "geom:Point"))
+                .anyTimes();
+        replay(remote);
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+        MapLayerInfo catalogLayer = request.getLayers().get(0);
+
+        // a remote layer alone does not trigger the transformation:
+        request.setLayers(Collections.singletonList(new MapLayerInfo(remote)));
+        transformer.initRequest(request);
+        assertNull(request.getViewParams());
+
+        // and gets no dimension values when requested with a matching layer:
+        request.setLayers(Arrays.asList(catalogLayer, new MapLayerInfo(remote)));
+        transformer.setInjectDeclaredParametersOnly(true);
+        transformer.initRequest(request);
+        assertEquals(2, request.getViewParams().size());
+        assertTrue(request.getViewParams().get(1).isEmpty());
+
+        // nor when merged with the existing view parameters:
+        Map<String, String> existing = Collections.singletonMap("foo", "bar");
+        request.setViewParams(Arrays.asList(existing, existing));
+        transformer.initRequest(request);
+        assertEquals(existing, request.getViewParams().get(1));
+    }
+
+    @Test
+    public void testInjectDeclaredParametersOnly() throws Exception {
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        VirtualTable vt = new VirtualTable("layerOne",
+                "select * from layer_one where t = '%timeStart%'");
+        vt.addParameter(new VirtualTableParameter("timeStart", "2000-01-01"));
+        Map<String, Serializable> metadata = request.getLayers().get(0).getFeature()
+                .getMetadata();
+        metadata.put(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, vt);
+        transformer.setInjectDeclaredParametersOnly(true);
+        WebMap map = null;
+
+        try {
+            map = getMapOp.run(request);
+            List<Map<String, String>> vps = request.getViewParams();
+            assertNotNull(vps);
+            assertEquals("2004-12-13T23:59:59.000+00:00", vps.get(0).get("timeStart"));
+            assertFalse(vps.get(0).containsKey("timeEnd"));
+            assertTrue(vps.get(1).isEmpty());
+        } finally {
+            if (map != null) {
+                map.dispose();
+            }
+            // the feature types are shared with the other tests:
+            metadata.remove(FeatureTypeInfo.JDBC_VIRTUAL_TABLE);
+            transformer.getParameterIndex().reloaded();
+        }
+    }
+
+    @Test
+    public void testLazyFormatting() throws Exception {
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        request.setElevation(Double.valueOf("1000"));
+        transformer.initRequest(request);
+
+        List<Map<String, String>> vps = request.getViewParams();
+        assertNotNull(vps);
+        assertTrue(vps.get(0) instanceof LazyViewParameterMap);
+        LazyViewParameterMap params = (LazyViewParameterMap) vps.get(0);
+        assertTrue(params.containsKey("timeStart"));
+        assertTrue(params.containsKey("elevationStart"));
+        assertFalse(params.isFormatted("timeStart"));
+        assertFalse(params.isFormatted("elevationStart"));
+
+        assertEquals("2004-12-13T23:59:59.000+00:00", params.get("timeStart"));
+        assertTrue(params.isFormatted("timeStart"));
+        assertFalse(params.isFormatted("timeEnd"));
+        assertFalse(params.isFormatted("elevationStart"));
+    }
+
+    @Test
+    public void testETagComputation() throws Exception {
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        transformer.initRequest(request);
+        String etag = DimensionETagCallback.computeETag(request.getLayers(), null,
+                request.getViewParams(), 0L);
+        assertTrue(etag.startsWith("W/\"") && etag.endsWith("\""));
+
+        // Same values in different map order should result in the same ETag:
+        List<Map<String, String>> formatted = new ArrayList<Map<String, String>>();
+        List<Map<String, String>> reordered = new ArrayList<Map<String, String>>();
+        for (Map<String, String> m : request.getViewParams()) {
+            formatted.add(new LinkedHashMap<String, String>(m));
+            List<String> names = new ArrayList<String>(m.keySet());
+            Collections.reverse(names);
+            Map<String, String> copy = new LinkedHashMap<String, String>();
+            for (String name : names) {
+                copy.put(name, m.get(name));
+            }
+            reordered.add(copy);
+        }
+        String formattedEtag = DimensionETagCallback.computeETag(request.getLayers(), null, formatted, 0L);
+        assertEquals(formattedEtag,
+                DimensionETagCallback.computeETag(request.getLayers(), null, reordered), 0L);
+
+        // Different values should not:
+        List<Map<String, String>> changed = new ArrayList<Map<String, String>>();
+        for (Map<String, String> m : request.getViewParams()) {
+            Map<String, String> copy = new HashMap<String, String>(m);
+            copy.put("timeStart", "2004-12-14T00:00:00.000+00:00");
+            changed.add(copy);
+        }
+        assertFalse(formattedEtag.equals(DimensionETagCallback.computeETag(request.getLayers(), null,
+                changed)), 0L);
+
+        assertTrue(DimensionETagCallback.matches(etag, etag));
+        assertTrue(DimensionETagCallback.matches("\"abc\", W/" + etag, etag));
+        assertTrue(DimensionETagCallback.matches("*", etag));
+        assertFalse(DimensionETagCallback.matches("\"abc\"", etag));
+        assertFalse(DimensionETagCallback.matches(null, etag));
+        assertTrue(DimensionETagCallback.matches(etag.substring(2), etag));
+
+        // a different style or catalog state changes the ETag:
+        StyleFactory styleFactory = CommonFactoryFinder.getStyleFactory(null);
+        Style style = styleFactory.createStyle();
+        style.setName("dimStyle");
+        List<Style> styles = Collections.singletonList(style);
+        String styledEtag = DimensionETagCallback.computeETag(request.getLayers(), styles,
+                formatted, 0L);
+        assertFalse(formattedEtag.equals(styledEtag));
+        style.featureTypeStyles().add(styleFactory.createFeatureTypeStyle());
+        assertFalse(styledEtag.equals(DimensionETagCallback.computeETag(request.getLayers(),
+                styles, formatted, 0L)));
+        assertFalse(formattedEtag.equals(DimensionETagCallback.computeETag(request.getLayers(),
+                null, formatted, 1L)));
+
+        // computing the ETag does not format the lazy values:
+        GetMapRequest unformatted = mockData.createRequest();
+        unformatted.setLayers(request.getLayers());
+        unformatted.setTime(request.getTime());
+        unformatted.setRawKvp(new HashMap<String, String>(request.getRawKvp()));
+        transformer.initRequest(unformatted);
+        assertEquals(etag, DimensionETagCallback.computeETag(unformatted.getLayers(), null,
+                unformatted.getViewParams()), 0L);
+        assertFalse(((LazyViewParameterMap) unformatted.getViewParams().get(0))
+                .isFormatted("timeStart"));
+
+        // a different time format changes the ETag:
+        transformer.setTimeFormatPattern("yyyy-MM-dd'T'HH:mm:ssZZ");
+        GetMapRequest reformatted = mockData.createRequest();
+        reformatted.setLayers(request.getLayers());
+        reformatted.setTime(request.getTime());
+        reformatted.setRawKvp(new HashMap<String, String>(request.getRawKvp()));
+        transformer.initRequest(reformatted);
+        assertFalse(etag.equals(DimensionETagCallback.computeETag(reformatted.getLayers(), null,
+                reformatted.getViewParams())), 0L);
+    }
+
+    @Test
+    public void testETagNotModified() throws Exception {
+        request.setTime(Arrays.<Object> asList((new DateTime("2004-12-13T23:59:59.000Z")
+                .toDate())));
+        boolean etagEnabled = transformer.isEtagEnabled();
+        transformer.setEtagEnabled(true);
+        org.geoserver.ows.Request owsRequest = new org.geoserver.ows.Request();
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        owsRequest.setHttpRequest(httpRequest);
+        owsRequest.setHttpResponse(new MockHttpServletResponse());
+        Dispatcher.REQUEST.set(owsRequest);
+        try {
+            transformer.initRequest(request);
+            Object etag = httpRequest.getAttribute(DimensionETagCallback.ETAG_ATTRIBUTE);
+            assertNotNull(etag);
+
+            GetMapRequest conditional = mockData.createRequest();
+            conditional.setLayers(request.getLayers());
+            conditional.setTime(request.getTime());
+            conditional.setRawKvp(new HashMap<String, String>(request.getRawKvp()));
+            httpRequest = new MockHttpServletRequest();
+            httpRequest.addHeader("If-None-Match", etag.toString());
+            owsRequest.setHttpRequest(httpRequest);
+            try {
+                transformer.initRequest(conditional);
+                fail("Expected 304 Not Modified");
+            } catch (HttpErrorCodeException e) {
+                assertEquals(304, e.getErrorCode());
+            }
+            assertEquals(etag.toString(),
+                    ((MockHttpServletResponse) owsRequest.getHttpResponse()).getHeader("ETag"));
+
+            // a catalog change invalidates the ETag:
+            transformer.getParameterIndex().reloaded();
+            GetMapRequest modified = mockData.createRequest();
+            modified.setLayers(request.getLayers());
+            modified.setStyles(request.getStyles());
+            modified.setTime(request.getTime());
+            modified.setRawKvp(new HashMap<String, String>(request.getRawKvp()));
+            transformer.initRequest(modified);
+            assertFalse(etag.equals(httpRequest
+                    .getAttribute(DimensionETagCallback.ETAG_ATTRIBUTE)));
+        } finally {
+            Dispatcher.REQUEST.remove();
+            transformer.setEtagEnabled(etagEnabled);
+        }
+    }
+
+    @Test
+    public void testTimeCachePolicy() throws Exception {
+        TimeCachePolicy policy = new TimeCachePolicy();
+        policy.setImmutableAfterDays(7);
+        policy.setImmutableMaxAge(86400);
+        policy.setRecentMaxAge(60);
+        policy.setCurrentMaxAge(30);
+        long now = new DateTime("2016-06-30T12:00:00.000Z").getMillis();
+
+        List<Object> old = Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00.000Z").toDate());
+        assertEquals("private, max-age=86400, immutable", policy.getCacheControl(old, null, now));
+
+        List<Object> recent = Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00.000Z").toDate(),
+                new DateTime("2016-06-30T11:00:00.000Z").toDate());
+        assertEquals("private, max-age=60", policy.getCacheControl(recent, null, now));
+
+        List<Object> range = Arrays.<Object> asList(new DateRange(
+                new DateTime("2016-06-01T00:00:00.000Z").toDate(),
+                new DateTime("2016-07-01T00:00:00.000Z").toDate()));
+        assertEquals("no-store", policy.getCacheControl(range, null, now));
+
+        assertEquals("private, max-age=30", policy.getCacheControl(recent, "current", now));
+        assertNull(policy.getCacheControl(null, null, now));
+
+        // only the whole value or the end of an interval is the current time:
+        assertTrue(TimeCachePolicy.isCurrent(" Present"));
+        assertTrue(TimeCachePolicy.isCurrent("2016-01-01T00:00:00Z/current"));
+        assertTrue(TimeCachePolicy.isCurrent("2016-01-01T00:00:00Z/present/PT1H"));
+        assertFalse(TimeCachePolicy.isCurrent("current/2016-01-01T00:00:00Z"));
+        assertFalse(TimeCachePolicy.isCurrent("2016-01-01T00:00:00Z,current"));
+        assertFalse(TimeCachePolicy.isCurrent("currently"));
+        assertEquals("private, max-age=60", policy.getCacheControl(recent, "presentation", now));
+
+        policy.setImmutableMaxAge(-1);
+        assertNull(policy.getCacheControl(old, null, now));
+        policy.setImmutableMaxAge(86400);
+
+        // shared caches may only store the responses marked public:
+        policy.setPublicCaching(true);
+        assertEquals("public, max-age=86400, immutable", policy.getCacheControl(old, null, now));
+        assertEquals("public, max-age=60", policy.getCacheControl(recent, null, now));
+        policy.setPublicCaching(false);
+
+        // the header is set for the responses of the transformed requests:
+        transformer.setTimeCachePolicy(policy);
+        WMSMapContent mapContent = new WMSMapContent(request);
+        try {
+            request.setTime(old);
+            transformer.initRequest(request);
+            RenderedImageMap map = new RenderedImageMap(mapContent, new BufferedImage(1, 1,
+                    BufferedImage.TYPE_INT_RGB), DummyRasterMapProducer.MIME_TYPE);
+            transformer.finished(map);
+            assertEquals("Cache-Control", map.getResponseHeaders()[0][0]);
+            assertEquals("private, max-age=86400, immutable", map.getResponseHeaders()[0][1]);
+
+            policy.setPublicCaching(true);
+            map = new RenderedImageMap(mapContent, new BufferedImage(1, 1,
+                    BufferedImage.TYPE_INT_RGB), DummyRasterMapProducer.MIME_TYPE);
+            transformer.initRequest(request);
+            transformer.finished(map);
+            assertEquals("public, max-age=86400, immutable", map.getResponseHeaders()[0][1]);
+
+            // but not for a response of a request not initialized by the transformer:
+            map = new RenderedImageMap(mapContent, new BufferedImage(1, 1,
+                    BufferedImage.TYPE_INT_RGB), DummyRasterMapProducer.MIME_TYPE);
+            transformer.finished(map);
+            assertNull(map.getResponseHeaders());
+        } finally {
+            transformer.setTimeCachePolicy(null);
+            mapContent.dispose();
+        }
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        File dir = File.createTempFile("dimrec", "test");
+        dir.delete();
+        DimensionRequestRecorder recorder = new DimensionRequestRecorder();
+        recorder.setDirectory(dir);
+        recorder.setSegmentSize(4096);
+        recorder.setMaxSegments(2);
+        transformer.setRequestRecorder(recorder);
+
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        request.setElevation(Arrays.<Object> asList(new NumberRange<Double>(Double.class,
+                new Double(1000), new Double(2000))));
+        setCustomDimensionValue(request, "testdim", "100,256,ABC");
+        Map<String, String> clientParams = new HashMap<String, String>();
+        clientParams.put("style", "dark");
+        request.setViewParams(Arrays.<Map<String, String>> asList(clientParams,
+                new HashMap<String, String>()));
+        try {
+            transformer.initRequest(request);
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            // requests not transformed are not recorded:
+            GetMapRequest untransformed = mockData.createRequest();
+            untransformed.setLayers(Arrays.asList(request.getLayers().get(1)));
+            untransformed.setTime(request.getTime());
+            untransformed.setRawKvp(new HashMap<String, String>());
+            transformer.initRequest(untransformed);
+            assertNull(untransformed.getViewParams());
+            assertTrue(recorder.flush(10000));
+            recorder.close();
+            transformer.setRequestRecorder(null);
+
+            List<RecordedRequest> records = DimensionRequestRecorder.read(dir);
+            assertEquals(2, records.size());
+            RecordedRequest r = records.get(0);
+            assertEquals(2, r.getLayers().size());
+            assertEquals("layerOne", r.getLayers().get(0).getLocalName());
+            assertEquals("100,256,ABC", r.getDimensionKvp().get("DIM_testdim"));
+            assertEquals(1, r.getTimes().size());
+            assertEquals(1, r.getElevations().size());
+            assertEquals("2004-12-13T23:59:59.000+00:00", r.getViewParams().get(0).get("timeStart"));
+            assertEquals("dark", r.getViewParams().get(0).get("style"));
+            assertEquals(2, r.getInputViewParams().size());
+            assertEquals(clientParams, r.getInputViewParams().get(0));
+            assertNull(records.get(1).getInputViewParams());
+
+            DimensionRequestReplay replay = new DimensionRequestReplay(transformer);
+            DimensionRequestReplay.Result result = replay.replay(records, 4, 10);
+            assertEquals(20, result.getRequests());
+            assertEquals(0, result.getErrors());
+            assertEquals(0, result.getMismatches());
+        } finally {
+            for (File f : DimensionRequestRecorder.listSegments(dir)) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testPeriodicIntervals() throws Exception {
+        // GeoServer has already expanded the interval into instants:
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00.000Z").toDate(),
+                new DateTime("2016-01-01T01:00:00.000Z").toDate(),
+                new DateTime("2016-01-01T02:00:00.000Z").toDate()));
+        request.setElevation(Arrays.<Object> asList(new Double(0), new Double(100),
+                new Double(200)));
+        request.getRawKvp().put("TIME", "2016-01-01T00:00:00.000Z/2016-01-01T02:00:00.000Z/PT1H");
+        request.getRawKvp().put("ELEVATION", "0/200/100");
+        String pattern = transformer.getElevationFormatPattern();
+
+        transformer.setPreservePeriodicIntervals(true);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2016-01-01T00:00:00.000+00:00");
+        assertViewParamSet(request, "timeEnd", "2016-01-01T02:00:00.000+00:00");
+        assertViewParamSet(request, "timeStep", "PT1H");
+        assertViewParamSet(request, "elevationStart", String.format(pattern, 0d));
+        assertViewParamSet(request, "elevationEnd", String.format(pattern, 200d));
+        assertViewParamSet(request, "elevationStep", String.format(pattern, 100d));
+        request.setViewParams(null);
+
+        // without the step parameters the intervals are expanded instead of losing their step:
+        transformer.setViewParameterName(DimensionName.TIME, RangeLimitType.STEP, null);
+        transformer.setViewParameterName(DimensionName.ELEVATION, RangeLimitType.STEP, null);
+        try {
+            transformer.initRequest(request);
+            assertViewParamSet(request, "timeEnd", "2016-01-01T00:00:00.000+00:00,"
+                    + "2016-01-01T01:00:00.000+00:00,2016-01-01T02:00:00.000+00:00");
+            assertViewParamSet(request, "elevationEnd", String.format(pattern, 0d) + ","
+                    + String.format(pattern, 100d) + "," + String.format(pattern, 200d));
+        } finally {
+            transformer.setViewParameterName(DimensionName.TIME, RangeLimitType.STEP, "timeStep");
+            transformer.setViewParameterName(DimensionName.ELEVATION, RangeLimitType.STEP,
+                    "elevationStep");
+        }
+        request.setViewParams(null);
+
+        transformer.setPreservePeriodicIntervals(false);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2016-01-01T00:00:00.000+00:00,"
+                + "2016-01-01T01:00:00.000+00:00,2016-01-01T02:00:00.000+00:00");
+        assertViewParamNotSet(request, "timeStep");
+        assertViewParamNotSet(request, "elevationStep");
+    }
+
+    @Test
+    public void testWorkspaceConfig() throws Exception {
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        DimensionTransformerConfig config = new DimensionTransformerConfig();
+        config.setTimeStartParameter("wsTimeStart");
+        config.setTimeFormatPattern("yyyy-MM-dd");
+        transformer.applyWorkspaceConfig("tenant", config);
+
+        WorkspaceInfoImpl workspace = new WorkspaceInfoImpl();
+        workspace.setName("tenant");
+        LocalWorkspace.set(workspace);
+        try {
+            transformer.initRequest(request);
+        } finally {
+            LocalWorkspace.remove();
+        }
+        assertViewParamSet(request, "wsTimeStart", "2004-12-13");
+        assertViewParamNotSet(request, "timeStart");
+
+        // other workspaces and the global services use the global configuration:
+        request.setViewParams(null);
+        workspace = new WorkspaceInfoImpl();
+        workspace.setName("other");
+        LocalWorkspace.set(workspace);
+        try {
+            transformer.initRequest(request);
+        } finally {
+            LocalWorkspace.remove();
+        }
+        assertViewParamSet(request, "timeStart", "2004-12-13T23:59:59.000+00:00");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2004-12-13T23:59:59.000+00:00");
+
+        transformer.applyWorkspaceConfig("tenant", null);
+        assertNull(transformer.getWorkspaceConfig("tenant"));
+    }
+
+    @Test
+    public void testWorkspaceRequestSettings() throws Exception {
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+        DimensionTransformerConfig config = new DimensionTransformerConfig();
+        config.setEtagEnabled(true);
+        config.setTypedQueryHintsEnabled(true);
+        transformer.applyWorkspaceConfig("tenant", config);
+        assertFalse(transformer.isEtagEnabled());
+        assertFalse(transformer.isTypedQueryHintsEnabled());
+
+        SimpleFeatureSource source = createNiceMock(SimpleFeatureSource.class);
+        expect(source.getName()).andReturn(
+                request.getLayers().get(0).getResource().getQualifiedName()).anyTimes();
+        replay(source);
+        WMSMapContent mapContent = new WMSMapContent(request);
+        org.geoserver.ows.Request owsRequest = new org.geoserver.ows.Request();
+        owsRequest.setHttpResponse(new MockHttpServletResponse());
+        WorkspaceInfoImpl workspace = new WorkspaceInfoImpl();
+        workspace.setName("tenant");
+        Dispatcher.REQUEST.set(owsRequest);
+        try {
+            // the workspace settings are used for the requests to the workspace:
+            MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+            owsRequest.setHttpRequest(httpRequest);
+            FeatureLayer layer = new FeatureLayer(source, mockData.getDefaultStyle().getStyle());
+            LocalWorkspace.set(workspace);
+            try {
+                transformer.initRequest(request);
+                transformer.beforeLayer(mapContent, layer);
+            } finally {
+                LocalWorkspace.remove();
+            }
+            assertNotNull(httpRequest.getAttribute(DimensionETagCallback.ETAG_ATTRIBUTE));
+            assertEquals(request.getTime(), layer.getQuery().getHints()
+                    .get(DimensionQueryHints.TIME));
+
+            // and the global settings for the others:
+            httpRequest = new MockHttpServletRequest();
+            owsRequest.setHttpRequest(httpRequest);
+            layer = new FeatureLayer(source, mockData.getDefaultStyle().getStyle());
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            transformer.beforeLayer(mapContent, layer);
+            assertNull(httpRequest.getAttribute(DimensionETagCallback.ETAG_ATTRIBUTE));
+            assertSame(Query.ALL, layer.getQuery());
+        } finally {
+            Dispatcher.REQUEST.remove();
+            mapContent.dispose();
+        }
+    }
+
+    @Test
+    public void testLayerGroupMatching() throws Exception {
+        LayerInfo layerTwo = request.getLayers().get(1).getLayerInfo();
+        LayerGroupInfoImpl inner = new LayerGroupInfoImpl();
+        inner.setId("inner");
+        inner.setName("inner");
+        inner.getLayers().add(layerTwo);
+        LayerGroupInfoImpl outer = new LayerGroupInfoImpl();
+        outer.setId("outer");
+        outer.setName("outer");
+        outer.getLayers().add(inner);
+        Catalog catalog = createNiceMock(Catalog.class);
+        expect(catalog.getLayerGroups()).andReturn(Arrays.<LayerGroupInfo> asList(inner, outer))
+                .anyTimes();
+        replay(catalog);
+        LayerGroupMembershipIndex index = new LayerGroupMembershipIndex(catalog);
+        assertEquals(new HashSet<String>(Arrays.asList("inner", "outer")),
+                index.getLayerGroupNames(layerTwo.getResource()));
+        assertEquals(Collections.singleton(layerTwo.getResource().getQualifiedName()),
+                index.getMemberResourceNames("outer"));
+
+        String timeStr = "2004-12-13T23:59:59.000Z";
+        request.setTime(Arrays.<Object> asList((new DateTime(timeStr).toDate())));
+        request.setLayers(Arrays.asList(request.getLayers().get(1)));
+        transformer.setResourceNamesToMatch(Collections.<Name> emptyList());
+        transformer.setLayerGroupIndex(index);
+        transformer.setLayerGroupNamesToMatch(Arrays.asList("outer"));
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2004-12-13T23:59:59.000+00:00");
+
+        // the groups survive setting the resource names and applying the configuration:
+        transformer.setResourceNamesToMatch(Collections.<Name> emptyList());
+        assertEquals(Arrays.asList("outer"), transformer.getLayerGroupNamesToMatch());
+        DimensionTransformerConfig config = transformer.getConfig();
+        transformer.setLayerGroupNamesToMatch(null);
+        transformer.applyConfig(config);
+        assertEquals(Arrays.asList("outer"), transformer.getLayerGroupNamesToMatch());
+
+        request.setViewParams(null);
+        transformer.setLayerGroupNamesToMatch(Arrays.asList("other"));
+        transformer.initRequest(request);
+        assertViewParamNotSet(request, "timeStart");
+    }
+
+    @Test
+    public void testFeatureInfoAndMemo() throws Exception {
+        DimensionTransformationMemo memo = new DimensionTransformationMemo(16);
+        transformer.setTransformationMemo(memo);
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+        request.getRawKvp().put("TIME", "2016-01-01T00:00:00Z");
+        transformer.initRequest(request);
+        assertEquals(0, memo.getHitCount());
+        assertEquals(1, memo.getMissCount());
+        assertViewParamSet(request, "timeStart", "2016-01-01T00:00:00.000+00:00");
+
+        // the GetFeatureInfo request for the same map reuses the result:
+        GetMapRequest getMap = mockData.createRequest();
+        getMap.setLayers(request.getLayers());
+        getMap.setTime(request.getTime());
+        Map<String, String> kvp = new HashMap<String, String>(request.getRawKvp());
+        kvp.put("QUERY_LAYERS", "layerOne");
+        kvp.put("INFO_FORMAT", "text/plain");
+        kvp.put("X", "5");
+        kvp.put("Y", "5");
+        getMap.setRawKvp(kvp);
+        GetFeatureInfoRequest featureInfo = new GetFeatureInfoRequest();
+        featureInfo.setGetMapRequest(getMap);
+        Operation operation = new Operation("GetFeatureInfo", new Service("wms", null,
+                new Version("1.1.1"), Arrays.asList("GetFeatureInfo")), null,
+                new Object[] { featureInfo });
+        new DimensionFeatureInfoCallback(transformer).operationDispatched(null, operation);
+        assertViewParamSet(getMap, "timeStart", "2016-01-01T00:00:00.000+00:00");
+        assertEquals(1, memo.getHitCount());
+
+        // changing the view parameters of a request does not change the memoised result:
+        getMap.getViewParams().get(0).put("timeStart", "changed");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals(2, memo.getHitCount());
+        assertViewParamSet(request, "timeStart", "2016-01-01T00:00:00.000+00:00");
+
+        // a configuration change is never served from the memo:
+        transformer.setTimeFormatPattern("yyyy-MM-dd");
+        getMap.setViewParams(null);
+        new DimensionFeatureInfoCallback(transformer).operationDispatched(null, operation);
+        assertViewParamSet(getMap, "timeStart", "2016-01-01");
+        assertEquals(2, memo.getMissCount());
+
+        // nor a different time:
+        getMap.setTime(Arrays.<Object> asList(new DateTime("2016-01-02T00:00:00Z").toDate()));
+        getMap.getRawKvp().put("TIME", "2016-01-02T00:00:00Z");
+        getMap.setViewParams(null);
+        new DimensionFeatureInfoCallback(transformer).operationDispatched(null, operation);
+        assertViewParamSet(getMap, "timeStart", "2016-01-02");
+        assertEquals(3, memo.getMissCount());
+
+        // nor after a catalog change:
+        getMap.setViewParams(null);
+        new DimensionFeatureInfoCallback(transformer).operationDispatched(null, operation);
+        assertEquals(3, memo.getHitCount());
+        transformer.getParameterIndex().reloaded();
+        getMap.setViewParams(null);
+        new DimensionFeatureInfoCallback(transformer).operationDispatched(null, operation);
+        assertEquals(3, memo.getHitCount());
+        assertEquals(4, memo.getMissCount());
+    }
+
+    @Test
+    public void testSharedCache() throws Exception {
+        File file = File.createTempFile("dimcache", "test");
+        file.delete();
+        // two caches on the same file, as in two instances on the same host:
+        SharedTransformationCache first = new SharedTransformationCache(file, 16, 1024);
+        SharedTransformationCache second = new SharedTransformationCache(file, 16, 1024);
+        try {
+            first.open();
+            second.open();
+            assertTrue(first.isOpen());
+            assertTrue(second.isOpen());
+            request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+            setCustomDimensionValue(request, "testdim", "100,256,ABC");
+            transformer.setSharedCache(first);
+            transformer.initRequest(request);
+            assertEquals(1, first.getMissCount());
+            // the values are formatted by the writer, not by the request:
+            LazyViewParameterMap params = (LazyViewParameterMap) request.getViewParams().get(0);
+            assertTrue(first.awaitWrites(10000));
+            assertTrue(params.isFormatted("timeStart"));
+            List<Map<String, String>> expected = new ArrayList<Map<String, String>>();
+            for (Map<String, String> p : request.getViewParams()) {
+                expected.add(new HashMap<String, String>(p));
+            }
+
+            transformer.setSharedCache(second);
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertEquals(1, second.getHitCount());
+            assertEquals(expected.size(), request.getViewParams().size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i), new HashMap<String, String>(request
+                        .getViewParams().get(i)));
+            }
+
+            // a different configuration is not served from the cache:
+            transformer.setTimeFormatPattern("yyyy-MM-dd");
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertEquals(1, second.getMissCount());
+            assertViewParamSet(request, "timeStart", "2016-01-01");
+            assertTrue(second.awaitWrites(10000));
+
+            // nor a changed SQL view:
+            VirtualTable vt = new VirtualTable("layerOne",
+                    "select * from layer_one where t = '%timeStart%'");
+            vt.addParameter(new VirtualTableParameter("timeStart", "2000-01-01"));
+            Map<String, Serializable> metadata = request.getLayers().get(0).getFeature()
+                    .getMetadata();
+            metadata.put(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, vt);
+            transformer.getParameterIndex().reloaded();
+            try {
+                request.setViewParams(null);
+                transformer.initRequest(request);
+                assertEquals(2, second.getMissCount());
+            } finally {
+                metadata.remove(FeatureTypeInfo.JDBC_VIRTUAL_TABLE);
+                transformer.getParameterIndex().reloaded();
+            }
+
+            // results larger than a slot are not cached:
+            setCustomDimensionValue(request, "testdim", StringUtils.repeat("x", 2000));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertTrue(second.awaitWrites(10000));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertEquals(4, second.getMissCount());
+
+            second.clear();
+            request.setViewParams(null);
+            transformer.setTimeFormatPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+            setCustomDimensionValue(request, "testdim", "100,256,ABC");
+            transformer.initRequest(request);
+            assertEquals(5, second.getMissCount());
+            assertTrue(second.awaitWrites(10000));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertEquals(2, second.getHitCount());
+
+            // the existing view parameters are keyed in name order:
+            TransformationPlan plan = new TransformationPlan(
+                    DimensionSQLViewParamRequestTransformer
+                            .withDefaults(new DimensionTransformerConfig()), null, null, null,
+                    null, null);
+            Map<String, String> ordered = new LinkedHashMap<String, String>();
+            ordered.put("a", "1");
+            ordered.put("b", "2");
+            Map<String, String> reversed = new LinkedHashMap<String, String>();
+            reversed.put("b", "2");
+            reversed.put("a", "1");
+            request.setViewParams(Collections.singletonList(ordered));
+            byte[] key = SharedTransformationCache.getKey(plan, request);
+            request.setViewParams(Collections.singletonList(reversed));
+            assertTrue(Arrays.equals(key, SharedTransformationCache.getKey(plan, request)));
+
+            // and a remote layer without catalog state is keyed by its name:
+            SimpleFeatureSource remote = createNiceMock(SimpleFeatureSource.class);
+            expect(remote.getSchema()).andReturn(DataUtilities.createType("remote", "geom:Point"))
+                    .anyTimes();
+            replay(remote);
+            GetMapRequest remoteRequest = mockData.createRequest();
+            remoteRequest.setLayers(Collections.singletonList(new MapLayerInfo(remote)));
+            assertNotNull(SharedTransformationCache.getKey(plan, remoteRequest));
+
+            // a file with a different layout is not used:
+            SharedTransformationCache other = new SharedTransformationCache(file, 32, 1024);
+            other.open();
+            assertFalse(other.isOpen());
+            assertNull(other.get(new byte[32]));
+        } finally {
+            first.close();
+            second.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelFormatting() throws Exception {
+        List<Object> times = new ArrayList<Object>();
+        List<Object> elevations = new ArrayList<Object>();
+        DateTime start = new DateTime("2016-01-01T00:00:00Z");
+        for (int i = 0; i < 2000; i++) {
+            if (i % 2 == 0) {
+                times.add(start.plusMinutes(i).toDate());
+                elevations.add(Double.valueOf(i));
+            } else {
+                times.add(new DateRange(start.plusMinutes(i).toDate(), start.plusMinutes(i)
+                        .plusSeconds(30).toDate()));
+                elevations.add(new NumberRange<Double>(Double.class, (double) i, i + 0.5));
+            }
+        }
+        request.setTime(times);
+        request.setElevation(elevations);
+        String layerTwo = request.getLayers().get(1).getLayerInfo().prefixedName();
+        transformer.setLayerTimeZones(Collections.singletonMap(layerTwo, "America/New_York"));
+        transformer.initRequest(request);
+        List<Map<String, String>> sequential = new ArrayList<Map<String, String>>();
+        for (Map<String, String> params : request.getViewParams()) {
+            sequential.add(new HashMap<String, String>(params));
+        }
+
+        ParallelListFormatter formatter = new ParallelListFormatter(4, 100);
+        try {
+            transformer.setParallelFormatter(formatter);
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            // the distinct values of the layers are formatted before they are read:
+            for (Map<String, String> params : request.getViewParams()) {
+                assertTrue(((LazyViewParameterMap) params).isFormatted("timeStart"));
+                assertTrue(((LazyViewParameterMap) params).isFormatted("elevationEnd"));
+            }
+            assertEquals(sequential.size(), request.getViewParams().size());
+            for (int i = 0; i < sequential.size(); i++) {
+                assertEquals(sequential.get(i), new HashMap<String, String>(request
+                        .getViewParams().get(i)));
+            }
+            assertTrue(sequential.get(1).get("timeEnd").startsWith(
+                    "2015-12-31T19:00:00.000-05:00,2015-12-31T19:01:30.000-05:00,"));
+
+            // small requests are still formatted lazily:
+            request.setTime(times.subList(0, 10));
+            request.setElevation(elevations.subList(0, 10));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertFalse(((LazyViewParameterMap) request.getViewParams().get(0))
+                    .isFormatted("timeStart"));
+
+            // the plans of the workspace specific configurations use the formatter too:
+            transformer.applyWorkspaceConfig("tenant", new DimensionTransformerConfig());
+            WorkspaceInfoImpl workspace = new WorkspaceInfoImpl();
+            workspace.setName("tenant");
+            LocalWorkspace.set(workspace);
+            try {
+                request.setTime(times);
+                request.setElevation(elevations);
+                request.setViewParams(null);
+                transformer.initRequest(request);
+            } finally {
+                LocalWorkspace.remove();
+            }
+            assertTrue(((LazyViewParameterMap) request.getViewParams().get(0))
+                    .isFormatted("timeStart"));
+        } finally {
+            formatter.shutdown();
+        }
+    }
+
+    @Test
+    public void testWarmup() throws Exception {
+        DimensionTransformerWarmup warmup = new DimensionTransformerWarmup(getCatalog(),
+                transformer);
+        assertFalse(warmup.isEnabled());
+        warmup.start();
+        assertTrue(warmup.isReady());
+
+        transformer.setResourceNamesToMatch(null);
+        warmup = new DimensionTransformerWarmup(getCatalog(), transformer);
+        warmup.setIterations(2);
+        warmup.setMaxLayers(2);
+        warmup.warmup();
+        DimensionTransformerWarmup.Status status = warmup.getStatus();
+        assertFalse(status.isReady());
+        assertEquals(2, status.getLayers());
+        // six shapes and one with the custom dimensions, for both layers in both rounds:
+        assertEquals(28, status.getRequests());
+
+        // nothing is warmed up if no layers match:
+        transformer.setResourceNamesToMatch(
+                Arrays.<Name> asList(new NameImpl("http://geoserver.org", "noSuchLayer")));
+        warmup = new DimensionTransformerWarmup(getCatalog(), transformer);
+        warmup.warmup();
+        assertEquals(0, warmup.getStatus().getLayers());
+        assertEquals(0, warmup.getStatus().getRequests());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testTypedQueryHints() throws Exception {
+        transformer.setCustomDimensionTypes(Collections.singletonMap("testdim",
+                new CustomDimensionDefinition(CustomDimensionDefinition.Type.INTEGER)));
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+        request.setElevation(Arrays.<Object> asList(new NumberRange<Double>(Double.class, 100.0,
+                200.0)));
+        setCustomDimensionValue(request, "testdim", "1/3");
+
+        SimpleFeatureSource source = createNiceMock(SimpleFeatureSource.class);
+        expect(source.getName()).andReturn(
+                request.getLayers().get(0).getResource().getQualifiedName()).anyTimes();
+        replay(source);
+        FeatureLayer layer = new FeatureLayer(source, mockData.getDefaultStyle().getStyle());
+        WMSMapContent mapContent = new WMSMapContent(request);
+
+        // disabled by default:
+        transformer.beforeLayer(mapContent, layer);
+        assertSame(Query.ALL, layer.getQuery());
+
+        transformer.setTypedQueryHintsEnabled(true);
+        transformer.beforeLayer(mapContent, layer);
+        Hints hints = layer.getQuery().getHints();
+        assertEquals(request.getTime(), hints.get(DimensionQueryHints.TIME));
+        assertEquals(request.getElevation(), hints.get(DimensionQueryHints.ELEVATION));
+        Map<String, List<Object>> custom = (Map<String, List<Object>>) hints
+                .get(DimensionQueryHints.CUSTOM_DIMENSIONS);
+        assertEquals(Arrays.<Object> asList(1L, 2L, 3L), custom.get("TESTDIM"));
+
+        // not set for the requests not transformed:
+        transformer.setResourceNamesToMatch(
+                Arrays.<Name> asList(new NameImpl("http://geoserver.org", "noSuchLayer")));
+        layer = new FeatureLayer(source, mockData.getDefaultStyle().getStyle());
+        transformer.beforeLayer(mapContent, layer);
+        assertSame(Query.ALL, layer.getQuery());
+    }
+
+    @Test
+    public void testTypedCustomDimensions() throws Exception {
+        Map<String, CustomDimensionDefinition> types = new HashMap<String, CustomDimensionDefinition>();
+        types.put("testdim", new CustomDimensionDefinition(CustomDimensionDefinition.Type.INTEGER));
+        transformer.setCustomDimensionTypes(types);
+        setCustomDimensionValue(request, "testdim", "1/3,7,0010");
+        transformer.initRequest(request);
+        assertViewParamSet(request, "DIM_testdim", "1,2,3,7,10");
+
+        CustomDimensionDefinition decimal = new CustomDimensionDefinition(
+                CustomDimensionDefinition.Type.DECIMAL);
+        types.put("testdim", decimal);
+        transformer.setCustomDimensionTypes(types);
+        setCustomDimensionValue(request, "testdim", "0.5/1.5/0.5,2.250");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "DIM_testdim", "0.5,1,1.5,2.25");
+
+        types.put("testdim", new CustomDimensionDefinition(
+                CustomDimensionDefinition.Type.NUMERIC_RANGE));
+        transformer.setCustomDimensionTypes(types);
+        setCustomDimensionValue(request, "testdim", "100/200,50");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "DIM_testdimStart", "50");
+        assertViewParamSet(request, "DIM_testdimEnd", "200");
+
+        types.put("testdim", new CustomDimensionDefinition(
+                CustomDimensionDefinition.Type.DATETIME));
+        transformer.setCustomDimensionTypes(types);
+        setCustomDimensionValue(request, "testdim",
+                "2016-01-01T00:00:00Z/2016-01-01T02:00:00Z/PT1H");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "DIM_testdim", "2016-01-01T00:00:00.000+00:00,"
+                + "2016-01-01T01:00:00.000+00:00,2016-01-01T02:00:00.000+00:00");
+
+        CustomDimensionDefinition enumerated = new CustomDimensionDefinition(
+                CustomDimensionDefinition.Type.ENUMERATED);
+        enumerated.setAllowedValues(Arrays.asList("North", "South"));
+        types.put("testdim", enumerated);
+        transformer.setCustomDimensionTypes(types);
+        setCustomDimensionValue(request, "testdim", "south,NORTH");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "DIM_testdim", "South,North");
+
+        setCustomDimensionValue(request, "testdim", "west");
+        request.setViewParams(null);
+        try {
+            transformer.initRequest(request);
+            fail("Value not in the allowed values accepted");
+        } catch (ServiceException e) {
+            assertEquals("InvalidDimensionValue", e.getCode());
+        }
+
+        // invalid declarations are rejected without changing the configuration:
+        CustomDimensionDefinition invalid = new CustomDimensionDefinition(
+                CustomDimensionDefinition.Type.DECIMAL);
+        invalid.setFormatPattern("%.2q");
+        try {
+            transformer.setCustomDimensionTypes(Collections.singletonMap("testdim", invalid));
+            fail("Invalid format pattern accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertSame(enumerated, transformer.getCustomDimensionTypes().get("testdim"));
+    }
+
+    @Test
+    public void testTraceBuffer() throws Exception {
+        DimensionTraceBuffer traceBuffer = new DimensionTraceBuffer(2);
+        traceBuffer.setSampleRate(0);
+        transformer.setTraceBuffer(traceBuffer);
+        setCustomDimensionValue(request, "testdim", "ABC");
+        transformer.initRequest(request);
+        assertTrue(traceBuffer.getTraces(10).isEmpty());
+
+        traceBuffer.setSampleRate(1);
+        for (int i = 0; i < 3; i++) {
+            setCustomDimensionValue(request, "testdim", "value" + i);
+            request.setViewParams(null);
+            transformer.initRequest(request);
+        }
+        assertEquals(3, traceBuffer.getTraceCount());
+        List<DimensionTrace> traces = traceBuffer.getTraces(10);
+        // the oldest trace has been overwritten:
+        assertEquals(2, traces.size());
+        DimensionTrace trace = traces.get(0);
+        assertEquals(2, trace.getSequence());
+        assertTrue(trace.isTransformed());
+        assertEquals(2, trace.getLayers().size());
+        assertEquals("value2", trace.getDimensions().get("DIM_testdim"));
+        assertEquals("value2", trace.getViewParams().get(0).get("DIM_testdim"));
+        assertTrue(trace.getTotalNanos() >= trace.getTransformNanos());
+        assertEquals(1, traces.get(1).getSequence());
+        assertEquals(1, traceBuffer.getTraces(1).size());
+
+        transformer.setResourceNamesToMatch(
+                Arrays.<Name> asList(new NameImpl("http://geoserver.org", "noSuchLayer")));
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        trace = traceBuffer.getTraces(1).get(0);
+        assertFalse(trace.isTransformed());
+        assertNull(trace.getViewParams());
+
+        traceBuffer.clear();
+        assertTrue(traceBuffer.getTraces(10).isEmpty());
+    }
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        final DimensionAdmissionControl admission = new DimensionAdmissionControl();
+        admission.setCheapCostLimit(1);
+        admission.setLayerPermits(2);
+        admission.setTimeoutMillis(50);
+        admission.setLayerWeights(Collections.singletonMap(request.getLayers().get(1).getName(),
+                0.0));
+        transformer.setAdmissionControl(admission);
+        String layerOne = request.getLayers().get(0).getName();
+        String layerTwo = request.getLayers().get(1).getName();
+
+        // a single instant is cheap:
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+        transformer.initRequest(request);
+        assertEquals(2, admission.getAvailableLayerPermits(layerOne));
+        transformer.finished(null);
+
+        // three days cost four times the cheap limit:
+        request.setTime(Arrays.<Object> asList(new DateRange(new DateTime(
+                "2016-01-01T00:00:00Z").toDate(), new DateTime("2016-01-04T00:00:00Z").toDate())));
+        assertEquals(4.0, admission.getDimensionCost(request), 0.0001);
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals(0, admission.getAvailableLayerPermits(layerOne));
+        // the layer with zero weight is not limited:
+        assertEquals(2, admission.getAvailableLayerPermits(layerTwo));
+
+        final Exception[] thrown = new Exception[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    admission.admit(request);
+                } catch (Exception e) {
+                    thrown[0] = e;
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertTrue(thrown[0] instanceof HttpErrorCodeException);
+        assertEquals(503, ((HttpErrorCodeException) thrown[0]).getErrorCode());
+
+        transformer.failed(new RuntimeException());
+        assertEquals(2, admission.getAvailableLayerPermits(layerOne));
+
+        // a dispatched request keeps its permits until the dispatcher finishes it, in any thread:
+        final org.geoserver.ows.Request owsRequest = new org.geoserver.ows.Request();
+        owsRequest.setHttpRequest(new MockHttpServletRequest());
+        Dispatcher.REQUEST.set(owsRequest);
+        try {
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            transformer.finished(null);
+            assertEquals(0, admission.getAvailableLayerPermits(layerOne));
+        } finally {
+            Dispatcher.REQUEST.remove();
+        }
+        Thread dispatcher = new Thread() {
+            @Override
+            public void run() {
+                admission.finished(owsRequest);
+            }
+        };
+        dispatcher.start();
+        dispatcher.join();
+        assertEquals(2, admission.getAvailableLayerPermits(layerOne));
+        admission.finished(owsRequest);
+        assertEquals(2, admission.getAvailableLayerPermits(layerOne));
+    }
+
+    @Test
+    public void testValueSketch() throws Exception {
+        DimensionValueSketch sketch = new DimensionValueSketch(4, 256, 2);
+        sketch.setDecayIntervalMillis(0);
+        transformer.setValueSketch(sketch);
+        String[] values = { "A", "B", "A", "C,A", "B", "A" };
+        for (String value : values) {
+            setCustomDimensionValue(request, "testdim", value);
+            request.setViewParams(null);
+            transformer.initRequest(request);
+        }
+        List<DimensionValueCount> top = sketch.getTopValues("DIM_TESTDIM", 10);
+        // only the two most frequent values are kept:
+        assertEquals(2, top.size());
+        assertEquals("A", top.get(0).getValue());
+        assertEquals(4, top.get(0).getCount());
+        assertEquals("B", top.get(1).getValue());
+        assertEquals(2, top.get(1).getCount());
+        assertEquals(1, sketch.getTopValues("dim_testdim", 1).size());
+
+        List<DimensionValueCount> layers = sketch.getTopValues(DimensionValueSketch.LAYERS, 10);
+        assertEquals(1, layers.size());
+        assertEquals(6, layers.get(0).getCount());
+        assertTrue(Arrays.asList(sketch.getCategories()).contains("DIM_TESTDIM"));
+        assertEquals("A=4", sketch.getTopValues("DIM_TESTDIM")[0]);
+
+        sketch.decay();
+        assertEquals(2, sketch.getTopValues("DIM_TESTDIM", 10).get(0).getCount());
+
+        // requests not transformed are not counted:
+        transformer.setResourceNamesToMatch(
+                Arrays.<Name> asList(new NameImpl("http://geoserver.org", "noSuchLayer")));
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals(3, sketch.getTopValues(DimensionValueSketch.LAYERS, 10).get(0).getCount());
+
+        // the parsed values are counted, up to the maximum number of values per request:
+        sketch.reset();
+        sketch.setMaxValuesPerRequest(2);
+        transformer.setResourceNamesToMatch(null);
+        removeCustomDimension(request, "testdim");
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T01:00:00+01:00")
+                .toDate(), new DateTime("2016-01-02T00:00:00Z").toDate(), new DateTime(
+                "2016-01-03T00:00:00Z").toDate()));
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        List<DimensionValueCount> times = sketch.getTopValues(DimensionValueSketch.TIME, 10);
+        assertEquals(2, times.size());
+        assertEquals("2016-01-01T00:00:00.000Z", times.get(0).getValue());
+
+        // and only the sampled requests are counted:
+        sketch.setSampleRate(0);
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals(1, sketch.getTopValues(DimensionValueSketch.TIME, 10).get(0).getCount());
+
+        sketch.reset();
+        assertEquals(0, sketch.getCategories().length);
+    }
+
+    @Test
+    public void testBatchTransformation() throws Exception {
+        List<LayerInfo> layers = Arrays.asList(request.getLayers().get(0).getLayerInfo(),
+                request.getLayers().get(1).getLayerInfo());
+        List<LayerInfo> notMatching = Arrays.asList(request.getLayers().get(1).getLayerInfo());
+        List<DimensionBatchRequest> batch = new ArrayList<DimensionBatchRequest>();
+        for (int i = 0; i < 3; i++) {
+            DimensionBatchRequest r = new DimensionBatchRequest(layers);
+            r.setTime(Arrays.<Object> asList(new DateTime("2016-01-0" + (i + 1) + "T00:00:00Z")
+                    .toDate()));
+            r.setCustomDimension("TESTDIM", Arrays.asList("A", "B"));
+            batch.add(r);
+        }
+        DimensionBatchRequest repeated = new DimensionBatchRequest(layers);
+        repeated.setTime(batch.get(0).getTime());
+        repeated.setCustomDimension("testdim", Arrays.asList("A", "B"));
+        batch.add(repeated);
+        batch.add(new DimensionBatchRequest(notMatching));
+        // the custom dimension names are matched case insensitively in the key too:
+        assertEquals(batch.get(0).getDimensionKey(), repeated.getDimensionKey());
+
+        List<List<Map<String, String>>> result = transformer.getTransformedViewParams(batch);
+        assertEquals(5, result.size());
+        for (int i = 0; i < 3; i++) {
+            List<Map<String, String>> viewParams = result.get(i);
+            assertEquals(2, viewParams.size());
+            assertEquals("2016-01-0" + (i + 1) + "T00:00:00.000+00:00",
+                    viewParams.get(1).get("timeStart"));
+            assertEquals("A,B", viewParams.get(0).get("DIM_testdim"));
+        }
+        assertEquals(result.get(0).get(0), result.get(3).get(0));
+        assertNull(result.get(4));
+
+        // the batch gives the same view parameters as a single request:
+        request.setTime(batch.get(2).getTime());
+        setCustomDimensionValue(request, "testdim", "A,B");
+        transformer.initRequest(request);
+        assertEquals(request.getViewParams().get(0), result.get(2).get(0));
+    }
+
+    @Test
+    public void testTimeZones() throws Exception {
+        request.setTime(Arrays.<Object> asList(new DateTime("2016-01-01T00:00:00Z").toDate()));
+
+        // changing the time zone rebinds the formatter:
+        transformer.setTimeZoneById("Europe/Helsinki");
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2016-01-01T02:00:00.000+02:00");
+        transformer.setTimeZone(DateTimeZone.UTC);
+
+        transformer.setTimeZoneParameter("TIMEZONE");
+        Map<String, String> kvp = request.getRawKvp();
+        kvp.put("TIMEZONE", "Europe/Helsinki");
+        request.setRawKvp(kvp);
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2016-01-01T02:00:00.000+02:00");
+
+        kvp.put("TIMEZONE", "-03:30");
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertViewParamSet(request, "timeStart", "2015-12-31T20:30:00.000-03:30");
+
+        // the spellings of the same zone share a pooled formatter:
+        TimeFormatterPool pool = new TimeFormatterPool(transformer.getTimeFormatter(), 2);
+        assertSame(pool.getFormatter("-03:00"), pool.getFormatter("-0300"));
+        assertSame(pool.getFormatter("UTC"), pool.getFormatter("+00:00"));
+        assertEquals(2, pool.size());
+
+        kvp.put("TIMEZONE", "Nowhere/Atlantis");
+        request.setViewParams(null);
+        try {
+            transformer.initRequest(request);
+            fail("Unknown time zone accepted");
+        } catch (ServiceException e) {
+            assertEquals("InvalidParameterValue", e.getCode());
+        }
+        kvp.remove("TIMEZONE");
+
+        // per-layer time zones:
+        String layerTwo = request.getLayers().get(1).getLayerInfo().prefixedName();
+        transformer.setLayerTimeZones(Collections.singletonMap(layerTwo, "America/New_York"));
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals("2016-01-01T00:00:00.000+00:00",
+                request.getViewParams().get(0).get("timeStart"));
+        assertEquals("2015-12-31T19:00:00.000-05:00",
+                request.getViewParams().get(1).get("timeStart"));
+        assertEquals(request.getViewParams().get(0).get("timeEnd"),
+                request.getViewParams().get(0).get("timeStart"));
+        assertEquals(request.getViewParams().get(1).get("timeEnd"),
+                request.getViewParams().get(1).get("timeStart"));
+
+        try {
+            transformer.setLayerTimeZones(Collections.singletonMap(layerTwo, "Nowhere/Atlantis"));
+            fail("Unknown time zone accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("America/New_York", transformer.getLayerTimeZones().get(layerTwo));
+    }
+
+    @Test
+    public void testAnimationDetection() throws Exception {
+        final List<AnimationFrame> frames = Collections
+                .synchronizedList(new ArrayList<AnimationFrame>());
+        AnimationSequenceDetector detector = new AnimationSequenceDetector();
+        detector.setListeners(Arrays.<AnimationFrameListener> asList(new AnimationFrameListener() {
+            @Override
+            public void frameExpected(AnimationFrame frame) {
+                frames.add(frame);
+            }
+        }));
+        transformer.setAnimationDetector(detector);
+        request.setBbox(new Envelope(0, 10, 0, 10));
+        try {
+            DateTime start = new DateTime("2016-01-01T00:00:00Z");
+            for (int i = 0; i < 3; i++) {
+                request.setTime(Arrays.<Object> asList(start.plusHours(i).toDate()));
+                request.setViewParams(null);
+                transformer.initRequest(request);
+                assertTrue(detector.awaitIdle(5000));
+                // the same step is needed for three frames:
+                assertEquals(i < 2 ? 0 : 1, frames.size());
+            }
+            AnimationFrame frame = frames.get(0);
+            assertEquals(start.plusHours(3).toDate(), frame.getTime());
+            assertEquals(3600000L, frame.getStrideMillis());
+            assertEquals(2, frame.getLayers().size());
+            assertEquals("2016-01-01T03:00:00.000+00:00", frame.getViewParams().get(0)
+                    .get("timeStart"));
+
+            // a different step starts a new sequence:
+            request.setTime(Arrays.<Object> asList(start.plusHours(5).toDate()));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertTrue(detector.awaitIdle(5000));
+            assertEquals(1, frames.size());
+            assertEquals(1, detector.getSequenceCount());
+
+            // the expected frame is encoded in the time zone of the request:
+            transformer.setTimeZoneParameter("TZ");
+            request.getRawKvp().put("TZ", "America/New_York");
+            request.setBbox(new Envelope(0, 20, 0, 20));
+            for (int i = 0; i < 3; i++) {
+                request.setTime(Arrays.<Object> asList(start.plusHours(i).toDate()));
+                request.setViewParams(null);
+                transformer.initRequest(request);
+                assertTrue(detector.awaitIdle(5000));
+            }
+            assertEquals(2, frames.size());
+            assertEquals("2015-12-31T22:00:00.000-05:00", frames.get(1).getViewParams().get(0)
+                    .get("timeStart"));
+            request.getRawKvp().remove("TZ");
+
+            // when the limit is reached, the new sequence is not tracked and the idle ones are
+            // evicted in the background:
+            assertEquals(2, detector.getSequenceCount());
+            detector.setMaxSequences(2);
+            detector.setIdleMillis(0);
+            Thread.sleep(10);
+            request.setBbox(new Envelope(0, 30, 0, 30));
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertTrue(detector.awaitIdle(5000));
+            assertEquals(0, detector.getSequenceCount());
+            request.setViewParams(null);
+            transformer.initRequest(request);
+            assertEquals(1, detector.getSequenceCount());
+        } finally {
+            detector.shutdown();
+        }
+    }
+
+    @Test
+    public void testWarmingBboxReprojected() throws Exception {
+        SimpleFeatureType schema = DataUtilities.createType("warm", "geom:Point:srid=3857");
+        SimpleFeatureSource source = createMock(SimpleFeatureSource.class);
+        expect(source.getSchema()).andReturn(schema).anyTimes();
+        replay(source);
+        ReferencedEnvelope bbox = new ReferencedEnvelope(0, 10, 0, 10,
+                DefaultGeographicCRS.WGS84);
+        ReferencedEnvelope reprojected = SQLViewWarmingListener.toNativeCRS(bbox, source);
+        assertTrue(CRS.equalsIgnoreMetadata(schema.getCoordinateReferenceSystem(),
+                reprojected.getCoordinateReferenceSystem()));
+        assertEquals(1113194.9, reprojected.getMaxX(), 1);
+        // the bounding box is kept if the native CRS is not known:
+        SimpleFeatureSource unknown = createMock(SimpleFeatureSource.class);
+        expect(unknown.getSchema()).andReturn(DataUtilities.createType("warm", "geom:Point"))
+                .anyTimes();
+        replay(unknown);
+        assertSame(bbox, SQLViewWarmingListener.toNativeCRS(bbox, unknown));
+    }
+
+    @Test
+    public void testElevationConversions() throws Exception {
+        String layerOne = request.getLayers().get(0).getLayerInfo().prefixedName();
+        String layerTwo = request.getLayers().get(1).getLayerInfo().prefixedName();
+        ElevationConversion feet = new ElevationConversion(ElevationConversion.Type.LINEAR);
+        feet.setScale(0.3048);
+        ElevationConversion pressure = new ElevationConversion(ElevationConversion.Type.TABLE);
+        pressure.setInputValues(Arrays.asList(1000d, 850d, 500d));
+        pressure.setOutputValues(Arrays.asList(111d, 1457d, 5574d));
+        pressure.setLogarithmic(true);
+        Map<String, ElevationConversion> conversions = new HashMap<String, ElevationConversion>();
+        conversions.put(layerOne, feet);
+        transformer.setLayerElevationConversions(conversions);
+
+        request.setElevation(Arrays.<Object> asList(new Double(1000), new NumberRange<Double>(
+                Double.class, new Double(1000), new Double(2000))));
+        transformer.initRequest(request);
+        assertEquals("304.800,304.800", request.getViewParams().get(0).get("elevationStart"));
+        assertEquals("304.800,609.600", request.getViewParams().get(0).get("elevationEnd"));
+        assertEquals("1000.000,1000.000", request.getViewParams().get(1).get("elevationStart"));
+
+        conversions.put(layerTwo, pressure);
+        transformer.setLayerElevationConversions(conversions);
+        request.setElevation(Arrays.<Object> asList(new Double(850), new Double(700),
+                new NumberRange<Double>(Double.class, new Double(500), new Double(1000))));
+        request.setViewParams(null);
+        transformer.initRequest(request);
+        assertEquals("1457.000,2963.404,111.000",
+                request.getViewParams().get(1).get("elevationStart"));
+        assertEquals("1457.000,2963.404,5574.000",
+                request.getViewParams().get(1).get("elevationEnd"));
+
+        request.setElevation(Arrays.<Object> asList(new Double(1100)));
+        request.setViewParams(null);
+        try {
+            transformer.initRequest(request);
+            fail("Elevation outside the conversion table accepted");
+        } catch (ServiceException e) {
+            assertEquals("InvalidDimensionValue", e.getCode());
+        }
+
+        ElevationConversion invalid = new ElevationConversion(ElevationConversion.Type.TABLE);
+        invalid.setInputValues(Arrays.asList(1000d));
+        invalid.setOutputValues(Arrays.asList(111d));
+        try {
+            transformer.setLayerElevationConversions(Collections.singletonMap(layerOne, invalid));
+            fail("Invalid conversion table accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // null and NaN values are rejected before the table is sorted:
+        for (Double value : Arrays.asList(null, Double.NaN)) {
+            invalid.setInputValues(Arrays.asList(1000d, value, 500d));
+            invalid.setOutputValues(Arrays.asList(111d, 1457d, 5574d));
+            try {
+                transformer.setLayerElevationConversions(Collections.singletonMap(layerOne,
+                        invalid));
+                fail("Invalid conversion table accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertSame(pressure, transformer.getLayerElevationConversions().get(layerTwo));
+    }
+
     static void assertViewParamSet(GetMapRequest req, String name, String expected) {
         boolean found = false;
         boolean valueEqual = false;